@@ -0,0 +1,54 @@
+package convnet;
+
+import java.util.Random;
+
+/**
+ * Inputs shared by the benchmarks. Every benchmark draws from the same seed, so runs are comparable.
+ * @author Jared Gorski
+ */
+final class Benchmarks {
+
+    private static final long SEED = 42;
+
+    private Benchmarks() {}
+
+    /**
+     * Returns a float64 mini-batch of the given sample shape, filled with uniform values in [0, 1).
+     * @param shape
+     * @param batchSize
+     * @return
+     */
+    static Data random(int[] shape, int batchSize) {
+        Data data = new Data(shape, "float64", batchSize);
+        Random random = new Random(SEED);
+        double[] buffer = data.getBuffer();
+
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = random.nextDouble();
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns an array of the given shape, filled with uniform values in [0, 1).
+     * @param m
+     * @param n
+     * @param o
+     * @return
+     */
+    static double[][][] random(int m, int n, int o) {
+        double[][][] data = new double[m][n][o];
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < o; k++) {
+                    data[i][j][k] = random.nextDouble();
+                }
+            }
+        }
+
+        return data;
+    }
+}
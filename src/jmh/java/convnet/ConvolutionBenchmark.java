@@ -0,0 +1,117 @@
+package convnet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of one convolutional layer of 32 kernels over a single sample, by algorithm: "direct" is the sliding
+ * window of evalValidConvolution, and the others are the algorithms a schedule can choose, "int8" with its input scale
+ * calibrated to the benchmark's inputs in [0, 1) and "sparse" with 90% of the weights pruned. Layers run on the common
+ * pool, as a network does by default.
+ * @author Jared Gorski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvolutionBenchmark {
+
+    @Param({"32", "128", "256"})
+    public int size;
+
+    @Param({"3", "32"})
+    public int channels;
+
+    @Param({"3", "5"})
+    public int kernelSize;
+
+    @Param({"direct", "gemm", "winograd", "fft", "int8", "sparse"})
+    public String convolution;
+
+    private Layer layer;
+    private Data input;
+    private Data output;
+    private Workspace workspace;
+
+    @Setup
+    public void setUp() {
+        Schedule schedule = new Schedule();
+        schedule.setLayers(new String[]{"input", "conv", "activation"});
+        schedule.setKernelSize(kernelSize);
+        schedule.setConvolution(1, "winograd".equals(convolution) || "fft".equals(convolution) ? convolution : "gemm");
+
+        List<Layer> layers = new ArrayList<>();
+        this.workspace = new Workspace();
+        this.input = Benchmarks.random(new int[]{size, size, channels}, 1);
+        ExecutionPlan.compile(schedule, layers, new String[]{"a", "b"}, this.input.getDimensions(),
+                ForkJoinPool.commonPool(), this.workspace);
+
+        this.layer = layers.get(1);
+        this.output = new Data(new int[]{size - kernelSize + 1, size - kernelSize + 1, this.layer.getKernelsLength()});
+        this.layer.getKernelMatrix();
+        this.layer.getKernelSpectra();
+
+        if (WinogradTask.supports(this.layer.getKernelByIndex(0).getDimensions())) {
+            this.layer.getWinogradKernels();
+        }
+
+        if ("int8".equals(convolution)) {
+            this.layer.quantize(QuantizedTask.quantize(this.layer, 1.0));
+        }
+
+        if ("sparse".equals(convolution)) {
+            this.layer.prune(0.9);
+            this.layer.getSparseKernels();
+        }
+    }
+
+    @Benchmark
+    public void convolve(Blackhole blackhole) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        switch (convolution) {
+            case "direct":
+                for (int k = 0; k < this.layer.getKernelsLength(); k++) {
+                    blackhole.consume(ExecutionPlan.ConvOperator.evalValidConvolution(this.input,
+                            this.layer.getKernelByIndex(k), this.layer.getBiasByIndex(k)));
+                }
+                break;
+            case "gemm":
+                ConvolutionTask.run(pool, this.input, this.layer, this.output, this.workspace, 1);
+                break;
+            case "winograd":
+                WinogradTask.run(pool, this.input, this.layer, this.output, this.workspace);
+                break;
+            case "fft":
+                FftTask.run(pool, this.input, this.layer, this.output, this.workspace);
+                break;
+            case "int8":
+                QuantizedTask.run(pool, this.input, this.layer, this.output, this.workspace, 1);
+                break;
+            case "sparse":
+                SparseTask.run(pool, this.input, this.layer, this.output, this.workspace, 1);
+                break;
+            default:
+                throw new RuntimeException("Unknown convolution: " + convolution);
+        }
+
+        blackhole.consume(this.output);
+    }
+}
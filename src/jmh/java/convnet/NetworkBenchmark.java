@@ -0,0 +1,94 @@
+package convnet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmarks of a conv, pool, conv, pool network on a mini-batch: the training forward pass, a prediction,
+ * and one training step of forward pass, backward pass and weight update.
+ * @author Jared Gorski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetworkBenchmark {
+
+    private static final String[] SCHEDULE = {"input", "conv", "pool", "conv", "pool", "activation"};
+    private static final String[] CLASSES = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"};
+
+    @Param({"28", "64", "128"})
+    public int size;
+
+    @Param({"1", "3"})
+    public int channels;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private CNN network;
+    private ExecutionPlan plan;
+    private Data batch;
+    private double[][] probabilities;
+    private List<TrainingSet.TData> samples;
+
+    @Setup
+    public void setUp() {
+        this.network = new CNN();
+        this.network.setSchedule(SCHEDULE, 1);
+        this.network.setClasses(CLASSES);
+        this.batch = Benchmarks.random(new int[]{size, size, channels}, batchSize);
+        this.probabilities = new double[batchSize][CLASSES.length];
+        this.network.predict(this.batch, this.probabilities);
+
+        this.plan = ExecutionPlan.compile(this.network.getSchedule(), this.network.getLayers(), CLASSES,
+                this.batch.getDimensions(), ForkJoinPool.commonPool(), new Workspace());
+
+        TrainingSet trainingSet = new TrainingSet();
+        this.samples = new ArrayList<>();
+
+        for (int b = 0; b < batchSize; b++) {
+            int[] label = new int[CLASSES.length];
+            label[b % CLASSES.length] = 1;
+
+            TrainingSet.TData sample = trainingSet.new TData();
+            sample.write(this.batch.sample(b).copy());
+            sample.setLabel(label);
+            this.samples.add(sample);
+        }
+    }
+
+    @Benchmark
+    public Data feedforward() {
+        return this.plan.forward(this.batch);
+    }
+
+    @Benchmark
+    public double[][] predict() {
+        this.network.predict(this.batch, this.probabilities);
+        return this.probabilities;
+    }
+
+    @Benchmark
+    public CNN trainStep() {
+        this.network.computeGradients(this.samples);
+        this.network.applyGradients(this.samples.size());
+        return this.network;
+    }
+}
@@ -0,0 +1,83 @@
+package convnet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the NumPute primitives: dot products and sigmoid over feature maps, and softmax over class scores.
+ * @author Jared Gorski
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumPuteBenchmark {
+
+    /**
+     * Two feature maps of the same shape.
+     */
+    @State(Scope.Thread)
+    public static class Maps {
+
+        @Param({"28", "128", "512"})
+        public int size;
+
+        @Param({"1", "3", "32"})
+        public int channels;
+
+        Data a;
+        Data b;
+        double[][][] array;
+
+        @Setup
+        public void setUp() {
+            this.a = Benchmarks.random(new int[]{size, size, channels}, 1);
+            this.b = Benchmarks.random(new int[]{size, size, channels}, 1);
+            this.array = Benchmarks.random(size, size, channels);
+        }
+    }
+
+    /**
+     * Class scores of one sample.
+     */
+    @State(Scope.Thread)
+    public static class Scores {
+
+        @Param({"10", "100", "1000"})
+        public int classes;
+
+        double[] scores;
+
+        @Setup
+        public void setUp() {
+            this.scores = Benchmarks.random(1, 1, classes)[0][0];
+        }
+    }
+
+    @Benchmark
+    public double dot(Maps maps) {
+        return NumPute.dot(maps.a, maps.b);
+    }
+
+    @Benchmark
+    public double[][][] sigmoid(Maps maps) {
+        return NumPute.sigmoid(maps.array);
+    }
+
+    @Benchmark
+    public double[] softmax(Scores scores) {
+        return NumPute.softmax(scores.scores);
+    }
+}
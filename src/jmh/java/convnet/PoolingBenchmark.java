@@ -0,0 +1,59 @@
+package convnet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of 2x2, stride 2 max pooling over a single sample, with the argmax mask training records and without it,
+ * as in inference.
+ * @author Jared Gorski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolingBenchmark {
+
+    private static final int SIZE = 2;
+    private static final int STRIDE = 2;
+
+    @Param({"32", "128", "256"})
+    public int size;
+
+    @Param({"3", "32"})
+    public int channels;
+
+    @Param({"true", "false"})
+    public boolean masked;
+
+    private Data input;
+    private Data output;
+    private int[] mask;
+
+    @Setup
+    public void setUp() {
+        int pooled = (size - SIZE) / STRIDE + 1;
+        this.input = Benchmarks.random(new int[]{size, size, channels}, 1);
+        this.output = new Data(new int[]{pooled, pooled, channels});
+        this.mask = masked ? new int[this.output.length()] : null;
+    }
+
+    @Benchmark
+    public Data pool() {
+        ExecutionPlan.PoolOperator.evalMaxPooling(this.input, this.output, SIZE, STRIDE, this.mask);
+        return this.output;
+    }
+}
@@ -0,0 +1,50 @@
+package convnet;
+
+/**
+ * The ArrayKernels interface describes the flat-array loops that NumPute's reductions and elementwise operations are
+ * built from. A scalar implementation always exists; on Java 17+ a vectorized implementation is loaded in its place
+ * when the jdk.incubator.vector module is available.
+ * @author Jared Gorski
+ */
+interface ArrayKernels {
+
+    /**
+     * Dot product of two runs of values.
+     */
+    double dot(double[] a, int aOff, double[] b, int bOff, int length);
+
+    /**
+     * Dot product of two runs of float32 values.
+     */
+    float dot(float[] a, int aOff, float[] b, int bOff, int length);
+
+    /**
+     * Dot product of two runs of int8 values, accumulated in int32.
+     */
+    int dot(byte[] a, int aOff, byte[] b, int bOff, int length);
+
+    /**
+     * Sum of a run of values.
+     */
+    double sum(double[] a, int off, int length);
+
+    /**
+     * Largest of a run of values.
+     */
+    double max(double[] a, int off, int length);
+
+    /**
+     * Replaces each value x of a run with exp(x - shift) and returns the sum of the results.
+     */
+    double expShift(double[] a, int off, int length, double shift);
+
+    /**
+     * Applies an "add", "subtract", "multiply" or "divide" by b to each value of a run.
+     */
+    void operate(double[] a, int aOff, double b, String operation, double[] result, int resultOff, int length);
+
+    /**
+     * Applies the logistic sigmoid to each value of a run.
+     */
+    void sigmoid(double[] a, int aOff, double[] result, int resultOff, int length);
+}
@@ -1,387 +1,503 @@
 package convnet;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The CNN class encapsulates a convolutional neural network. This class contains all the primary logic for the
  * training, testing, and prediction mechanisms of the network. It particularly encapsulates the gradient descent
  * logic for minimizing cost when training the model, the recipe for processing the input data through various layers,
  * and the prediction engine for returning a given class with a specified confidence level.
+ *
+ * A CNN holds the state of the pass it is running, so it must only be used from one thread at a time. To predict from
+ * several threads with one copy of the weights, freeze it with toModel and give each thread its own InferenceContext.
  * @author Jared Gorski
  */
 public class CNN {
 
     private String currentAction;
-    private double learningRate;
     private Data inputData;
     private String[] classes;
     private double[] output;
+    private double[][] batchOutput;
     private List<Layer> layers = new ArrayList<>();
     private Schedule schedule = new Schedule();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private ExecutionPlan plan = null; // Schedule compiled for the current input shape; null until first run.
+    private int[] inputShape = null; // Shape of a sample the network last ran on or was restored with.
+    private Workspace workspace = new Workspace(); // Buffers reused by every pass of the network.
+    private final List<Data> batchSamples = new ArrayList<>(); // Samples of the training mini-batch being run.
+    private final List<int[]> batchLabels = new ArrayList<>(); // Labels of the training mini-batch being run.
+    private Parameters parameters = null; // Every layer's weights and gradients, packed when the plan is compiled.
+    private Optimizer optimizer = new Optimizer();
+    private ExecutorService checkpointWriter = null; // Background thread that writes checkpoints to disk.
+    private Metrics metrics = null; // Per-layer costs, recorded only while set.
+    private double loss = Double.NaN; // Mean cross entropy of the last training mini-batch.
+    private Future<?> lastCheckpoint = null;
 
     public List<Layer> getLayers() {
         return this.layers;
     }
 
+    public Schedule getSchedule() {
+        return this.schedule;
+    }
+
+    /**
+     * Returns the mean cross entropy loss of the last mini-batch trained on, or NaN before any.
+     * @return
+     */
+    public double getLoss() {
+        return this.loss;
+    }
+
     public void train(TrainingSet trainingSet) {
         setCurrentAction("train");
         setClasses(trainingSet.getClassMap());
 
+        if (schedule.getWorkers() > 1) {
+            new ParallelTrainer(this, schedule.getWorkers()).train(trainingSet);
+            printMetrics();
+            return;
+        }
+
+        int batchSize = schedule.getBatchSize();
+
         for (int i = 0; i < schedule.getIterations(); i++) {
-            for (int j = 0; j < trainingSet.getDatasetLength(); j++) {
-                trainEpoch(trainingSet.getDataByIndex(j));
+            for (int j = 0; j < trainingSet.getDatasetLength(); j += batchSize) {
+                List<TrainingSet.TData> batch = new ArrayList<>();
+
+                for (int k = j; k < Math.min(j + batchSize, trainingSet.getDatasetLength()); k++) {
+                    batch.add(trainingSet.getDataByIndex(k));
+                }
+
+                trainEpoch(batch);
             }
+
+            checkpointIfDue(i + 1);
         }
+
+        awaitCheckpoint();
+        printMetrics();
     }
 
-    private void trainEpoch(TrainingSet.TData tData) {
-        Data tDataImg = tData.read();
-        setInputData(tDataImg);
+    /**
+     * Prints the table of per-layer costs recorded so far, if metrics are on.
+     */
+    private void printMetrics() {
+        if (this.metrics != null) {
+            System.out.print(this.metrics.table());
+        }
+    }
+
+    /**
+     * Runs one forward and backward pass over a mini-batch of training samples and applies the resulting gradients.
+     * @param batch
+     */
+    private void trainEpoch(List<TrainingSet.TData> batch) {
+        computeGradients(batch);
+        applyGradients(batch.size());
+    }
+
+    /**
+     * Runs one forward and backward pass over a mini-batch of training samples, accumulating gradients in the layers.
+     * @param batch
+     */
+    void computeGradients(List<TrainingSet.TData> batch) {
+        List<Data> samples = this.batchSamples;
+        List<int[]> labels = this.batchLabels;
+        samples.clear();
+        labels.clear();
+
+        if (batch.get(0).isPacked()) {
+            computeGradientsPacked(batch);
+            return;
+        }
+
+        for (int b = 0; b < batch.size(); b++) {
+            TrainingSet.TData tData = batch.get(b);
+            samples.add(tData.read());
+            labels.add(tData.getLabel());
+        }
+
+        if (samples.size() == 1) {
+            setInputData(samples.get(0));
+        } else {
+            Data input = this.workspace.input(samples.get(0).getDimensions(), this.schedule.getPrecision(),
+                    samples.size());
+            Data.batch(samples, input);
+            setInputData(input);
+        }
+
         feedforward();
-        backpropagate(calcLoss(tData.getLabel()));
+        this.loss = calcLoss(labels);
+        backpropagate(labels);
+    }
+
+    /**
+     * Runs computeGradients over a mini-batch of packed records, decoding their pixels and labels straight from the
+     * mapped file into workspace buffers, so that no sample or label arrays are allocated.
+     * @param batch
+     */
+    private void computeGradientsPacked(List<TrainingSet.TData> batch) {
+        TrainingSet.TData first = batch.get(0);
+        Data input = this.workspace.input(first.getPackedShape(), this.schedule.getPrecision(), batch.size());
+        int[][] oneHots = this.workspace.labels(batch.size(), first.getPackedClasses());
+        List<int[]> labels = this.batchLabels;
+
+        for (int b = 0; b < batch.size(); b++) {
+            TrainingSet.TData tData = batch.get(b);
+            tData.read(input, b);
+            labels.add(tData.getLabel(oneHots[b]));
+        }
+
+        setInputData(input);
+        feedforward();
+        this.loss = calcLoss(labels);
+        backpropagate(labels);
     }
 
     public double[] predict(double[][][] data) {
         setCurrentAction("predict");
         setInputData(data);
-        feedforward();
+        infer();
 
-        return this.output;
+        return this.output.clone();
     }
 
-    private void feedforward() {
-        for (int i = 0; i < this.schedule.getLayers().length; i++) {
-            Layer prevLayer;
-            Layer currLayer;
-
-            switch (this.schedule.getLayerByIndex(i)) {
-                case "input":
-                    if (i == 0 && this.layers.size() == 0) {
-                        currLayer = new Layer().initInputLayer(inputData);
-                        currLayer.setLayerIndex(i);
-                        this.layers.add(currLayer);
-                    }
-
-                    break;
-                case "conv":
-                    prevLayer = this.layers.get(i - 1);
-
-                    if (i >= this.layers.size()) {
-                        currLayer = new Layer().initConvolutionalLayer(prevLayer);
-                        currLayer.setLayerIndex(i);
-                        currLayer.setNeuronsLength(32);
-                        execConvolutionalLayer(currLayer);
-                        this.layers.add(currLayer);
-                    } else {
-                        currLayer = this.layers.get(i);
-                        currLayer.setLayerInput(prevLayer.getLayerOutput());
-                        execConvolutionalLayer(currLayer);
-                    }
-
-                    break;
-                case "pool":
-                    prevLayer = this.layers.get(i - 1);
-
-                    if (i >= this.layers.size()) {
-                        currLayer = new Layer().initMaxPoolingLayer(prevLayer);
-                        currLayer.setLayerIndex(i);
-                        execMaxPoolingLayer(currLayer);
-                        this.layers.add(currLayer);
-                    } else {
-                        currLayer = this.layers.get(i);
-                        currLayer.setLayerInput(prevLayer.getLayerOutput());
-                        execMaxPoolingLayer(currLayer);
-                    }
-                    break;
-                case "activation":
-                    prevLayer = this.layers.get(i - 1);
-
-                    if (i >= this.layers.size()) {
-                        currLayer = new Layer().initActivationLayer(prevLayer);
-                        currLayer.setLayerIndex(i);
-                        currLayer.setClasses(this.classes);
-                        setOutput(activate(currLayer));
-                        this.layers.add(currLayer);
-                    } else {
-                        currLayer = this.layers.get(i);
-                        currLayer.setLayerInput(prevLayer.getLayerOutput());
-                        setOutput(activate(currLayer));
-                    }
-                    break;
-            }
+    /**
+     * Predicts every sample of a mini-batch in one pass.
+     * @param batch
+     * @return Class probabilities per sample.
+     */
+    public double[][] predict(Data batch) {
+        setCurrentAction("predict");
+        setInputData(batch);
+        infer();
+
+        double[][] probabilities = new double[this.batchOutput.length][];
+
+        for (int b = 0; b < this.batchOutput.length; b++) {
+            probabilities[b] = this.batchOutput[b].clone();
         }
+
+        return probabilities;
     }
 
-    private void backpropagate(double loss) {
-        int layersLength = this.schedule.getLayers().length;
-
-        for (int i = 0; i < layersLength; i++) {
-            int targetIndex = layersLength - i;
-            Layer currLayer;
-            Layer nextLayer;
-
-            switch (this.schedule.getLayerByIndex(targetIndex)) {
-                case "input":
-                case "activation":
-                    break;
-                case "pool":
-                    currLayer = this.layers.get(targetIndex);
-                    nextLayer = this.layers.get(targetIndex + 1);
-                    // backpropagatePool(currLayer, nextLayer);
-                    break;
-                case "conv":
-                    currLayer = this.layers.get(targetIndex);
-                    nextLayer = this.layers.get(targetIndex + 1);
-                    backpropagateConv(currLayer, nextLayer);
-                    break;
-            }
+    /**
+     * Predicts every sample of a mini-batch in one pass, writing the class probabilities into the given array. Once
+     * the network has run a batch of this size, the call allocates nothing.
+     * @param batch
+     * @param probabilities batchSize x classes array to fill.
+     */
+    public void predict(Data batch, double[][] probabilities) {
+        setCurrentAction("predict");
+        setInputData(batch);
+        infer();
+
+        for (int b = 0; b < this.batchOutput.length; b++) {
+            System.arraycopy(this.batchOutput[b], 0, probabilities[b], 0, this.batchOutput[b].length);
         }
     }
 
     /**
-     * Logic for a convolutional layer.
-     *
-     * @param layer
+     * Runs the input data through the compiled plan, compiling it first if it has not been compiled for input of this
+     * shape and precision.
      */
-    private void execConvolutionalLayer(Layer layer) {
-        Data layerOutput = new Data();
+    private void feedforward() {
+        compile();
+        setOutput(activate(this.plan.forward(this.inputData, this.metrics), this.workspace));
+    }
 
-        for (int i = 0; i < layer.getKernelsLength(); i++) {
-            Data kernel = layer.getKernelByIndex(i);
-            double bias = layer.getBiasByIndex(i);
+    /**
+     * Runs the input data through the compiled plan for inference only. Layers keep no inputs or outputs for
+     * backpropagation, and intermediates share two buffers, so a prediction needs far less memory than a training
+     * pass.
+     */
+    private void infer() {
+        compile();
+        setOutput(activate(this.plan.infer(this.inputData, this.metrics), this.workspace));
+    }
 
-            Data input = layer.getLayerInput();
-            Data activationMap = this.evalValidConvolution(input, kernel, bias);
-            layerOutput.stackMap(activationMap.read2d());
+    /**
+     * Compiles the schedule for the current input data, unless the plan was already compiled for its shape and
+     * precision, and packs the layers' weights into one parameter buffer unless they already are.
+     */
+    private void compile() {
+        if (this.plan == null || !this.plan.accepts(this.inputData)) {
+            this.plan = ExecutionPlan.compile(this.schedule, this.layers, this.classes,
+                    this.inputData.getDimensions(), this.pool, this.workspace);
+            this.inputShape = this.inputData.getDimensions().clone();
         }
 
-        layer.setLayerOutput(layerOutput);
+        if (this.parameters == null || !this.parameters.packs(this.layers)) {
+            this.parameters = Parameters.pack(this.layers);
+        }
     }
 
     /**
-     * Logic for a full convolution operation.
-     *
-     * @param input
-     * @param kernel
-     * @param bias
-     * @return
+     * Runs the backward pass of the last forward pass. The error of the class scores under softmax and cross entropy is
+     * the predicted probability less the true label, which seeds the pass at the activation layer.
+     * @param trueLabels
      */
-    private Data evalFullConvolution(Data input, Data kernel, double bias) {
-        int m = input.getDimensions()[0];
-        int n = input.getDimensions()[1];
-        int o = input.getDimensions()[2];
-        int km = kernel.getDimensions()[0];
-        int kn = kernel.getDimensions()[1];
-        int ko = kernel.getDimensions()[2];
-
-        if (o != ko) {
-            throw new RuntimeException("Malformed kernel and input. Different depths.");
-        }
+    private void backpropagate(List<int[]> trueLabels) {
+        Data outputError = this.plan.outputError(trueLabels.size());
+        double[] errors = outputError.getBuffer();
 
-        double[][][] input3d = input.read3d();
-        double[][][] fullInput = new double[m + 2 * (km - 1)][n + 2 * (kn - 1)][o];
+        for (int b = 0; b < trueLabels.size(); b++) {
+            int base = b * outputError.getBatchStride();
+            int[] label = trueLabels.get(b);
 
-        for (int i = 0; i < m; i++) {
-            for (int j = 0; j < n; j++) {
-                for (int k = 0; k < o; k++) {
-                    fullInput[i + km - 1][j + kn - 1][k] = input3d[i][j][k];
-                }
+            for (int i = 0; i < label.length; i++) {
+                errors[base + outputError.index(0, 0, i)] = this.batchOutput[b][i] - label[i];
             }
         }
 
-        Data fullInputData = new Data();
-        fullInputData.write(fullInput);
-
-        return evalValidConvolution(fullInputData, kernel, bias);
+        this.plan.backward(outputError, this.metrics);
     }
 
     /**
-     * Logic for a valid convolution operation.
-     *
-     * @param input
-     * @param kernel
-     * @param bias
-     * @return
+     * Turns the class scores of the activation layer into class probabilities, in an array owned by the workspace.
+     * @param scores
+     * @param workspace
+     * @return Class probabilities per sample.
      */
-    private Data evalValidConvolution(Data input, Data kernel, double bias) {
-        int stride = 1;
-        int m = input.getDimensions()[0];
-        int n = input.getDimensions()[1];
-        int o = input.getDimensions()[2];
-        int km = kernel.getDimensions()[0];
-        int kn = kernel.getDimensions()[1];
-        int ko = kernel.getDimensions()[2];
-        int kms = ((m - km) / stride) + 1;
-        int kns = ((n - kn) / stride) + 1;
-
-        if (o != ko) {
-            throw new RuntimeException("Malformed kernel and input. Different depths.");
-        }
-
-        double[][] result = new double[kms][kns];
-
-        for (int i = 0; i < kms; i++) {
-            for (int j = 0; j < kns; j++) {
-                int[] sliceH = new int[]{i, i + km};
-                int[] sliceW = new int[]{j, j + kn};
-                int[] sliceD = new int[]{0, ko};
-                double[][][] inputSlice = input.slice3d(sliceH, sliceW, sliceD);
-                result[i][j] = NumPute.dot(inputSlice, kernel.read3d()) + bias;
+    static double[][] activate(Data scores, Workspace workspace) {
+        int classesLength = scores.getDimensions()[2];
+        double[][] output = workspace.probabilities(scores.getBatchSize(), classesLength);
+        double[] buffer = scores.getBuffer();
+        float[] floatBuffer = scores.getFloatBuffer();
+
+        for (int b = 0; b < scores.getBatchSize(); b++) {
+            int base = b * scores.getBatchStride();
+
+            for (int i = 0; i < classesLength; i++) {
+                int index = base + scores.index(0, 0, i);
+                output[b][i] = floatBuffer != null ? floatBuffer[index] : buffer[index];
             }
+
+            NumPute.softmax(output[b]);
         }
 
-        Data activationMap = new Data();
-        activationMap.write(result);
-        return activationMap;
+        return output;
     }
 
-
     /**
-     * Logic for a max pooling layer.
-     * @param layer
+     * Mean cross entropy loss over the samples of the last forward pass.
+     * @param trueLabels
+     * @return
      */
-    private void execMaxPoolingLayer(Layer layer) {
-        int size = layer.getPoolSize();
-        int stride = layer.getPoolStride();
+    private double calcLoss(List<int[]> trueLabels) {
+        double loss = 0.0;
+
+        for (int b = 0; b < trueLabels.size(); b++) {
+            loss += NumPute.crossEntropy(this.batchOutput[b], trueLabels.get(b));
+        }
 
-        Data input = layer.getLayerInput();
-        Data poolOutput = this.evalMaxPooling(input, size, stride);
-        layer.setLayerOutput(poolOutput);
+        return loss / trueLabels.size();
     }
 
     /**
-     * Logic for a max pooling operation on a tensor.
-     * @param input
-     * @return
+     * Applies the gradients accumulated over the given number of samples to every layer's weights in one sweep of the
+     * optimizer over the parameter buffer, which also clears them.
+     * @param samples
      */
-    private Data evalMaxPooling(Data input, int size, int stride) {
-        int m = input.getDimensions()[0];
-        int n = input.getDimensions()[1];
-        int o = input.getDimensions()[2];
-        int rm = ((m - size) / stride) + 1;
-        int rn = ((n - size) / stride) + 1;
-
-        double[][][] result = new double[rm][rn][o];
-
-        for (int i = 0; i < rm; i = i + stride) {
-            for (int j = 0; j < rn; j = j + stride) {
-                for (int k = 0; k < o; k++) {
-                    int si = i / stride;
-                    int sj = j / stride;
-                    List<Double> pool = new ArrayList<>();
-
-                    for (int l = 0; l < size; l++) {
-                        for (int p = 0; p < size; p++) {
-                            pool.add(input.read3d()[i + l][j + p][k]);
-                        }
-                    }
-
-                    result[si][sj][k] =  Collections.max(pool);
-                }
-            }
+    void applyGradients(int samples) {
+        if (this.parameters == null) {
+            return;
         }
 
-        Data output = new Data();
-        output.write(result);
-        return output;
+        this.optimizer.update(this.parameters, samples, this.pool);
+
+        for (int i = 0; i < this.layers.size(); i++) {
+            this.layers.get(i).refreshKernelMatrix();
+        }
     }
 
     /**
-     * Logic for the fully connected activation layer.
-     * @param layer
+     * Returns the packed weights and gradients of the network, or null before it first runs.
      * @return
      */
-    private double[] activate(Layer layer) {
-        double[] output = new double[this.classes.length];
+    Parameters getParameters() {
+        return this.parameters;
+    }
 
-        execConvolutionalLayer(layer);
-        Data convOutput = layer.getLayerOutput();
-        int convOutputLength = convOutput.getDimensions()[2];
+    /**
+     * Returns an immutable copy of the network's current schedule, classes and weights, which any number of threads
+     * can predict with at once, each through an InferenceContext of its own.
+     * @return
+     */
+    public Model toModel() {
+        if (this.layers.isEmpty() || this.inputShape == null) {
+            throw new RuntimeException("The network must run before it can be made into a model.");
+        }
 
-        if (this.classes.length != convOutputLength) {
-            String message = String.format("Activation Error: Expected %d classes, evaluated %d output classes",
-                    this.classes.length,
-                    convOutputLength
-            );
+        return new Model(this.schedule, this.classes, this.layers, this.inputShape);
+    }
 
-            throw new RuntimeException(message);
-        }
+    /**
+     * Returns the shape of a sample the network last ran on or was restored with, or null before either.
+     * @return
+     */
+    int[] getInputShape() {
+        return this.inputShape;
+    }
 
-        for (int i = 0; i < convOutput.getDimensions()[2]; i++) {
-            output[i] = convOutput.read3d()[0][0][i];
+    /**
+     * Snapshots the network's schedule, weights and optimizer settings, and writes them to the given file on a
+     * background thread. Only the snapshot is taken on the calling thread, so training can carry on while the file
+     * is written.
+     * @param filename
+     * @return Future that completes once the checkpoint is on disk.
+     */
+    public Future<?> checkpoint(String filename) {
+        final Checkpoint snapshot = Checkpoint.snapshot(this);
+
+        if (this.checkpointWriter == null) {
+            this.checkpointWriter = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "convnet-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
 
-        output = NumPute.softmax(output);
+        this.lastCheckpoint = this.checkpointWriter.submit(() -> {
+            snapshot.write(filename);
+            return null;
+        });
 
-        return output;
+        return this.lastCheckpoint;
     }
 
-    private double calcLoss(int[] trueLabel) {
-        double loss = NumPute.crossEntropy(this.output, trueLabel);
-        return loss;
+    /**
+     * Rebuilds a network from a checkpoint written by checkpoint.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static CNN restore(String filename) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(filename);
+        CNN network = new CNN();
+
+        network.setSchedule(checkpoint.getScheduleLayers(), checkpoint.getIterations());
+        network.setPrecision(checkpoint.getPrecision());
+        network.setBatchSize(checkpoint.getBatchSize());
+        network.setKernelSize(checkpoint.getKernelSize());
+        for (int i = 0; i < checkpoint.getConvolutions().length; i++) {
+            network.setConvolution(i, checkpoint.getConvolutions()[i]);
+        }
+        network.optimizer = checkpoint.getOptimizer();
+        network.setClasses(checkpoint.getClasses());
+        network.layers.addAll(checkpoint.getLayers());
+        network.inputShape = checkpoint.getInputShape();
+
+        return network;
     }
 
     /**
-     * Logic for backpropagation on a convolutional layer.
-     * @param layer
-     * @param nextLayer
+     * Checkpoints the network if the schedule asks for one after the given number of completed iterations.
+     * @param iteration
      */
-    private void backpropagateConv(Layer layer, Layer nextLayer) {
-        Data currLayerOutput = layer.getLayerOutput();
-        int cm = currLayerOutput.getDimensions()[0];
-        int cn = currLayerOutput.getDimensions()[1];
-        int co = currLayerOutput.getDimensions()[2];
+    void checkpointIfDue(int iteration) {
+        int interval = this.schedule.getCheckpointInterval();
 
-        int nErrLength = nextLayer.getLayerErrorsLength();
+        if (interval > 0 && this.schedule.getCheckpointPath() != null && iteration % interval == 0) {
+            checkpoint(this.schedule.getCheckpointPath());
+        }
+    }
 
-        if (co != nErrLength) {
-            throw new RuntimeException("Backprop error: mismatched layer outputs vs nextLayer inputs");
+    /**
+     * Waits for the most recent checkpoint to reach the disk, so the end of training is never lost to a pending
+     * write.
+     */
+    void awaitCheckpoint() {
+        if (this.lastCheckpoint == null) {
+            return;
         }
 
-        for (int i = 0; i < co; i++) {
-            int[] ch = new int[]{0, cm};
-            int[] cw = new int[]{0, cn};
-            int[] cd = new int[]{i, i + 1};
-            double[][] cOutputMap = currLayerOutput.slice3d(ch, cw, cd)[0];
+        try {
+            this.lastCheckpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing checkpoint.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Checkpoint failed.", e.getCause());
+        }
+    }
 
-            double[][] nErrorMap = nextLayer.getLayerErrorByIndex(i).read2d();
+    /**
+     * Builds the layers and packs their weights by running one sample forward, if the network has not run yet or was
+     * restored without running.
+     * @param sample
+     */
+    void buildLayers(Data sample) {
+        if (this.layers.isEmpty() || this.parameters == null) {
+            setInputData(sample);
+            feedforward();
+        }
+    }
 
-            for (int k = 0; k < layer.getKernelsLength(); k++) {
-                Data kernel = layer.getKernelByIndex(k);
-                double bias = layer.getBiasByIndex(k);
+    /**
+     * Returns a network that shares this network's schedule, classes and weights, with layers of its own for
+     * activations and gradients. Its layers run single-threaded, since replicas are themselves run in parallel.
+     * @return
+     */
+    CNN replicate() {
+        CNN replica = new CNN();
+        replica.schedule = this.schedule;
+        replica.classes = this.classes;
+        replica.optimizer = this.optimizer;
+        replica.currentAction = this.currentAction;
+        replica.pool = new ForkJoinPool(1);
+        replica.metrics = this.metrics;
+
+        for (Layer layer : this.layers) {
+            replica.layers.add(layer.replicate());
+        }
 
-                Data input = layer.getLayerInput();
-                Data activationMap = this.evalValidConvolution(input, kernel, bias);
-            }
+        if (this.parameters != null) {
+            replica.parameters = this.parameters.replicate(replica.layers);
         }
-    }
 
-    private void updateKernel() {
+        return replica;
     }
 
-    private void updateBias() {
+    /**
+     * Shuts down the thread pool of a replica.
+     */
+    void release() {
+        if (this.pool != ForkJoinPool.commonPool()) {
+            this.pool.shutdown();
+        }
     }
 
     /**
      * Set the schedule for the CNN to follow. Schedule should be an array of the desired layers, beginning with
      * an input layer, followed immediately by a convolutional layer, any hidden layers, and finishing with an
-     * activation layer to determine the prediction matrix.
+     * activation layer to determine the prediction matrix. A "relu", "leakyrelu" or "sigmoid" stage applies that
+     * nonlinearity to the output of the layer before it; after a "conv" layer it is fused into the convolution.
      * @param layers
      * @param iterations
      */
-    private void setSchedule(String[] layers, int iterations) {
+    public void setSchedule(String[] layers, int iterations) {
         this.schedule.setLayers(layers);
         this.schedule.setIterations(iterations);
+        this.plan = null;
     }
 
     /**
      * @param layers
      */
-    private void setSchedule(String[] layers) {
+    public void setSchedule(String[] layers) {
         this.schedule.setLayers(layers);
+        this.plan = null;
     }
 
     private void setCurrentAction(String action) {
@@ -399,16 +515,135 @@ public class CNN {
         return this.currentAction;
     }
 
+    /**
+     * Set the height and width of the kernels of conv layers. Must be chosen before the network first runs.
+     * @param kernelSize
+     */
+    public void setKernelSize(int kernelSize) {
+        this.schedule.setKernelSize(kernelSize);
+        this.plan = null;
+    }
+
+    /**
+     * Set the algorithm the conv layer at the given schedule index convolves with: "gemm", "winograd", "fft", or "auto"
+     * (default), which picks gemm or fft by the layer's shapes. Winograd needs 3x3 or 5x5 kernels.
+     * @param layerIndex
+     * @param convolution
+     */
+    public void setConvolution(int layerIndex, String convolution) {
+        this.schedule.setConvolution(layerIndex, convolution);
+        this.plan = null;
+    }
+
+    /**
+     * Zeroes the given fraction of each layer's kernel weights, those of smallest magnitude. Layers left sparse enough
+     * switch to sparse convolution, which skips zero weights, wherever their convolution is "auto". Training further
+     * grows pruned weights back, so prune again once done.
+     * @param sparsity Fraction of each layer's weights to zero, from 0 to 1.
+     */
+    public void prune(double sparsity) {
+        if (this.layers.isEmpty()) {
+            throw new RuntimeException("The network must run before it can be pruned.");
+        }
+
+        for (Layer layer : this.layers) {
+            if (layer.getKernelsLength() > 0) {
+                layer.prune(sparsity);
+            }
+        }
+
+        this.plan = null;
+    }
+
+    /**
+     * Turns recording of per-layer time, GFLOP/s, allocation and activation sizes on or off. While on, the table of
+     * everything recorded is printed at the end of train, and getMetrics returns the recorder, to add listeners to or
+     * read the table from. Off by default, when a pass costs one null check per layer.
+     * @param enabled
+     */
+    public void setMetrics(boolean enabled) {
+        if (!enabled) {
+            this.metrics = null;
+        } else if (this.metrics == null) {
+            this.metrics = new Metrics();
+        }
+    }
+
+    /**
+     * Returns the per-layer metrics, or null if they are off.
+     * @return
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Set the precision the network is built and run in, either "float64" or "float32". Must be chosen before the
+     * network first runs, since layers are built in the precision current at that time.
+     * @param precision
+     */
+    public void setPrecision(String precision) {
+        this.schedule.setPrecision(precision);
+        this.plan = null;
+    }
+
+    /**
+     * Set the number of threads the layers may spread their work across. By default the common pool is used.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        if (this.pool != ForkJoinPool.commonPool()) {
+            this.pool.shutdown();
+        }
+
+        this.pool = new ForkJoinPool(threads);
+        this.plan = null;
+    }
+
+    /**
+     * Set the number of training samples run through the network together per pass.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.schedule.setBatchSize(batchSize);
+    }
+
+    /**
+     * Set the number of worker threads that train on separate shards of the samples with shared weights.
+     * @param workers
+     */
+    public void setWorkers(int workers) {
+        this.schedule.setWorkers(workers);
+    }
+
     public void setLearningRate(double rate) {
-        this.learningRate = rate;
+        this.optimizer.setLearningRate(rate);
     }
 
     public double getLearningRate() {
-        return this.learningRate;
+        return this.optimizer.getLearningRate();
+    }
+
+    /**
+     * Set the optimizer that applies each mini-batch's gradients: "sgd", "nesterov", "adam" or "adamw". Its other
+     * settings are on getOptimizer.
+     * @param optimizer
+     */
+    public void setOptimizer(String optimizer) {
+        this.optimizer.setName(optimizer);
+    }
+
+    public Optimizer getOptimizer() {
+        return this.optimizer;
     }
 
-    private void setClasses(String[] classes) {
+    public void setClasses(String[] classes) {
         this.classes = classes;
+        this.plan = null;
+    }
+
+    public String[] getClasses() {
+        return this.classes;
     }
 
     private void setClasses(Map<Integer, String> classes) {
@@ -423,18 +658,19 @@ public class CNN {
         this.classes = values;
     }
 
-    private void setOutput(double[] output) {
-        this.output = output;
+    private void setOutput(double[][] output) {
+        this.batchOutput = output;
+        this.output = output[0];
     }
 
     private void setInputData(Data input) {
-        this.inputData = input;
+        this.inputData = input.toPrecision(this.schedule.getPrecision());
     }
 
     private void setInputData(double[][][] input) {
         Data newInput = new Data();
         newInput.write(input);
-        this.inputData = newInput;
+        setInputData(newInput);
     }
 }
 
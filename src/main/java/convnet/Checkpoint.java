@@ -0,0 +1,293 @@
+package convnet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Checkpoint class holds a point-in-time copy of a network's schedule, layers, kernels, biases, and optimizer
+ * settings and state, and reads and writes it as a binary file.
+ *
+ * Taking a snapshot copies the weights into buffers of the checkpoint's own, which is a memory copy and cheap next to
+ * a training step. From then on the network and the checkpoint share nothing, so the checkpoint can be written by a
+ * background thread while training carries on updating the weights.
+ * @author Jared Gorski
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x434E4E43; // "CNNC"
+    private static final int VERSION = 1;
+
+    private String[] scheduleLayers;
+    private int iterations;
+    private String precision;
+    private int batchSize;
+    private int kernelSize;
+    private String[] convolutions; // Convolution algorithm by schedule layer index.
+    private int[] inputShape; // Shape of a sample the network last ran on, or null if it never ran.
+    private Optimizer optimizer = new Optimizer();
+    private String[] classes;
+    private List<Layer> layers = new ArrayList<>();
+
+    private Checkpoint() {}
+
+    /**
+     * Copies the current state of the network.
+     * @param network
+     * @return
+     */
+    static Checkpoint snapshot(CNN network) {
+        Checkpoint checkpoint = new Checkpoint();
+        Schedule schedule = network.getSchedule();
+        checkpoint.scheduleLayers = schedule.getLayers() == null ? new String[0] : schedule.getLayers().clone();
+        checkpoint.iterations = schedule.getIterations();
+        checkpoint.precision = schedule.getPrecision();
+        checkpoint.batchSize = schedule.getBatchSize();
+        checkpoint.kernelSize = schedule.getKernelSize();
+        checkpoint.convolutions = new String[checkpoint.scheduleLayers.length];
+
+        for (int i = 0; i < checkpoint.convolutions.length; i++) {
+            checkpoint.convolutions[i] = schedule.getConvolution(i);
+        }
+
+        checkpoint.inputShape = network.getInputShape() == null ? null : network.getInputShape().clone();
+
+        checkpoint.optimizer = network.getOptimizer().copy();
+        checkpoint.classes = network.getClasses() == null ? null : network.getClasses().clone();
+
+        for (Layer layer : network.getLayers()) {
+            checkpoint.layers.add(layer.copy());
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file beside the target, then moves it into place, so an interrupted
+     * write never replaces an earlier checkpoint with a partial one.
+     * @param filename
+     * @throws IOException
+     */
+    void write(String filename) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(this.scheduleLayers.length);
+            for (String scheduleLayer : this.scheduleLayers) {
+                out.writeUTF(scheduleLayer);
+            }
+            out.writeInt(this.iterations);
+            out.writeUTF(this.precision);
+            out.writeInt(this.batchSize);
+            out.writeInt(this.kernelSize);
+            for (String convolution : this.convolutions) {
+                out.writeUTF(convolution);
+            }
+            out.writeInt(this.inputShape == null ? -1 : this.inputShape.length);
+            if (this.inputShape != null) {
+                for (int dimension : this.inputShape) {
+                    out.writeInt(dimension);
+                }
+            }
+
+            out.writeUTF(this.optimizer.getName());
+            out.writeDouble(this.optimizer.getLearningRate());
+            out.writeDouble(this.optimizer.getMomentum());
+            out.writeDouble(this.optimizer.getBeta1());
+            out.writeDouble(this.optimizer.getBeta2());
+            out.writeDouble(this.optimizer.getEpsilon());
+            out.writeDouble(this.optimizer.getWeightDecay());
+            out.writeLong(this.optimizer.getStep());
+            writeState(out, this.optimizer.getVelocity());
+            writeState(out, this.optimizer.getSecondMoment());
+
+            out.writeInt(this.classes == null ? -1 : this.classes.length);
+            if (this.classes != null) {
+                for (String className : this.classes) {
+                    out.writeUTF(className);
+                }
+            }
+
+            out.writeInt(this.layers.size());
+            for (Layer layer : this.layers) {
+                out.writeUTF(layer.getLayerType());
+                out.writeInt(layer.getLayerIndex());
+                out.writeUTF(layer.getPrecision());
+                out.writeInt(layer.getNeuronsLength());
+                out.writeInt(layer.getPoolSize());
+                out.writeInt(layer.getPoolStride());
+
+                out.writeInt(layer.getKernelsLength());
+                for (int k = 0; k < layer.getKernelsLength(); k++) {
+                    layer.getKernelByIndex(k).save(out);
+                    out.writeDouble(layer.getBiasByIndex(k));
+                }
+            }
+
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a checkpoint written by write.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    static Checkpoint read(String filename) throws IOException {
+        Checkpoint checkpoint = new Checkpoint();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a network checkpoint: " + filename);
+            }
+
+            checkpoint.scheduleLayers = new String[in.readInt()];
+            for (int i = 0; i < checkpoint.scheduleLayers.length; i++) {
+                checkpoint.scheduleLayers[i] = in.readUTF();
+            }
+            checkpoint.iterations = in.readInt();
+            checkpoint.precision = in.readUTF();
+            checkpoint.batchSize = in.readInt();
+            checkpoint.kernelSize = in.readInt();
+            checkpoint.convolutions = new String[checkpoint.scheduleLayers.length];
+            for (int i = 0; i < checkpoint.convolutions.length; i++) {
+                checkpoint.convolutions[i] = in.readUTF();
+            }
+            int inputShapeLength = in.readInt();
+            if (inputShapeLength >= 0) {
+                checkpoint.inputShape = new int[inputShapeLength];
+                for (int i = 0; i < inputShapeLength; i++) {
+                    checkpoint.inputShape[i] = in.readInt();
+                }
+            }
+
+            checkpoint.optimizer.setName(in.readUTF());
+            checkpoint.optimizer.setLearningRate(in.readDouble());
+            checkpoint.optimizer.setMomentum(in.readDouble());
+            checkpoint.optimizer.setBetas(in.readDouble(), in.readDouble());
+            checkpoint.optimizer.setEpsilon(in.readDouble());
+            checkpoint.optimizer.setWeightDecay(in.readDouble());
+            long step = in.readLong();
+            checkpoint.optimizer.setState(step, readState(in), readState(in));
+
+            int classesLength = in.readInt();
+            if (classesLength >= 0) {
+                checkpoint.classes = new String[classesLength];
+                for (int i = 0; i < classesLength; i++) {
+                    checkpoint.classes[i] = in.readUTF();
+                }
+            }
+
+            int layersLength = in.readInt();
+            for (int l = 0; l < layersLength; l++) {
+                Layer layer = Layer.restore(in.readUTF(), in.readInt());
+                layer.setPrecision(in.readUTF());
+                layer.setNeuronsLength(in.readInt());
+                layer.setPoolSize(in.readInt());
+                layer.setPoolStride(in.readInt());
+                layer.setClasses(checkpoint.classes);
+
+                int kernelsLength = in.readInt();
+                for (int k = 0; k < kernelsLength; k++) {
+                    layer.setKernelByIndex(k, Data.load(in));
+                    layer.setBiasByIndex(k, in.readDouble());
+                }
+
+                checkpoint.layers.add(layer);
+            }
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Writes one array of optimizer state, or a length of -1 for none.
+     */
+    private static void writeState(DataOutputStream out, double[] state) throws IOException {
+        out.writeInt(state == null ? -1 : state.length);
+
+        if (state != null) {
+            for (double value : state) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    private static double[] readState(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        double[] state = new double[length];
+
+        for (int i = 0; i < length; i++) {
+            state[i] = in.readDouble();
+        }
+
+        return state;
+    }
+
+    String[] getScheduleLayers() {
+        return this.scheduleLayers;
+    }
+
+    int getIterations() {
+        return this.iterations;
+    }
+
+    String getPrecision() {
+        return this.precision;
+    }
+
+    int getBatchSize() {
+        return this.batchSize;
+    }
+
+    int getKernelSize() {
+        return this.kernelSize;
+    }
+
+    String[] getConvolutions() {
+        return this.convolutions;
+    }
+
+    int[] getInputShape() {
+        return this.inputShape;
+    }
+
+    Optimizer getOptimizer() {
+        return this.optimizer;
+    }
+
+    String[] getClasses() {
+        return this.classes;
+    }
+
+    List<Layer> getLayers() {
+        return this.layers;
+    }
+}
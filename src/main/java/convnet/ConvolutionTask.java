@@ -0,0 +1,180 @@
+package convnet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The ConvolutionTask class computes a block of a convolutional layer's output: a range of output rows for a range of
+ * kernels. Rows are counted across every sample of a mini-batch, so one block may span the end of one sample and
+ * the start of the next. Large blocks are split in half, by rows first and then by kernels, until each piece is small
+ * enough to run as one im2col and GEMM over its own rows. Every piece writes its results straight into the shared,
+ * preallocated output, and no two pieces write the same element. Patch matrices are lowered into the workspace's
+ * per-thread scratch, so no block allocates.
+ * @author Jared Gorski
+ */
+class ConvolutionTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_WORK = 1 << 16; // Multiply-adds below which a block is not split any further.
+    private static final int MIN_KERNELS = 8; // Kernels below which a block is not split by kernel.
+    private static final int CHUNK_ROWS = 64; // Output rows whose bias, product and nonlinearity are written together.
+
+    private final Data input;
+    private final Layer layer;
+    private final Data output;
+    private final Workspace workspace;
+    private final int stride;
+    private final int rowStart;
+    private final int rowEnd;
+    private final int kernelStart;
+    private final int kernelEnd;
+
+    private ConvolutionTask(Data input, Layer layer, Data output, Workspace workspace, int stride,
+                            int rowStart, int rowEnd, int kernelStart, int kernelEnd) {
+        this.input = input;
+        this.layer = layer;
+        this.output = output;
+        this.workspace = workspace;
+        this.stride = stride;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+        this.kernelStart = kernelStart;
+        this.kernelEnd = kernelEnd;
+    }
+
+    /**
+     * Convolves the whole mini-batch into the output. Work too small to split, a pool of one thread, or no pool at all
+     * runs straight on the calling thread without creating any tasks.
+     * @param pool Pool to split the work across, or null for the calling thread.
+     * @param input
+     * @param layer
+     * @param output
+     * @param workspace
+     * @param stride
+     */
+    static void run(ForkJoinPool pool, Data input, Layer layer, Data output, Workspace workspace, int stride) {
+        int rows = output.getBatchSize() * output.getDimensions()[0];
+        int kernels = layer.getKernelsLength();
+
+        if (pool == null || pool.getParallelism() == 1 || work(output, layer, rows, kernels) <= MIN_WORK) {
+            convolve(input, layer, output, workspace, stride, 0, rows, 0, kernels);
+        } else {
+            pool.invoke(new ConvolutionTask(input, layer, output, workspace, stride, 0, rows, 0, kernels));
+        }
+    }
+
+    @Override
+    protected void compute() {
+        int rows = this.rowEnd - this.rowStart;
+        int kernels = this.kernelEnd - this.kernelStart;
+        long work = work(this.output, this.layer, rows, kernels);
+
+        if (work > MIN_WORK && rows > 1) {
+            int rowMid = this.rowStart + rows / 2;
+            invokeAll(
+                    new ConvolutionTask(input, layer, output, workspace, stride,
+                            rowStart, rowMid, kernelStart, kernelEnd),
+                    new ConvolutionTask(input, layer, output, workspace, stride,
+                            rowMid, rowEnd, kernelStart, kernelEnd)
+            );
+        } else if (work > MIN_WORK && kernels >= 2 * MIN_KERNELS) {
+            int kernelMid = this.kernelStart + (kernels / 2 / 4) * 4;
+            invokeAll(
+                    new ConvolutionTask(input, layer, output, workspace, stride,
+                            rowStart, rowEnd, kernelStart, kernelMid),
+                    new ConvolutionTask(input, layer, output, workspace, stride,
+                            rowStart, rowEnd, kernelMid, kernelEnd)
+            );
+        } else {
+            convolve(input, layer, output, workspace, stride, rowStart, rowEnd, kernelStart, kernelEnd);
+        }
+    }
+
+    /**
+     * Multiply-adds needed to compute the given number of output rows for the given number of kernels.
+     */
+    private static long work(Data output, Layer layer, int rows, int kernels) {
+        return (long) rows * output.getDimensions()[1] * kernels * layer.getKernelByIndex(0).length();
+    }
+
+    /**
+     * Lowers the block's rows and multiplies them by the block's kernels, on top of the kernels' biases. Output is
+     * written a chunk of rows at a time: biases, then the product, then the layer's nonlinearity, so each chunk is
+     * still in cache when the nonlinearity rewrites it rather than taking another pass over the whole output.
+     */
+    private static void convolve(Data input, Layer layer, Data output, Workspace workspace, int stride,
+                                 int rowStart, int rowEnd, int kernelStart, int kernelEnd) {
+        int[] kernelDims = layer.getKernelByIndex(0).getDimensions();
+        int km = kernelDims[0];
+        int kn = kernelDims[1];
+        int patchLength = layer.getKernelByIndex(0).length();
+        int kernelsLength = layer.getKernelsLength();
+        int kms = output.getDimensions()[0];
+        int kns = output.getDimensions()[1];
+        int pixels = (rowEnd - rowStart) * kns;
+        int kernels = kernelEnd - kernelStart;
+        int outputOff = output.getOffset() + rowStart * kns * kernelsLength + kernelStart;
+        int nonlinearity = Nonlinearity.of(layer.getNonlinearity());
+
+        if (input.isFloat()) {
+            float[] patches = workspace.floatPatches(pixels * patchLength);
+            float[] result = output.getFloatBuffer();
+
+            for (int row = rowStart; row < rowEnd; row = nextSampleRow(row, kms)) {
+                int end = Math.min(rowEnd, nextSampleRow(row, kms));
+                NumPute.im2col(input, row / kms, km, kn, stride, row % kms, end - (row / kms) * kms,
+                        patches, (row - rowStart) * kns * patchLength);
+            }
+
+            for (int p0 = 0; p0 < pixels; p0 += CHUNK_ROWS) {
+                int rows = Math.min(CHUNK_ROWS, pixels - p0);
+                int chunkOff = outputOff + p0 * kernelsLength;
+
+                for (int p = 0; p < rows; p++) {
+                    for (int k = 0; k < kernels; k++) {
+                        result[chunkOff + p * kernelsLength + k] = (float) layer.getBiasByIndex(kernelStart + k);
+                    }
+                }
+
+                NumPute.gemm(rows, kernels, patchLength,
+                        patches, p0 * patchLength, patchLength,
+                        layer.getKernelMatrixFloat(), kernelStart, kernelsLength,
+                        result, chunkOff, kernelsLength);
+                Nonlinearity.apply(nonlinearity, result, chunkOff, rows, kernels, kernelsLength);
+            }
+        } else {
+            double[] patches = workspace.patches(pixels * patchLength);
+            double[] result = output.getBuffer();
+
+            for (int row = rowStart; row < rowEnd; row = nextSampleRow(row, kms)) {
+                int end = Math.min(rowEnd, nextSampleRow(row, kms));
+                NumPute.im2col(input, row / kms, km, kn, stride, row % kms, end - (row / kms) * kms,
+                        patches, (row - rowStart) * kns * patchLength);
+            }
+
+            for (int p0 = 0; p0 < pixels; p0 += CHUNK_ROWS) {
+                int rows = Math.min(CHUNK_ROWS, pixels - p0);
+                int chunkOff = outputOff + p0 * kernelsLength;
+
+                for (int p = 0; p < rows; p++) {
+                    for (int k = 0; k < kernels; k++) {
+                        result[chunkOff + p * kernelsLength + k] = layer.getBiasByIndex(kernelStart + k);
+                    }
+                }
+
+                NumPute.gemm(rows, kernels, patchLength,
+                        patches, p0 * patchLength, patchLength,
+                        layer.getKernelMatrix(), kernelStart, kernelsLength,
+                        result, chunkOff, kernelsLength);
+                Nonlinearity.apply(nonlinearity, result, chunkOff, rows, kernels, kernelsLength);
+            }
+        }
+    }
+
+    /**
+     * Returns the first row of the sample following the one the given batch row belongs to.
+     */
+    private static int nextSampleRow(int row, int rowsPerSample) {
+        return (row / rowsPerSample + 1) * rowsPerSample;
+    }
+}
@@ -1,16 +1,252 @@
 package convnet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
 /**
  * The Data class includes a set of methods for interacting with the data currently being operated on.
  * This includes methods to write new data, read existing data, clear existing data, save existing data
  * to a file, and return supervised training information for the CNN.
+ *
+ * Data is backed by a single flat buffer laid out row-major as [ Height, Width, Depth ], addressed through
+ * an offset and a stride per dimension. Slices are views that share the buffer of the Data they were taken from,
+ * so no values are copied when a window of the data is operated on. The buffer holds either 64-bit or 32-bit values,
+ * according to the precision the data was created with.
+ *
+ * Data may hold a mini-batch of samples of the same dimensions, stored one after another in the buffer. Dimensions,
+ * strides and element access describe a single sample; sample(n) returns a view of the n-th one.
  * @author Jared Gorski
  */
 public class Data {
 
-    private int[] dimensions = new int[3]; // [ Height, Width, Depth ]
-    private double[][] data2d = null;
-    private double[][][] data3d = null;
+    private int[] dimensions = new int[3]; // [ Height, Width, Depth ]; a depth of 0 marks 2d data.
+    private int[] strides = new int[3]; // Buffer step for each of [ Height, Width, Depth ].
+    private int offset = 0; // Position of element [0][0][0] within the buffer.
+    private double[] buffer = null; // Flat backing storage in float64 precision, possibly shared with views.
+    private float[] floatBuffer = null; // Flat backing storage in float32 precision, possibly shared with views.
+    private int batchSize = 1; // Number of samples held.
+    private int batchStride = 0; // Buffer step from one sample to the next.
+
+    public Data() {}
+
+    /**
+     * Allocates zeroed float64 data of the given 2d or 3d shape.
+     * @param shape
+     */
+    public Data(int[] shape) {
+        this(shape, "float64");
+    }
+
+    /**
+     * Allocates zeroed data of the given 2d or 3d shape and precision, either "float64" or "float32".
+     * @param shape
+     * @param precision
+     */
+    public Data(int[] shape, String precision) {
+        this(shape, precision, 1);
+    }
+
+    /**
+     * Allocates a zeroed mini-batch of the given number of samples, each of the given shape and precision.
+     * @param shape
+     * @param precision
+     * @param batchSize
+     */
+    public Data(int[] shape, String precision, int batchSize) {
+        int depth = shape.length > 2 ? shape[2] : 0;
+        int length = shape[0] * shape[1] * Math.max(depth, 1);
+
+        switch (precision) {
+            case "float64":
+                wrap(new double[length * batchSize], shape[0], shape[1], depth);
+                break;
+            case "float32":
+                wrap(new float[length * batchSize], shape[0], shape[1], depth);
+                break;
+            default:
+                throw new RuntimeException("Unknown precision: " + precision);
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Copies samples of equal dimensions into one contiguous mini-batch, in the precision of the first sample.
+     * @param samples
+     * @return
+     */
+    public static Data batch(List<Data> samples) {
+        Data first = samples.get(0);
+        Data batch = new Data(first.getDimensions(), first.getPrecision(), samples.size());
+        batch(samples, batch);
+
+        return batch;
+    }
+
+    /**
+     * Copies samples of equal dimensions into a mini-batch of the same dimensions and size, in the mini-batch's
+     * precision.
+     * @param samples
+     * @param batch
+     */
+    static void batch(List<Data> samples, Data batch) {
+        int[] dims = batch.getDimensions();
+
+        for (int b = 0; b < samples.size(); b++) {
+            Data sample = samples.get(b);
+            int[] sampleDims = sample.getDimensions();
+
+            if (sampleDims[0] != dims[0] || sampleDims[1] != dims[1] || sampleDims[2] != dims[2]) {
+                throw new RuntimeException("Cannot batch odd-sized samples.");
+            }
+
+            batch.copyFrom(sample, b);
+        }
+    }
+
+    /**
+     * Decodes a sample stored as unsigned bytes, row-major from the given position of a byte buffer, into the n-th
+     * sample of a mini-batch, in the mini-batch's precision. The buffer is read in place, so a record of a mapped
+     * file goes straight into the mini-batch.
+     * @param record
+     * @param position
+     * @param batch
+     * @param n
+     */
+    static void batch(ByteBuffer record, int position, Data batch, int n) {
+        int[] dims = batch.dimensions;
+        int base = n * batch.batchStride;
+        int p = position;
+
+        for (int i = 0; i < dims[0]; i++) {
+            for (int j = 0; j < dims[1]; j++) {
+                for (int k = 0; k < batch.depth(); k++) {
+                    int index = base + batch.index(i, j, k);
+                    int value = record.get(p++) & 0xff;
+
+                    if (batch.floatBuffer != null) {
+                        batch.floatBuffer[index] = value;
+                    } else {
+                        batch.buffer[index] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a view of the n-th sample of a mini-batch.
+     * @param n
+     * @return
+     */
+    public Data sample(int n) {
+        if (n < 0 || n >= this.batchSize) {
+            throw new RuntimeException("Sample exceeds batch size.");
+        }
+
+        Data view = new Data();
+        view.buffer = this.buffer;
+        view.floatBuffer = this.floatBuffer;
+        view.strides = this.strides;
+        view.dimensions = this.dimensions;
+        view.offset = this.offset + n * this.batchStride;
+        view.batchStride = this.batchStride;
+
+        return view;
+    }
+
+    /**
+     * Returns a contiguous view of this data's buffer, from this data's first element, as a mini-batch of the given
+     * shape and size. Lets one buffer hold data of different shapes in turn.
+     * @param shape
+     * @param batchSize
+     * @return
+     */
+    public Data reshape(int[] shape, int batchSize) {
+        int depth = shape.length > 2 ? shape[2] : 0;
+        Data view = new Data();
+
+        if (this.isFloat()) {
+            view.wrap(this.floatBuffer, shape[0], shape[1], depth);
+        } else {
+            view.wrap(this.buffer, shape[0], shape[1], depth);
+        }
+
+        view.offset = this.offset;
+        view.batchSize = batchSize;
+        int capacity = this.isFloat() ? this.floatBuffer.length : this.buffer.length;
+
+        if (this.offset + view.batchStride * batchSize > capacity) {
+            throw new RuntimeException("Cannot reshape data into a larger shape.");
+        }
+
+        return view;
+    }
+
+    /**
+     * Returns contiguous float64 data of the given 2d or 3d shape stored in the given buffer from the given offset,
+     * sharing the buffer rather than copying it.
+     * @param buffer
+     * @param offset
+     * @param shape
+     * @return
+     */
+    static Data view(double[] buffer, int offset, int[] shape) {
+        Data view = new Data();
+        view.wrap(buffer, shape[0], shape[1], shape.length > 2 ? shape[2] : 0);
+        view.offset = offset;
+
+        return view;
+    }
+
+    /**
+     * Returns the number of samples held.
+     * @return
+     */
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    /**
+     * Copies the values of a sample of equal dimensions into this sample.
+     * @param source
+     */
+    public void copyFrom(Data source) {
+        copyFrom(source, 0);
+    }
+
+    /**
+     * Copies the values of a sample of equal dimensions into the n-th sample of this mini-batch.
+     */
+    private void copyFrom(Data source, int n) {
+        int[] dims = this.dimensions;
+        int base = n * this.batchStride;
+
+        for (int i = 0; i < dims[0]; i++) {
+            for (int j = 0; j < dims[1]; j++) {
+                for (int k = 0; k < this.depth(); k++) {
+                    int index = base + index(i, j, k);
+
+                    if (this.floatBuffer != null) {
+                        this.floatBuffer[index] = (float) source.get(i, j, k);
+                    } else {
+                        this.buffer[index] = source.get(i, j, k);
+                    }
+                }
+            }
+        }
+    }
 
     /**
      * Stack current data on top of a 2d map of same dimensions.
@@ -20,47 +256,47 @@ public class Data {
         int m = input.length;
         int n = input[0].length;
 
-        if (this.data2d == null && this.data3d == null) {
+        if (this.isEmpty()) {
             this.write(input);
         } else {
 
             if (m != this.dimensions[0] || n != this.dimensions[1]) {
                 throw new RuntimeException("Cannot stack odd-sized map.");
-            } else if (this.dimensions[2] == 0) {
-                for (int i = 0; i < m; i++) {
-                    for (int j = 0; j < n; j++) {
-                        this.data3d[i][j][0] = this.data2d[i][j];
-                    }
-                }
-
-                this.data2d = null;
-                this.setDimensions3d();
             }
 
-            int stackIndex = this.dimensions[2]++;
+            int depth = this.depth();
+            int stackIndex = this.dimensions[2] == 0 ? 1 : this.dimensions[2];
+            Data stacked = new Data(new int[]{m, n, stackIndex + 1}, this.getPrecision());
 
             for (int i = 0; i < m; i++) {
                 for (int j = 0; j < n; j++) {
-                    this.data3d[i][j][stackIndex] = input[i][j];
+                    for (int k = 0; k < depth; k++) {
+                        stacked.set(i, j, k, this.get(i, j, k));
+                    }
+
+                    stacked.set(i, j, stackIndex, input[i][j]);
                 }
             }
+
+            this.buffer = stacked.buffer;
+            this.floatBuffer = stacked.floatBuffer;
+            this.offset = 0;
+            this.dimensions = stacked.dimensions;
+            this.strides = stacked.strides;
+            this.batchStride = stacked.batchStride;
         }
     }
 
     /**
-     * Returns a 3d slice of the data for operation.
+     * Returns a view over a 3d window of the data, or of its first sample for a mini-batch. The view shares this
+     * data's buffer, so nothing is copied.
      * @param sliceHeightPair
      * @param sliceWidthPair
      * @param sliceDepthPair
      * @return slice
      */
-    public double[][][] slice3d(int[] sliceHeightPair, int[] sliceWidthPair, int[] sliceDepthPair) {
-        int sliceH = sliceHeightPair[1] - sliceHeightPair[0];
-        int sliceW = sliceWidthPair[1] - sliceWidthPair[0];
-        int sliceD = sliceDepthPair[1] - sliceDepthPair[0];
-        double[][][] slice = new double[sliceH][sliceW][sliceD];
-
-        if (data3d == null) {
+    public Data slice(int[] sliceHeightPair, int[] sliceWidthPair, int[] sliceDepthPair) {
+        if (this.isEmpty()) {
             throw new RuntimeException("No data to slice.");
         } else if (sliceHeightPair[1] < sliceHeightPair[0] ||
                 sliceWidthPair[1] < sliceWidthPair[0] ||
@@ -68,44 +304,209 @@ public class Data {
             throw new RuntimeException("Malformed pairs.");
         } else if (sliceHeightPair[1] > dimensions[0] ||
                 sliceWidthPair[1] > dimensions[1] ||
-                sliceDepthPair[1] > dimensions[2]) {
+                sliceDepthPair[1] > this.depth()) {
             throw new RuntimeException("Slice exceeds dimensions.");
-        } else {
-            for (int i = 0; i < sliceH; i++) {
-                for (int j = 0; j < sliceW; j++) {
-                    for (int k = 0; k < sliceD; k++) {
-                        int coordI = sliceHeightPair[0] + i;
-                        int coordJ = sliceHeightPair[0] + j;
-                        int coordK = sliceHeightPair[0] + k;
-
-                        slice[coordI][coordJ][coordK] = data3d[coordI][coordJ][coordK];
-                    }
-                }
-            }
         }
 
-        return slice;
+        Data view = new Data();
+        view.buffer = this.buffer;
+        view.floatBuffer = this.floatBuffer;
+        view.strides = this.strides;
+        view.offset = index(sliceHeightPair[0], sliceWidthPair[0], sliceDepthPair[0]);
+        view.dimensions = new int[]{
+                sliceHeightPair[1] - sliceHeightPair[0],
+                sliceWidthPair[1] - sliceWidthPair[0],
+                sliceDepthPair[1] - sliceDepthPair[0]
+        };
+
+        return view;
     }
 
     /**
+     * Returns a 3d slice of the data for operation, copied into a new array.
+     * @param sliceHeightPair
+     * @param sliceWidthPair
+     * @param sliceDepthPair
+     * @return slice
      */
-    private void setDimensions2d() {
-        if (this.data2d != null) {
-            int[] shape = NumPute.shape(this.data2d);
-            this.dimensions = new int[]{shape[0], shape[1], 0};
-        } else {
-            throw new RuntimeException("No data. Cannot set dimensions.");
+    public double[][][] slice3d(int[] sliceHeightPair, int[] sliceWidthPair, int[] sliceDepthPair) {
+        return slice(sliceHeightPair, sliceWidthPair, sliceDepthPair).read3d();
+    }
+
+    /**
+     * Returns the value at the given coordinates.
+     * @param i
+     * @param j
+     * @param k
+     * @return
+     */
+    public double get(int i, int j, int k) {
+        if (this.floatBuffer != null) {
+            return this.floatBuffer[index(i, j, k)];
         }
+
+        return this.buffer[index(i, j, k)];
     }
 
     /**
+     * Sets the value at the given coordinates.
+     * @param i
+     * @param j
+     * @param k
+     * @param value
      */
-    private void setDimensions3d() {
-        if (this.data3d != null) {
-            this.dimensions = NumPute.shape(this.data3d);
+    public void set(int i, int j, int k, double value) {
+        if (this.floatBuffer != null) {
+            this.floatBuffer[index(i, j, k)] = (float) value;
         } else {
-            throw new RuntimeException("No data. Cannot set dimensions.");
+            this.buffer[index(i, j, k)] = value;
+        }
+    }
+
+    /**
+     * Returns the buffer position of the given coordinates.
+     * @param i
+     * @param j
+     * @param k
+     * @return
+     */
+    public int index(int i, int j, int k) {
+        return this.offset + i * this.strides[0] + j * this.strides[1] + k * this.strides[2];
+    }
+
+    /**
+     * Returns the flat float64 buffer backing this data, or null for float32 data. Views share the buffer of the
+     * data they were sliced from.
+     * @return
+     */
+    public double[] getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Returns the flat float32 buffer backing this data, or null for float64 data.
+     * @return
+     */
+    public float[] getFloatBuffer() {
+        return this.floatBuffer;
+    }
+
+    /**
+     * Whether the data is stored in float32 precision.
+     * @return
+     */
+    public boolean isFloat() {
+        return this.floatBuffer != null;
+    }
+
+    /**
+     * Returns the precision of the data, either "float64" or "float32".
+     * @return
+     */
+    public String getPrecision() {
+        return this.isFloat() ? "float32" : "float64";
+    }
+
+    /**
+     * Returns this data if it already has the given precision, otherwise a contiguous converted copy.
+     * @param precision
+     * @return
+     */
+    public Data toPrecision(String precision) {
+        if (precision.equals(this.getPrecision())) {
+            return this;
         }
+
+        int[] dims = this.dimensions;
+        Data converted = new Data(new int[]{dims[0], dims[1], dims[2]}, precision, this.batchSize);
+
+        for (int b = 0; b < this.batchSize; b++) {
+            converted.sample(b).copyFrom(this.sample(b));
+        }
+
+        return converted;
+    }
+
+    /**
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     */
+    public int[] getStrides() {
+        return this.strides;
+    }
+
+    /**
+     * Returns the buffer step from one sample of a mini-batch to the next.
+     * @return
+     */
+    public int getBatchStride() {
+        return this.batchStride;
+    }
+
+    /**
+     * Returns the number of elements in the data, per sample for a mini-batch.
+     * @return
+     */
+    public int length() {
+        return this.dimensions[0] * this.dimensions[1] * this.depth();
+    }
+
+    /**
+     * Whether the data occupies one unbroken run of its buffer, as opposed to being a strided window.
+     * @return
+     */
+    public boolean isContiguous() {
+        int depth = this.depth();
+        return this.strides[2] == 1 &&
+                this.strides[1] == depth &&
+                this.strides[0] == this.dimensions[1] * depth;
+    }
+
+    /**
+     * Depth as stored in the buffer; 2d data occupies a single plane.
+     * @return
+     */
+    private int depth() {
+        return Math.max(this.dimensions[2], 1);
+    }
+
+    /**
+     */
+    private boolean isEmpty() {
+        return this.buffer == null && this.floatBuffer == null;
+    }
+
+    /**
+     * Adopts the given buffer as contiguous storage of the given shape.
+     */
+    private void wrap(double[] data, int m, int n, int o) {
+        this.buffer = data;
+        this.floatBuffer = null;
+        setContiguousShape(m, n, o);
+    }
+
+    /**
+     * Adopts the given buffer as contiguous storage of the given shape.
+     */
+    private void wrap(float[] data, int m, int n, int o) {
+        this.buffer = null;
+        this.floatBuffer = data;
+        setContiguousShape(m, n, o);
+    }
+
+    /**
+     */
+    private void setContiguousShape(int m, int n, int o) {
+        int depth = Math.max(o, 1);
+        this.offset = 0;
+        this.dimensions = new int[]{m, n, o};
+        this.strides = new int[]{n * depth, depth, 1};
+        this.batchSize = 1;
+        this.batchStride = m * n * depth;
     }
 
     /**
@@ -120,42 +521,176 @@ public class Data {
      * Nullifies the current data variable.
      */
     public void nullify() {
-        if (this.dimensions[2] == 0) {
-            this.data2d = null;
-        } else {
-            this.data3d = null;
-        }
+        this.buffer = null;
+        this.floatBuffer = null;
     }
 
     /**
-     * Returns the current 2d data.
+     * Returns a copy of the current 2d data.
      * @return
      */
     public double[][] read2d() {
-        return this.data2d;
+        if (this.isEmpty() || this.dimensions[2] != 0) {
+            return null;
+        }
+
+        int m = this.dimensions[0];
+        int n = this.dimensions[1];
+        double[][] result = new double[m][n];
+
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                result[i][j] = this.get(i, j, 0);
+            }
+        }
+
+        return result;
     }
 
     /**
-     * Returns the current 3d data.
+     * Returns a copy of the current 3d data.
      * @return
      */
     public double[][][] read3d() {
-        return this.data3d;
+        if (this.isEmpty() || this.dimensions[2] == 0) {
+            return null;
+        }
+
+        int m = this.dimensions[0];
+        int n = this.dimensions[1];
+        int o = this.dimensions[2];
+        double[][][] result = new double[m][n][o];
+
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < o; k++) {
+                    result[i][j][k] = this.get(i, j, k);
+                }
+            }
+        }
+
+        return result;
     }
 
     /**
      * Saves the current data to a file for future reference.
+     * @param filename
+     * @throws IOException
      */
-    public void save() {}
+    public void save(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            save(out);
+        }
+    }
+
+    /**
+     * Writes the precision, dimensions, batch size and values of the data, every sample in order.
+     * @param out
+     * @throws IOException
+     */
+    public void save(DataOutput out) throws IOException {
+        out.writeBoolean(this.isFloat());
+        out.writeInt(this.dimensions[0]);
+        out.writeInt(this.dimensions[1]);
+        out.writeInt(this.dimensions[2]);
+        out.writeInt(this.batchSize);
+
+        for (int b = 0; b < this.batchSize; b++) {
+            Data sample = this.sample(b);
+
+            for (int i = 0; i < this.dimensions[0]; i++) {
+                for (int j = 0; j < this.dimensions[1]; j++) {
+                    for (int k = 0; k < this.depth(); k++) {
+                        if (this.isFloat()) {
+                            out.writeFloat((float) sample.get(i, j, k));
+                        } else {
+                            out.writeDouble(sample.get(i, j, k));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads data from a file written by save.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Data load(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+            return load(in);
+        }
+    }
+
+    /**
+     * Reads data written by save.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static Data load(DataInput in) throws IOException {
+        boolean isFloat = in.readBoolean();
+        int[] shape = new int[]{in.readInt(), in.readInt(), in.readInt()};
+        int batchSize = in.readInt();
+        Data data = new Data(shape, isFloat ? "float32" : "float64", batchSize);
+        int length = data.length() * batchSize;
+
+        for (int i = 0; i < length; i++) {
+            if (isFloat) {
+                data.floatBuffer[i] = in.readFloat();
+            } else {
+                data.buffer[i] = in.readDouble();
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns a contiguous copy of the data, every sample included, in the same precision.
+     * @return
+     */
+    public Data copy() {
+        Data copy = new Data(new int[]{this.dimensions[0], this.dimensions[1], this.dimensions[2]},
+                this.getPrecision(), this.batchSize);
+
+        if (this.isContiguous() && this.batchStride == this.length()) {
+            int length = this.length() * this.batchSize;
+
+            if (this.isFloat()) {
+                System.arraycopy(this.floatBuffer, this.offset, copy.floatBuffer, 0, length);
+            } else {
+                System.arraycopy(this.buffer, this.offset, copy.buffer, 0, length);
+            }
+        } else {
+            for (int b = 0; b < this.batchSize; b++) {
+                copy.sample(b).copyFrom(this.sample(b));
+            }
+        }
+
+        return copy;
+    }
 
     /**
      * Writes new 2d data for operation.
      * @param newData
      */
     public void write(double[][] newData) {
-        if (this.data2d == null) {
-            this.data2d = newData;
-            setDimensions2d();
+        if (this.isEmpty()) {
+            int m = newData.length;
+            int n = newData[0].length;
+            double[] flat = new double[m * n];
+
+            for (int i = 0; i < m; i++) {
+                System.arraycopy(newData[i], 0, flat, i * n, n);
+            }
+
+            wrap(flat, m, n, 0);
         } else {
             throw new RuntimeException("Data already exists. Cannot overwrite.");
         }
@@ -166,12 +701,60 @@ public class Data {
      * @param newData
      */
     public void write(double[][][] newData) {
-        if (this.data3d == null) {
-            this.data3d = newData;
-            setDimensions3d();
+        if (this.isEmpty()) {
+            int[] shape = NumPute.shape(newData);
+            int m = shape[0];
+            int n = shape[1];
+            int o = shape[2];
+            double[] flat = new double[m * n * o];
+
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < n; j++) {
+                    System.arraycopy(newData[i][j], 0, flat, (i * n + j) * o, o);
+                }
+            }
+
+            wrap(flat, m, n, o);
         } else {
             throw new RuntimeException("Data already exists. Cannot overwrite.");
         }
     }
-}
 
+    /**
+     * Writes new data for operation from a flat row-major buffer, which is adopted without copying.
+     * @param newData
+     * @param shape
+     */
+    public void write(double[] newData, int[] shape) {
+        if (this.isEmpty()) {
+            int depth = shape.length > 2 ? shape[2] : 0;
+
+            if (newData.length < shape[0] * shape[1] * Math.max(depth, 1)) {
+                throw new RuntimeException("Buffer too small for shape.");
+            }
+
+            wrap(newData, shape[0], shape[1], depth);
+        } else {
+            throw new RuntimeException("Data already exists. Cannot overwrite.");
+        }
+    }
+
+    /**
+     * Writes new float32 data for operation from a flat row-major buffer, which is adopted without copying.
+     * @param newData
+     * @param shape
+     */
+    public void write(float[] newData, int[] shape) {
+        if (this.isEmpty()) {
+            int depth = shape.length > 2 ? shape[2] : 0;
+
+            if (newData.length < shape[0] * shape[1] * Math.max(depth, 1)) {
+                throw new RuntimeException("Buffer too small for shape.");
+            }
+
+            wrap(newData, shape[0], shape[1], depth);
+        } else {
+            throw new RuntimeException("Data already exists. Cannot overwrite.");
+        }
+    }
+}
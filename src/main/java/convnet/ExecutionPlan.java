@@ -0,0 +1,911 @@
+package convnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The ExecutionPlan class is a Schedule compiled against the shape of its input: one typed operator per scheduled
+ * layer, in order. Compiling builds any layers that do not exist yet, infers every layer's output shape, checks the
+ * layers fit together, and sizes the buffers inference alternates between. Running the plan is then a plain loop
+ * over its operators, with no layer names to match and no layers to initialise along the way.
+ *
+ * A plan is immutable. It is compiled again when the input shape, precision, schedule or thread pool change.
+ * @author Jared Gorski
+ */
+final class ExecutionPlan {
+
+    /**
+     * One layer of a compiled plan.
+     */
+    interface Operator {
+
+        Layer getLayer();
+
+        /**
+         * Returns the shape of one sample of the operator's output.
+         */
+        int[] getOutputShape();
+
+        /**
+         * Returns the floating-point operations of one sample's forward pass, counted as direct convolution.
+         */
+        long flops();
+
+        /**
+         * Runs the layer over a mini-batch and returns its output.
+         */
+        Data forward(Data input);
+
+        /**
+         * Runs the layer over a mini-batch for inference only, writing into the given output. Nothing is kept on the
+         * layer, so the output can be overwritten as soon as the next layer has read it.
+         */
+        void infer(Data input, Data output);
+
+        /**
+         * Propagates the error of the layer's output back through it, setting the error of its input on the layer.
+         * Does nothing when the output error is null.
+         */
+        void backward(Data outputError);
+    }
+
+    private final Operator[] operators;
+    private final int[] inputShape;
+    private final String precision;
+    private final Workspace workspace;
+    private final int capacity; // Values per sample of the largest layer output.
+
+    private ExecutionPlan(Operator[] operators, int[] inputShape, String precision, Workspace workspace) {
+        this.operators = operators;
+        this.inputShape = inputShape;
+        this.precision = precision;
+        this.workspace = workspace;
+
+        int capacity = 0;
+
+        for (Operator operator : operators) {
+            int[] shape = operator.getOutputShape();
+            capacity = Math.max(capacity, shape[0] * shape[1] * Math.max(shape[2], 1));
+        }
+
+        this.capacity = capacity;
+    }
+
+    /**
+     * Compiles the schedule against input of the given sample shape. Layers missing from the given list are built
+     * and appended to it; layers already in it are reused as they are.
+     * @param schedule
+     * @param layers
+     * @param classes
+     * @param inputShape
+     * @param pool Pool the convolutional layers spread their work across.
+     * @param workspace Workspace the layers take their output buffers from.
+     * @return
+     */
+    static ExecutionPlan compile(Schedule schedule, List<Layer> layers, String[] classes, int[] inputShape,
+                                 ForkJoinPool pool, Workspace workspace) {
+        String[] names = schedule.getLayers();
+        String precision = schedule.getPrecision();
+        List<Operator> operators = new ArrayList<>();
+
+        if (names.length == 0 || !"input".equals(names[0])) {
+            throw new RuntimeException("Schedule must begin with an input layer.");
+        }
+
+        if (!"activation".equals(names[names.length - 1])) {
+            throw new RuntimeException("Schedule must end with an activation layer.");
+        }
+
+        if (classes == null) {
+            throw new RuntimeException("Classes must be set before the network runs.");
+        }
+
+        int[] shape = inputShape.clone();
+
+        for (int i = 0; i < names.length; i++) {
+            Layer layer = i < layers.size() ? layers.get(i) : null;
+            Layer template = new Layer();
+            template.setPrecision(precision);
+
+            switch (names[i]) {
+                case "input":
+                    if (i != 0) {
+                        throw new RuntimeException("Only the first layer may be an input layer.");
+                    }
+
+                    if (layer == null) {
+                        layer = template.initInputLayer(new Data());
+                    }
+
+                    operators.add(new InputOperator(layer, shape, precision));
+                    break;
+                case "conv":
+                    if (layer == null) {
+                        template.setNeuronsLength(32);
+                        template.setKernelSize(schedule.getKernelSize());
+                        layer = template.initConvolutionalLayer(layers.get(i - 1));
+                        layer.setNeuronsLength(32);
+                    }
+
+                    layer.setConvolution(chooseConvolution(schedule.getConvolution(i), layer, shape, i));
+                    layer.setNonlinearity(i + 1 < names.length && Nonlinearity.isStage(names[i + 1])
+                            ? names[i + 1] : "none");
+
+                    operators.add(new ConvOperator(layer, i, shape, precision, pool, workspace,
+                            operators.size() > 1));
+                    break;
+                case "pool":
+                    if (layer == null) {
+                        layer = template.initMaxPoolingLayer(layers.get(i - 1));
+                    }
+
+                    operators.add(new PoolOperator(layer, i, shape, precision, workspace));
+                    break;
+                case "relu":
+                case "leakyrelu":
+                case "sigmoid":
+                    if (layer == null) {
+                        layer = template.initNonlinearityLayer(layers.get(i - 1), names[i]);
+                    }
+
+                    if ("conv".equals(names[i - 1])) {
+                        // Fused: the conv layer before applies it as it writes its output, so it has no pass of
+                        // its own.
+                        layer.setLayerOutput(new Data(shape, precision));
+                    } else {
+                        operators.add(new NonlinearityOperator(layer, i, shape, precision, workspace));
+                    }
+                    break;
+                case "activation":
+                    if (layer == null) {
+                        template.setClasses(classes);
+                        layer = template.initActivationLayer(layers.get(i - 1));
+                        layer.setClasses(classes);
+                    }
+
+                    if (layer.getKernelsLength() != classes.length) {
+                        String message = String.format(
+                                "Activation Error: Expected %d classes, evaluated %d output classes",
+                                classes.length,
+                                layer.getKernelsLength()
+                        );
+
+                        throw new RuntimeException(message);
+                    }
+
+                    operators.add(new ActivationOperator(layer, i, shape, precision, pool, workspace,
+                            operators.size() > 1));
+                    break;
+                default:
+                    throw new RuntimeException("Unknown layer type: " + names[i]);
+            }
+
+            if (i == layers.size()) {
+                layer.setLayerIndex(i);
+                layers.add(layer);
+            }
+
+            shape = operators.get(operators.size() - 1).getOutputShape();
+        }
+
+        return new ExecutionPlan(operators.toArray(new Operator[0]), inputShape.clone(), precision, workspace);
+    }
+
+    /**
+     * Resolves the convolution a schedule asks of a conv layer, given the shape of its input. "auto" picks int8 for a
+     * quantized layer, the only convolution it can run. Otherwise it picks sparse convolution for a layer pruned below
+     * the density where skipping zero weights beats GEMM, and FFT when it is estimated to take fewer multiplies than
+     * GEMM, which is the case for large inputs, kernels and channel counts.
+     */
+    private static String chooseConvolution(String convolution, Layer layer, int[] inputShape, int index) {
+        int[] kernelDims = layer.getKernelDimensions();
+
+        if (layer.isQuantized() && !"auto".equals(convolution) && !"int8".equals(convolution)) {
+            throw new RuntimeException("Layer " + index + " is quantized and only runs int8 convolution.");
+        }
+
+        switch (convolution) {
+            case "auto":
+                if (layer.isQuantized()) {
+                    return "int8";
+                }
+
+                if (SparseTask.cheaper(layer)) {
+                    return "sparse";
+                }
+
+                return FftTask.cheaper(inputShape, kernelDims, layer.getKernelsLength()) ? "fft" : "gemm";
+            case "int8":
+                if (!layer.isQuantized()) {
+                    throw new RuntimeException("Int8 convolution needs a quantized layer, layer " + index + ".");
+                }
+
+                return convolution;
+            case "winograd":
+                if (!WinogradTask.supports(kernelDims)) {
+                    throw new RuntimeException("Winograd convolution needs 3x3 or 5x5 kernels, layer " + index + ".");
+                }
+
+                return convolution;
+            case "fft":
+                if (!FftTask.supports(kernelDims)) {
+                    throw new RuntimeException("Kernels are too large for FFT convolution, layer " + index + ".");
+                }
+
+                return convolution;
+            default:
+                return convolution;
+        }
+    }
+
+    /**
+     * Whether the plan was compiled for input of the same sample shape and precision as the given data.
+     * @param input
+     * @return
+     */
+    boolean accepts(Data input) {
+        return Arrays.equals(this.inputShape, input.getDimensions()) && this.precision.equals(input.getPrecision());
+    }
+
+    /**
+     * Runs a mini-batch through every layer and returns the output of the last.
+     * @param input
+     * @return
+     */
+    Data forward(Data input) {
+        return forward(input, null);
+    }
+
+    /**
+     * Runs a mini-batch through every layer, recording each layer's run in the given metrics unless they are null.
+     * @param input
+     * @param metrics
+     * @return
+     */
+    Data forward(Data input, Metrics metrics) {
+        Data data = input;
+
+        for (Operator operator : this.operators) {
+            if (metrics == null) {
+                data = operator.forward(data);
+            } else {
+                long allocated = Metrics.allocatedBytes();
+                long start = System.nanoTime();
+                data = operator.forward(data);
+                record(metrics, operator, "forward", start, allocated, operator.flops(), data.getBatchSize(), data);
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Runs a mini-batch through every layer for inference only, and returns the output of the last. Layers write
+     * alternately into the workspace's two inference buffers, so each intermediate is overwritten as soon as the layer
+     * after next runs, and nothing is kept for backpropagation. A standalone nonlinearity applies itself in place to
+     * the buffer it reads instead. The input layer has nothing to compute, so the first layer to run reads the input
+     * directly.
+     * @param input
+     * @return Output of the last layer; valid until the next pass.
+     */
+    Data infer(Data input) {
+        return infer(input, null);
+    }
+
+    /**
+     * Runs a mini-batch through every layer for inference only, recording each layer's run in the given metrics unless
+     * they are null.
+     * @param input
+     * @param metrics
+     * @return Output of the last layer; valid until the next pass.
+     */
+    Data infer(Data input, Metrics metrics) {
+        Data data = input;
+        int side = 1;
+
+        for (int i = 1; i < this.operators.length; i++) {
+            // A standalone nonlinearity rewrites the buffer it reads, unless that buffer is the caller's input.
+            boolean inPlace = this.operators[i] instanceof NonlinearityOperator && data != input;
+            Data output = inPlace ? data : this.workspace.inferenceActivation(i, side, this.capacity,
+                    this.operators[i].getOutputShape(), input.getPrecision(), input.getBatchSize());
+
+            if (!inPlace) {
+                side = 1 - side;
+            }
+
+            if (metrics == null) {
+                this.operators[i].infer(data, output);
+            } else {
+                long allocated = Metrics.allocatedBytes();
+                long start = System.nanoTime();
+                this.operators[i].infer(data, output);
+                record(metrics, this.operators[i], "infer", start, allocated, this.operators[i].flops(),
+                        output.getBatchSize(), output);
+            }
+
+            data = output;
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns the buffer for the error of the last layer's output, for a mini-batch of the given size.
+     * @param batchSize
+     * @return
+     */
+    Data outputError(int batchSize) {
+        Operator last = this.operators[this.operators.length - 1];
+
+        return this.workspace.error(last.getLayer().getLayerIndex() + 1, last.getOutputShape(), batchSize);
+    }
+
+    /**
+     * Runs every layer's backward pass, from the last layer to the first, starting from the error of the last layer's
+     * output. Kernel and bias gradients are added to those already on the layers.
+     * @param outputError
+     */
+    void backward(Data outputError) {
+        backward(outputError, null);
+    }
+
+    /**
+     * Runs every layer's backward pass, from the last layer to the first, recording each layer's run in the given
+     * metrics unless they are null. A layer's backward pass is counted as twice its forward FLOPs, one share for the
+     * kernel gradients and one for the error of its input.
+     * @param outputError
+     * @param metrics
+     */
+    void backward(Data outputError, Metrics metrics) {
+        for (int i = this.operators.length - 1; i >= 0; i--) {
+            Data error = i + 1 < this.operators.length ? this.operators[i + 1].getLayer().getLayerError() : outputError;
+
+            if (metrics == null) {
+                this.operators[i].backward(error);
+            } else {
+                long allocated = Metrics.allocatedBytes();
+                long start = System.nanoTime();
+                this.operators[i].backward(error);
+                record(metrics, this.operators[i], "backward", start, allocated, 2 * this.operators[i].flops(),
+                        outputError.getBatchSize(), this.operators[i].getLayer().getLayerError());
+            }
+        }
+    }
+
+    /**
+     * Records a layer run over a mini-batch of the given size that started at the given time and allocation count, and
+     * wrote the given data, if any.
+     */
+    private static void record(Metrics metrics, Operator operator, String phase, long start, long allocated,
+                               long flops, int batchSize, Data written) {
+        long nanos = System.nanoTime() - start;
+        long allocatedBytes = Metrics.allocatedBytes() - allocated;
+        long bytes = written == null ? 0 : (long) written.length() * batchSize * (written.isFloat() ? 4 : 8);
+
+        metrics.record(operator.getLayer(), phase, nanos, flops * batchSize, allocatedBytes, bytes);
+    }
+
+    /**
+     * Passes the input through unchanged.
+     */
+    private static final class InputOperator implements Operator {
+
+        private final Layer layer;
+        private final int[] shape;
+
+        InputOperator(Layer layer, int[] shape, String precision) {
+            this.layer = layer;
+            this.shape = shape.clone();
+            // Stands in for the input until the first batch arrives, so the next layer can be built against it.
+            layer.setLayerOutput(new Data(this.shape, precision));
+        }
+
+        @Override
+        public Layer getLayer() {
+            return this.layer;
+        }
+
+        @Override
+        public int[] getOutputShape() {
+            return this.shape;
+        }
+
+        @Override
+        public long flops() {
+            return 0;
+        }
+
+        @Override
+        public Data forward(Data input) {
+            this.layer.setLayerInput(input);
+            this.layer.setLayerOutput(input);
+
+            return input;
+        }
+
+        @Override
+        public void infer(Data input, Data output) {
+            output.copyFrom(input);
+        }
+
+        @Override
+        public void backward(Data outputError) {}
+    }
+
+    /**
+     * Valid convolution of the input with every kernel of the layer, plus the kernel's bias.
+     */
+    static class ConvOperator implements Operator {
+
+        private static final int STRIDE = 1;
+
+        final Layer layer;
+        private final int index;
+        private final int[] outputShape;
+        private final ForkJoinPool pool;
+        private final Workspace workspace;
+        private final boolean propagate; // Whether a layer before needs the error of this one's input.
+        private final boolean fftInputError; // Whether the error of the input is computed by FFT.
+
+        ConvOperator(Layer layer, int index, int[] inputShape, String precision, ForkJoinPool pool,
+                     Workspace workspace, boolean propagate) {
+            int[] kernelDims = layer.getKernelDimensions();
+
+            if (inputShape[2] != kernelDims[2]) {
+                throw new RuntimeException("Malformed kernel and input. Different depths.");
+            }
+
+            if (inputShape[0] < kernelDims[0] || inputShape[1] < kernelDims[1]) {
+                throw new RuntimeException("Kernel is larger than the input of layer " + layer.getLayerIndex() + ".");
+            }
+
+            this.layer = layer;
+            this.index = index;
+            this.pool = pool;
+            this.workspace = workspace;
+            this.propagate = propagate;
+            this.outputShape = new int[]{
+                    (inputShape[0] - kernelDims[0]) / STRIDE + 1,
+                    (inputShape[1] - kernelDims[1]) / STRIDE + 1,
+                    layer.getKernelsLength()
+            };
+            // The input error is the full convolution of the output error, whose padded shape decides the algorithm.
+            this.fftInputError = propagate && FftTask.cheaper(new int[]{
+                    this.outputShape[0] + 2 * (kernelDims[0] - 1),
+                    this.outputShape[1] + 2 * (kernelDims[1] - 1),
+                    this.outputShape[2]
+            }, new int[]{kernelDims[0], kernelDims[1], this.outputShape[2]}, Math.max(kernelDims[2], 1));
+            // Stands in for the output until the layer first runs, so the next layer can be built against it.
+            layer.setLayerOutput(new Data(this.outputShape, precision));
+        }
+
+        @Override
+        public Layer getLayer() {
+            return this.layer;
+        }
+
+        @Override
+        public int[] getOutputShape() {
+            return this.outputShape;
+        }
+
+        @Override
+        public long flops() {
+            int[] kernelDims = this.layer.getKernelDimensions();
+
+            return 2L * this.outputShape[0] * this.outputShape[1] * this.outputShape[2]
+                    * kernelDims[0] * kernelDims[1] * Math.max(kernelDims[2], 1);
+        }
+
+        @Override
+        public Data forward(Data input) {
+            Data output = this.workspace.activation(this.index, this.outputShape, input.getPrecision(),
+                    input.getBatchSize());
+            infer(input, output);
+            this.layer.setLayerInput(input);
+            this.layer.setLayerOutput(output);
+
+            return output;
+        }
+
+        @Override
+        public void infer(Data input, Data output) {
+            if ("int8".equals(this.layer.getConvolution())) {
+                QuantizedTask.run(this.pool, input, this.layer, output, this.workspace, STRIDE);
+                return;
+            }
+
+            if ("sparse".equals(this.layer.getConvolution())) {
+                // Compress the kernels before the tasks start sharing them.
+                this.layer.getSparseKernels();
+                SparseTask.run(this.pool, input, this.layer, output, this.workspace, STRIDE);
+                return;
+            }
+
+            if ("fft".equals(this.layer.getConvolution())) {
+                FftTask.run(this.pool, input, this.layer, output, this.workspace);
+                return;
+            }
+
+            if ("winograd".equals(this.layer.getConvolution())) {
+                // Transform the kernels before the tasks start sharing them.
+                if (input.isFloat()) {
+                    this.layer.getWinogradKernelsFloat();
+                } else {
+                    this.layer.getWinogradKernels();
+                }
+
+                WinogradTask.run(this.pool, input, this.layer, output, this.workspace);
+                return;
+            }
+
+            // Pack the kernel matrix before the tasks start sharing it.
+            if (input.isFloat()) {
+                this.layer.getKernelMatrixFloat();
+            } else {
+                this.layer.getKernelMatrix();
+            }
+
+            ConvolutionTask.run(this.pool, input, this.layer, output, this.workspace, STRIDE);
+        }
+
+        /**
+         * Adds the kernel and bias gradients of the mini-batch to the layer's, and sets the error of its input unless
+         * the layer before is the input layer. The patches are lowered again from the input the forward pass kept,
+         * whichever algorithm ran it. The input error goes by FFT instead of col2im where that is estimated cheaper,
+         * once the gradient pass has applied the nonlinearity's derivative to the output error in place.
+         */
+        @Override
+        public void backward(Data outputError) {
+            if (outputError == null) {
+                return;
+            }
+
+            Data input = this.layer.getLayerInput();
+            Data inputError = this.propagate
+                    ? this.workspace.error(this.index, input.getDimensions(), input.getBatchSize())
+                    : null;
+
+            if (this.fftInputError) {
+                GradientTask.run(this.pool, input, this.layer, this.layer.getLayerOutput(), outputError, null, true,
+                        this.workspace, STRIDE);
+                // Transform the kernels before the tasks start sharing them.
+                this.layer.getErrorSpectra();
+                FftTask.runInputError(this.pool, outputError, this.layer, inputError, this.workspace);
+            } else {
+                GradientTask.run(this.pool, input, this.layer, this.layer.getLayerOutput(), outputError, inputError,
+                        false, this.workspace, STRIDE);
+            }
+
+            this.layer.setLayerError(inputError);
+        }
+
+        /**
+         * Logic for a valid convolution operation.
+         *
+         * @param input
+         * @param kernel
+         * @param bias
+         * @return
+         */
+        static Data evalValidConvolution(Data input, Data kernel, double bias) {
+            int m = input.getDimensions()[0];
+            int n = input.getDimensions()[1];
+            int o = input.getDimensions()[2];
+            int km = kernel.getDimensions()[0];
+            int kn = kernel.getDimensions()[1];
+            int ko = kernel.getDimensions()[2];
+            int kms = ((m - km) / STRIDE) + 1;
+            int kns = ((n - kn) / STRIDE) + 1;
+
+            if (o != ko) {
+                throw new RuntimeException("Malformed kernel and input. Different depths.");
+            }
+
+            double[][] result = new double[kms][kns];
+
+            for (int i = 0; i < kms; i++) {
+                for (int j = 0; j < kns; j++) {
+                    int[] sliceH = new int[]{i, i + km};
+                    int[] sliceW = new int[]{j, j + kn};
+                    int[] sliceD = new int[]{0, ko};
+                    Data inputSlice = input.slice(sliceH, sliceW, sliceD);
+                    result[i][j] = NumPute.dot(inputSlice, kernel) + bias;
+                }
+            }
+
+            Data activationMap = new Data();
+            activationMap.write(result);
+            return activationMap;
+        }
+    }
+
+    /**
+     * Max pooling over square windows of the input.
+     */
+    static final class PoolOperator implements Operator {
+
+        private final Layer layer;
+        private final int index;
+        private final int[] outputShape;
+        private final Workspace workspace;
+
+        PoolOperator(Layer layer, int index, int[] inputShape, String precision, Workspace workspace) {
+            int size = layer.getPoolSize();
+            int stride = layer.getPoolStride();
+
+            if (inputShape[0] < size || inputShape[1] < size) {
+                throw new RuntimeException("Pool is larger than the input of layer " + layer.getLayerIndex() + ".");
+            }
+
+            this.layer = layer;
+            this.index = index;
+            this.workspace = workspace;
+            this.outputShape = new int[]{
+                    ((inputShape[0] - size) / stride) + 1,
+                    ((inputShape[1] - size) / stride) + 1,
+                    inputShape[2]
+            };
+            // Stands in for the output until the layer first runs, so the next layer can be built against it.
+            layer.setLayerOutput(new Data(this.outputShape, precision));
+        }
+
+        @Override
+        public Layer getLayer() {
+            return this.layer;
+        }
+
+        @Override
+        public int[] getOutputShape() {
+            return this.outputShape;
+        }
+
+        @Override
+        public long flops() {
+            int size = this.layer.getPoolSize();
+
+            return (long) this.outputShape[0] * this.outputShape[1] * Math.max(this.outputShape[2], 1) * size * size;
+        }
+
+        @Override
+        public Data forward(Data input) {
+            Data output = this.workspace.activation(this.index, this.outputShape, input.getPrecision(),
+                    input.getBatchSize());
+            int[] mask = this.workspace.mask(this.index, output.length() * output.getBatchSize());
+            evalMaxPooling(input, output, this.layer.getPoolSize(), this.layer.getPoolStride(), mask);
+            this.layer.setLayerInput(input);
+            this.layer.setLayerOutput(output);
+
+            return output;
+        }
+
+        @Override
+        public void infer(Data input, Data output) {
+            evalMaxPooling(input, output, this.layer.getPoolSize(), this.layer.getPoolStride(), null);
+        }
+
+        /**
+         * Routes the error of each pooled value back to the input element it was taken from, using the argmax mask
+         * recorded by the forward pass. Every other input element gets no error.
+         */
+        @Override
+        public void backward(Data outputError) {
+            if (outputError == null) {
+                return;
+            }
+
+            Data input = this.layer.getLayerInput();
+            Data inputError = this.workspace.error(this.index, input.getDimensions(), input.getBatchSize());
+            int[] mask = this.workspace.mask(this.index, outputError.length() * outputError.getBatchSize());
+            scatterMax(outputError, mask, inputError);
+            this.layer.setLayerError(inputError);
+        }
+
+        /**
+         * Logic for a max pooling operation on a tensor. Reads and writes the buffers directly, so no views or boxed
+         * values are created. When a mask is given, records for every pooled value the position its maximum came from,
+         * counted as if the input mini-batch were contiguous.
+         */
+        static void evalMaxPooling(Data input, Data output, int size, int stride, int[] mask) {
+            int n = input.getDimensions()[1];
+            int rm = output.getDimensions()[0];
+            int rn = output.getDimensions()[1];
+            int o = Math.max(output.getDimensions()[2], 1);
+            int inputLength = input.length();
+            double[] in = input.getBuffer();
+            float[] inFloat = input.getFloatBuffer();
+            double[] out = output.getBuffer();
+            float[] outFloat = output.getFloatBuffer();
+            int position = 0;
+
+            for (int b = 0; b < input.getBatchSize(); b++) {
+                int inputBase = b * input.getBatchStride();
+                int outputBase = b * output.getBatchStride();
+
+                for (int si = 0; si < rm; si++) {
+                    for (int sj = 0; sj < rn; sj++) {
+                        int i = si * stride;
+                        int j = sj * stride;
+
+                        for (int k = 0; k < o; k++) {
+                            double max = Double.NEGATIVE_INFINITY;
+                            int argmax = (i * n + j) * o + k;
+
+                            for (int l = 0; l < size; l++) {
+                                for (int p = 0; p < size; p++) {
+                                    int index = inputBase + input.index(i + l, j + p, k);
+                                    double value = inFloat != null ? inFloat[index] : in[index];
+
+                                    if (value > max) {
+                                        max = value;
+                                        argmax = ((i + l) * n + j + p) * o + k;
+                                    }
+                                }
+                            }
+
+                            int index = outputBase + output.index(si, sj, k);
+
+                            if (outFloat != null) {
+                                outFloat[index] = (float) max;
+                            } else {
+                                out[index] = max;
+                            }
+
+                            if (mask != null) {
+                                mask[position++] = b * inputLength + argmax;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Zeroes the input error, then adds each element of the contiguous output error to the input position the
+         * mask recorded for it.
+         */
+        private static void scatterMax(Data outputError, int[] mask, Data inputError) {
+            double[] source = outputError.getBuffer();
+            double[] target = inputError.getBuffer();
+            int sourceOff = outputError.getOffset();
+            int targetOff = inputError.getOffset();
+            int length = outputError.length() * outputError.getBatchSize();
+
+            Arrays.fill(target, targetOff, targetOff + inputError.length() * inputError.getBatchSize(), 0.0);
+
+            for (int p = 0; p < length; p++) {
+                target[targetOff + mask[p]] += source[sourceOff + p];
+            }
+        }
+    }
+
+    /**
+     * An element-wise nonlinearity that could not be fused into a convolution before it, so makes a pass of its own.
+     */
+    private static final class NonlinearityOperator implements Operator {
+
+        private final Layer layer;
+        private final int index;
+        private final int nonlinearity;
+        private final int[] outputShape;
+        private final Workspace workspace;
+
+        NonlinearityOperator(Layer layer, int index, int[] inputShape, String precision, Workspace workspace) {
+            this.layer = layer;
+            this.index = index;
+            this.nonlinearity = Nonlinearity.of(layer.getNonlinearity());
+            this.workspace = workspace;
+            this.outputShape = inputShape.clone();
+            layer.setLayerOutput(new Data(this.outputShape, precision));
+        }
+
+        @Override
+        public Layer getLayer() {
+            return this.layer;
+        }
+
+        @Override
+        public int[] getOutputShape() {
+            return this.outputShape;
+        }
+
+        @Override
+        public long flops() {
+            return (long) this.outputShape[0] * this.outputShape[1] * Math.max(this.outputShape[2], 1);
+        }
+
+        @Override
+        public Data forward(Data input) {
+            Data output = this.workspace.activation(this.index, this.outputShape, input.getPrecision(),
+                    input.getBatchSize());
+            infer(input, output);
+            this.layer.setLayerInput(input);
+            this.layer.setLayerOutput(output);
+
+            return output;
+        }
+
+        /**
+         * Applies the nonlinearity to every element. The output may be the input itself, since each element is read
+         * before it is written.
+         */
+        @Override
+        public void infer(Data input, Data output) {
+            int o = Math.max(this.outputShape[2], 1);
+            double[] in = input.getBuffer();
+            float[] inFloat = input.getFloatBuffer();
+            double[] out = output.getBuffer();
+            float[] outFloat = output.getFloatBuffer();
+
+            for (int b = 0; b < input.getBatchSize(); b++) {
+                int inputBase = b * input.getBatchStride();
+                int outputBase = b * output.getBatchStride();
+
+                for (int i = 0; i < this.outputShape[0]; i++) {
+                    for (int j = 0; j < this.outputShape[1]; j++) {
+                        for (int k = 0; k < o; k++) {
+                            int from = inputBase + input.index(i, j, k);
+                            int to = outputBase + output.index(i, j, k);
+                            double value = Nonlinearity.apply(this.nonlinearity,
+                                    inFloat != null ? inFloat[from] : in[from]);
+
+                            if (outFloat != null) {
+                                outFloat[to] = (float) value;
+                            } else {
+                                out[to] = value;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Scales the error of each output element by the derivative of the nonlinearity there, read off the output.
+         */
+        @Override
+        public void backward(Data outputError) {
+            if (outputError == null) {
+                return;
+            }
+
+            Data output = this.layer.getLayerOutput();
+            Data inputError = this.workspace.error(this.index, this.outputShape, output.getBatchSize());
+            int o = Math.max(this.outputShape[2], 1);
+            double[] source = outputError.getBuffer();
+            double[] target = inputError.getBuffer();
+            double[] out = output.getBuffer();
+            float[] outFloat = output.getFloatBuffer();
+
+            for (int b = 0; b < output.getBatchSize(); b++) {
+                for (int i = 0; i < this.outputShape[0]; i++) {
+                    for (int j = 0; j < this.outputShape[1]; j++) {
+                        for (int k = 0; k < o; k++) {
+                            int at = b * output.getBatchStride() + output.index(i, j, k);
+                            double y = outFloat != null ? outFloat[at] : out[at];
+                            target[b * inputError.getBatchStride() + inputError.index(i, j, k)] =
+                                    source[b * outputError.getBatchStride() + outputError.index(i, j, k)]
+                                            * Nonlinearity.derivative(this.nonlinearity, y);
+                        }
+                    }
+                }
+            }
+
+            this.layer.setLayerError(inputError);
+        }
+    }
+
+    /**
+     * The fully connected activation layer: a convolution with one kernel per class, each the size of the input.
+     * Its output holds one score per class, which the network turns into probabilities.
+     */
+    private static final class ActivationOperator extends ConvOperator {
+
+        ActivationOperator(Layer layer, int index, int[] inputShape, String precision, ForkJoinPool pool,
+                           Workspace workspace, boolean propagate) {
+            super(layer, index, inputShape, precision, pool, workspace, propagate);
+        }
+    }
+}
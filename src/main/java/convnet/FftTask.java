@@ -0,0 +1,546 @@
+package convnet;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The FftTask class computes a stride 1 convolution in the frequency domain. The padded input is cut into overlapping
+ * size x size tiles, each of which yields the (size - km + 1) x (size - kn + 1) outputs that read nothing outside it.
+ * A tile's channels are transformed by a 2d FFT, where correlation with a kernel becomes an element-wise product with
+ * the kernel's conjugate spectrum, and the products are transformed back. As with Winograd convolution, the products
+ * at each frequency form one GEMM of the block's tiles by the kernels' channels, run as four real GEMMs.
+ *
+ * Inputs and outputs are real, so only half of each spectrum is multiplied, two channels share a forward transform,
+ * and two kernels share an inverse one. The tile size depends on the kernel size alone, so kernel spectra are
+ * computed once per weight update and cached on the layer. Transforms run in float64 whatever the data precision.
+ * @author Jared Gorski
+ */
+class FftTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_WORK = 1 << 16; // Multiply-adds below which a range of tiles is not split.
+    private static final int MAX_BLOCK = 16; // Most tiles transformed and multiplied together.
+    private static final int BLOCK_SCRATCH = 1 << 20; // Values of scratch a block of tiles aims to fit in.
+    private static final int MAX_SIZE = 1024; // Largest tile size, which bounds the twiddle tables.
+    private static final int TRANSFORM_COST = 4; // Weight of scalar butterflies against vectorised multiply-adds.
+    private static final int FFT_COST = 3; // Weight of the whole FFT path, whose GEMMs are small, against im2col.
+
+    private static final double[] COS = new double[MAX_SIZE / 2];
+    private static final double[] SIN = new double[MAX_SIZE / 2];
+
+    static {
+        for (int t = 0; t < MAX_SIZE / 2; t++) {
+            COS[t] = Math.cos(2 * Math.PI * t / MAX_SIZE);
+            SIN[t] = Math.sin(2 * Math.PI * t / MAX_SIZE);
+        }
+    }
+
+    private final Data input;
+    private final Spectra spectra;
+    private final Data output;
+    private final Workspace workspace;
+    private final int padM;
+    private final int padN;
+    private final int nonlinearity;
+    private final int tileStart;
+    private final int tileEnd;
+
+    private FftTask(Data input, Spectra spectra, Data output, Workspace workspace, int padM, int padN,
+                    int nonlinearity, int tileStart, int tileEnd) {
+        this.input = input;
+        this.spectra = spectra;
+        this.output = output;
+        this.workspace = workspace;
+        this.padM = padM;
+        this.padN = padN;
+        this.nonlinearity = nonlinearity;
+        this.tileStart = tileStart;
+        this.tileEnd = tileEnd;
+    }
+
+    /**
+     * Whether FFT convolution supports kernels of the given dimensions.
+     * @param kernelDims
+     * @return
+     */
+    static boolean supports(int[] kernelDims) {
+        return tileSize(kernelDims[0], kernelDims[1]) <= MAX_SIZE;
+    }
+
+    /**
+     * Whether FFT convolution of an input of the given shape is estimated to take fewer multiplies than im2col and
+     * GEMM. Direct convolution costs km * kn multiplies per output, channel and kernel; FFT convolution costs about
+     * four per frequency, channel and kernel, plus the transforms.
+     * @param inputShape
+     * @param kernelDims
+     * @param kernelsLength
+     * @return
+     */
+    static boolean cheaper(int[] inputShape, int[] kernelDims, int kernelsLength) {
+        if (!supports(kernelDims)) {
+            return false;
+        }
+
+        int km = kernelDims[0];
+        int kn = kernelDims[1];
+        int kms = inputShape[0] - km + 1;
+        int kns = inputShape[1] - kn + 1;
+        int channels = Math.max(inputShape[2], 1);
+        int size = tileSize(km, kn);
+        long tiles = (long) tilesAcross(kms, size - km + 1) * tilesAcross(kns, size - kn + 1);
+        long transforms = (channels + 1) / 2 + (kernelsLength + 1) / 2;
+        long butterflies = (long) size * size * Integer.numberOfTrailingZeros(size * size);
+        long perTile = TRANSFORM_COST * transforms * 2 * butterflies
+                + 4L * size * (size / 2 + 1) * channels * kernelsLength;
+        long direct = (long) kms * kns * km * kn * channels * kernelsLength;
+
+        return FFT_COST * tiles * perTile < direct;
+    }
+
+    /**
+     * Convolves the whole mini-batch into the output with the layer's cached kernel spectra and through the layer's
+     * nonlinearity, on the calling thread if the pool is null, has one thread, or the work is too small to split.
+     * @param pool
+     * @param input
+     * @param layer
+     * @param output
+     * @param workspace
+     */
+    static void run(ForkJoinPool pool, Data input, Layer layer, Data output, Workspace workspace) {
+        run(pool, input, layer.getKernelSpectra(), output, workspace, 0, 0,
+                Nonlinearity.of(layer.getNonlinearity()));
+    }
+
+    /**
+     * Convolves the whole mini-batch, zero padded by padM rows above and below and padN columns left and right, into
+     * the output through the given nonlinearity.
+     */
+    static void run(ForkJoinPool pool, Data input, Spectra spectra, Data output, Workspace workspace,
+                    int padM, int padN, int nonlinearity) {
+        int tiles = output.getBatchSize() * tilesPerSample(output, spectra);
+
+        if (pool == null || pool.getParallelism() == 1 || work(spectra, tiles) <= MIN_WORK) {
+            convolve(input, spectra, output, workspace, padM, padN, nonlinearity, 0, tiles);
+        } else {
+            pool.invoke(new FftTask(input, spectra, output, workspace, padM, padN, nonlinearity, 0, tiles));
+        }
+    }
+
+    /**
+     * Writes the error of a layer's input for the whole mini-batch: the full convolution of the error of its output,
+     * zero padded by the kernel size less one on every side, with the layer's kernels rotated by 180 degrees.
+     * @param pool
+     * @param outputError Error of the output, after the nonlinearity's derivative is applied.
+     * @param layer
+     * @param inputError
+     * @param workspace
+     */
+    static void runInputError(ForkJoinPool pool, Data outputError, Layer layer, Data inputError,
+                              Workspace workspace) {
+        int[] kernelDims = layer.getKernelDimensions();
+        run(pool, outputError, layer.getErrorSpectra(), inputError, workspace, kernelDims[0] - 1,
+                kernelDims[1] - 1, Nonlinearity.NONE);
+    }
+
+    @Override
+    protected void compute() {
+        int tiles = this.tileEnd - this.tileStart;
+
+        if (tiles > blockLength(this.spectra) && work(this.spectra, tiles) > MIN_WORK) {
+            int tileMid = this.tileStart + tiles / 2;
+            invokeAll(
+                    new FftTask(input, spectra, output, workspace, padM, padN, nonlinearity, tileStart, tileMid),
+                    new FftTask(input, spectra, output, workspace, padM, padN, nonlinearity, tileMid, tileEnd)
+            );
+        } else {
+            convolve(input, spectra, output, workspace, padM, padN, nonlinearity, tileStart, tileEnd);
+        }
+    }
+
+    /**
+     * Transforms every kernel of the layer, with the layer's biases alongside.
+     * @param layer
+     * @return
+     */
+    static Spectra transformKernels(Layer layer) {
+        Data[] kernels = new Data[layer.getKernelsLength()];
+        double[] biases = new double[kernels.length];
+
+        for (int k = 0; k < kernels.length; k++) {
+            kernels[k] = layer.getKernelByIndex(k);
+            biases[k] = layer.getBiasByIndex(k);
+        }
+
+        return transformKernels(kernels, biases);
+    }
+
+    /**
+     * Transforms the layer's kernels for the error of its input: one kernel per input channel, with one channel per
+     * kernel of the layer, rotated by 180 degrees. Biases are zero.
+     * @param layer
+     * @return
+     */
+    static Spectra transformErrorKernels(Layer layer) {
+        int[] dims = layer.getKernelDimensions();
+        int km = dims[0];
+        int kn = dims[1];
+        int kernelsLength = layer.getKernelsLength();
+        Data[] rotated = new Data[Math.max(dims[2], 1)];
+
+        for (int c = 0; c < rotated.length; c++) {
+            rotated[c] = new Data(new int[]{km, kn, kernelsLength});
+
+            for (int k = 0; k < kernelsLength; k++) {
+                Data kernel = layer.getKernelByIndex(k);
+
+                for (int i = 0; i < km; i++) {
+                    for (int j = 0; j < kn; j++) {
+                        rotated[c].set(i, j, k, kernel.get(km - 1 - i, kn - 1 - j, c));
+                    }
+                }
+            }
+        }
+
+        return transformKernels(rotated, new double[rotated.length]);
+    }
+
+    /**
+     * Transforms the given kernels into the conjugates of their spectra, scaled by 1 / size^2 so the inverse
+     * transform needs no scaling, and laid out as [ part ][ frequency ][ channel ][ kernel ] so that each frequency's
+     * slice is the right-hand side of that frequency's GEMM. The parts are the real part, the imaginary part and its
+     * negation.
+     */
+    private static Spectra transformKernels(Data[] kernels, double[] biases) {
+        int[] dims = kernels[0].getDimensions();
+        int km = dims[0];
+        int kn = dims[1];
+        int channels = Math.max(dims[2], 1);
+        int kernelsLength = kernels.length;
+        int size = tileSize(km, kn);
+        int half = size / 2 + 1;
+        int part = size * half * channels * kernelsLength;
+        double scale = 1.0 / ((double) size * size);
+        double[] values = new double[3 * part];
+        double[] tile = new double[2 * size * size];
+
+        for (int k = 0; k < kernelsLength; k++) {
+            for (int c = 0; c < channels; c++) {
+                Arrays.fill(tile, 0.0);
+
+                for (int i = 0; i < km; i++) {
+                    for (int j = 0; j < kn; j++) {
+                        tile[2 * (i * size + j)] = kernels[k].get(i, j, c);
+                    }
+                }
+
+                fft(tile, 0, size, false);
+
+                for (int u = 0; u < size; u++) {
+                    for (int v = 0; v < half; v++) {
+                        int f = 2 * (u * size + v);
+                        int index = ((u * half + v) * channels + c) * kernelsLength + k;
+                        values[index] = scale * tile[f];
+                        values[part + index] = -scale * tile[f + 1];
+                        values[2 * part + index] = scale * tile[f + 1];
+                    }
+                }
+            }
+        }
+
+        return new Spectra(values, size, km, kn, channels, biases);
+    }
+
+    /**
+     * Convolves tiles [tileStart, tileEnd) of the mini-batch, a block of tiles at a time.
+     */
+    private static void convolve(Data input, Spectra spectra, Data output, Workspace workspace, int padM, int padN,
+                                 int nonlinearity, int tileStart, int tileEnd) {
+        int frequencies = spectra.size * (spectra.size / 2 + 1);
+        int channels = spectra.channels;
+        int kernelsLength = spectra.kernelsLength;
+        int part = frequencies * channels * kernelsLength;
+        int block = Math.min(blockLength(spectra), tileEnd - tileStart);
+        int productsOff = 2 * frequencies * block * channels;
+        int tileOff = productsOff + 2 * frequencies * block * kernelsLength;
+        double[] scratch = workspace.patches(tileOff + 2 * spectra.size * spectra.size);
+        double[] kernels = spectra.values;
+
+        for (int start = tileStart; start < tileEnd; start += block) {
+            int tiles = Math.min(block, tileEnd - start);
+            int imaginary = frequencies * tiles * channels;
+            int productsImaginary = productsOff + frequencies * tiles * kernelsLength;
+
+            for (int p = 0; p < tiles; p++) {
+                transformTile(input, output, spectra, padM, padN, start + p, p, tiles, scratch, tileOff);
+            }
+
+            Arrays.fill(scratch, productsOff, productsImaginary + frequencies * tiles * kernelsLength, 0.0);
+
+            // Re(z) = Re(x) Re(w) - Im(x) Im(w), Im(z) = Re(x) Im(w) + Im(x) Re(w)
+            for (int h = 0; h < frequencies; h++) {
+                int x = h * tiles * channels;
+                int w = h * channels * kernelsLength;
+                int z = h * tiles * kernelsLength;
+
+                NumPute.gemm(tiles, kernelsLength, channels, scratch, x, channels,
+                        kernels, w, kernelsLength, scratch, productsOff + z, kernelsLength);
+                NumPute.gemm(tiles, kernelsLength, channels, scratch, imaginary + x, channels,
+                        kernels, 2 * part + w, kernelsLength, scratch, productsOff + z, kernelsLength);
+                NumPute.gemm(tiles, kernelsLength, channels, scratch, x, channels,
+                        kernels, part + w, kernelsLength, scratch, productsImaginary + z, kernelsLength);
+                NumPute.gemm(tiles, kernelsLength, channels, scratch, imaginary + x, channels,
+                        kernels, w, kernelsLength, scratch, productsImaginary + z, kernelsLength);
+            }
+
+            for (int p = 0; p < tiles; p++) {
+                for (int k = 0; k < kernelsLength; k += 2) {
+                    untransformTile(output, spectra, nonlinearity, start + p, k, p, tiles, productsOff,
+                            scratch, tileOff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms every channel of one input tile into slot p of the block's tile spectra, two channels per transform:
+     * the spectrum z of x1 + i x2 splits into x1 = (z(f) + conj z(-f)) / 2 and x2 = (z(f) - conj z(-f)) / 2i. Parts of
+     * the tile past the edge of the input read as zero.
+     */
+    private static void transformTile(Data input, Data output, Spectra spectra, int padM, int padN, int tile, int p,
+                                      int tiles, double[] scratch, int tileOff) {
+        int size = spectra.size;
+        int half = size / 2 + 1;
+        int channels = spectra.channels;
+        int m = input.getDimensions()[0];
+        int n = input.getDimensions()[1];
+        int stepM = size - spectra.km + 1;
+        int stepN = size - spectra.kn + 1;
+        int tilesN = tilesAcross(output.getDimensions()[1], stepN);
+        int perSample = tilesPerSample(output, spectra);
+        int b = tile / perSample;
+        int row = (tile % perSample) / tilesN * stepM - padM;
+        int col = (tile % perSample) % tilesN * stepN - padN;
+        int base = b * input.getBatchStride();
+        int imaginary = size * half * tiles * channels;
+        double[] buffer = input.getBuffer();
+        float[] floatBuffer = input.getFloatBuffer();
+
+        for (int c = 0; c < channels; c += 2) {
+            boolean pair = c + 1 < channels;
+
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    double re = 0.0;
+                    double im = 0.0;
+
+                    if (row + i >= 0 && row + i < m && col + j >= 0 && col + j < n) {
+                        int index = base + input.index(row + i, col + j, c);
+                        re = floatBuffer != null ? floatBuffer[index] : buffer[index];
+
+                        if (pair) {
+                            index = base + input.index(row + i, col + j, c + 1);
+                            im = floatBuffer != null ? floatBuffer[index] : buffer[index];
+                        }
+                    }
+
+                    scratch[tileOff + 2 * (i * size + j)] = re;
+                    scratch[tileOff + 2 * (i * size + j) + 1] = im;
+                }
+            }
+
+            fft(scratch, tileOff, size, false);
+
+            for (int u = 0; u < size; u++) {
+                for (int v = 0; v < half; v++) {
+                    int f = tileOff + 2 * (u * size + v);
+                    int g = tileOff + 2 * (((size - u) % size) * size + (size - v) % size);
+                    int x = ((u * half + v) * tiles + p) * channels + c;
+                    scratch[x] = 0.5 * (scratch[f] + scratch[g]);
+                    scratch[imaginary + x] = 0.5 * (scratch[f + 1] - scratch[g + 1]);
+
+                    if (pair) {
+                        scratch[x + 1] = 0.5 * (scratch[f + 1] + scratch[g + 1]);
+                        scratch[imaginary + x + 1] = 0.5 * (scratch[g] - scratch[f]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms the products of one tile with kernels k and k + 1 back, as the real and imaginary parts of one inverse
+     * transform, and writes the valid part of each output tile on top of the kernel's bias and through the
+     * nonlinearity. The half spectra are completed by conjugate symmetry.
+     */
+    private static void untransformTile(Data output, Spectra spectra, int nonlinearity, int tile, int k, int p,
+                                        int tiles, int productsOff, double[] scratch, int tileOff) {
+        int size = spectra.size;
+        int half = size / 2 + 1;
+        int kernelsLength = spectra.kernelsLength;
+        boolean pair = k + 1 < kernelsLength;
+        int kms = output.getDimensions()[0];
+        int kns = output.getDimensions()[1];
+        int stepM = size - spectra.km + 1;
+        int stepN = size - spectra.kn + 1;
+        int tilesN = tilesAcross(kns, stepN);
+        int perSample = tilesPerSample(output, spectra);
+        int b = tile / perSample;
+        int row = (tile % perSample) / tilesN * stepM;
+        int col = (tile % perSample) % tilesN * stepN;
+        int base = b * output.getBatchStride();
+        int imaginary = size * half * tiles * kernelsLength;
+
+        for (int u = 0; u < size; u++) {
+            for (int v = 0; v < size; v++) {
+                boolean mirrored = v >= half;
+                int h = mirrored ? ((size - u) % size) * half + size - v : u * half + v;
+                int z = productsOff + (h * tiles + p) * kernelsLength + k;
+                double sign = mirrored ? -1.0 : 1.0;
+                double re1 = scratch[z];
+                double im1 = sign * scratch[imaginary + z];
+                double re2 = pair ? scratch[z + 1] : 0.0;
+                double im2 = pair ? sign * scratch[imaginary + z + 1] : 0.0;
+                int f = tileOff + 2 * (u * size + v);
+                scratch[f] = re1 - im2;
+                scratch[f + 1] = im1 + re2;
+            }
+        }
+
+        fft(scratch, tileOff, size, true);
+
+        double[] buffer = output.getBuffer();
+        float[] floatBuffer = output.getFloatBuffer();
+
+        for (int i = 0; i < stepM && row + i < kms; i++) {
+            for (int j = 0; j < stepN && col + j < kns; j++) {
+                int f = tileOff + 2 * (i * size + j);
+
+                for (int l = 0; l < (pair ? 2 : 1); l++) {
+                    int index = base + output.index(row + i, col + j, k + l);
+                    double value = Nonlinearity.apply(nonlinearity, spectra.biases[k + l] + scratch[f + l]);
+
+                    if (floatBuffer != null) {
+                        floatBuffer[index] = (float) value;
+                    } else {
+                        buffer[index] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * In-place 2d FFT of the size x size complex values, interleaved real and imaginary, at the given offset. The
+     * inverse is not scaled.
+     */
+    private static void fft(double[] a, int off, int size, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            fft(a, off + 2 * i * size, 1, size, inverse);
+        }
+
+        for (int j = 0; j < size; j++) {
+            fft(a, off + 2 * j, size, size, inverse);
+        }
+    }
+
+    /**
+     * In-place radix-2 FFT of n complex values, stride complex values apart.
+     */
+    private static void fft(double[] a, int off, int stride, int n, boolean inverse) {
+        int levels = Integer.numberOfTrailingZeros(n);
+
+        for (int i = 0; i < n; i++) {
+            int j = Integer.reverse(i) >>> (32 - levels);
+
+            if (j > i) {
+                int x = off + 2 * i * stride;
+                int y = off + 2 * j * stride;
+                double re = a[x];
+                double im = a[x + 1];
+                a[x] = a[y];
+                a[x + 1] = a[y + 1];
+                a[y] = re;
+                a[y + 1] = im;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            int half = length >> 1;
+            int step = MAX_SIZE / length;
+
+            for (int i = 0; i < n; i += length) {
+                for (int j = 0; j < half; j++) {
+                    double wr = COS[j * step];
+                    double wi = inverse ? SIN[j * step] : -SIN[j * step];
+                    int x = off + 2 * (i + j) * stride;
+                    int y = off + 2 * (i + j + half) * stride;
+                    double re = wr * a[y] - wi * a[y + 1];
+                    double im = wr * a[y + 1] + wi * a[y];
+                    a[y] = a[x] - re;
+                    a[y + 1] = a[x + 1] - im;
+                    a[x] += re;
+                    a[x + 1] += im;
+                }
+            }
+        }
+    }
+
+    /**
+     * The smallest power of two tile, at least 16, that is four times the kernel's larger side, so that most of each
+     * tile yields output.
+     */
+    private static int tileSize(int km, int kn) {
+        int size = 16;
+
+        while (size < 4 * Math.max(km, kn)) {
+            size <<= 1;
+        }
+
+        return size;
+    }
+
+    private static int blockLength(Spectra spectra) {
+        int frequencies = spectra.size * (spectra.size / 2 + 1);
+        int perTile = 2 * frequencies * (spectra.channels + spectra.kernelsLength);
+
+        return Math.max(1, Math.min(MAX_BLOCK, BLOCK_SCRATCH / perTile));
+    }
+
+    private static int tilesAcross(int length, int step) {
+        return (length + step - 1) / step;
+    }
+
+    private static int tilesPerSample(Data output, Spectra spectra) {
+        return tilesAcross(output.getDimensions()[0], spectra.size - spectra.km + 1)
+                * tilesAcross(output.getDimensions()[1], spectra.size - spectra.kn + 1);
+    }
+
+    private static long work(Spectra spectra, int tiles) {
+        return 4L * tiles * spectra.size * (spectra.size / 2 + 1) * spectra.channels * spectra.kernelsLength;
+    }
+
+    /**
+     * Kernel spectra for one tile size, with the biases they were transformed with.
+     */
+    static final class Spectra {
+
+        final double[] values;
+        final int size;
+        final int km;
+        final int kn;
+        final int channels;
+        final int kernelsLength;
+        final double[] biases;
+
+        Spectra(double[] values, int size, int km, int kn, int channels, double[] biases) {
+            this.values = values;
+            this.size = size;
+            this.km = km;
+            this.kn = kn;
+            this.channels = channels;
+            this.kernelsLength = biases.length;
+            this.biases = biases;
+        }
+    }
+}
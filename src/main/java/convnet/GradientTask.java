@@ -0,0 +1,203 @@
+package convnet;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The GradientTask class runs the backward pass of a convolutional layer over a range of samples of a mini-batch. The
+ * output error is walked a chunk of output rows at a time: the chunk's input patches are lowered again into the
+ * workspace's per-thread patch scratch, the kernel gradients gain the chunk's error times its patches, and the error
+ * of the patches, the chunk's error times the kernels, is added back onto the input error by col2im. Each product is
+ * a GEMM as large as the forward pass's, so the backward pass costs about twice the forward.
+ *
+ * Samples are split evenly between a fixed number of slots, and every slot accumulates gradients in a workspace buffer
+ * of its own, laid out like the layer's block of the gradients buffer, which run sums into the layer once all slots
+ * finish. Samples write disjoint parts of the input error, so no two tasks write the same element.
+ * @author Jared Gorski
+ */
+class GradientTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_WORK = 1 << 16; // Multiply-adds below which the pass is not split at all.
+    private static final int CHUNK_ROWS = 64; // Output pixels whose patches are lowered and multiplied together.
+
+    private final Data input;
+    private final Layer layer;
+    private final Data output;
+    private final Data outputError;
+    private final Data inputError;
+    private final boolean inPlace;
+    private final Workspace workspace;
+    private final int stride;
+    private final int sampleStart;
+    private final int sampleEnd;
+    private final int slotStart;
+    private final int slotEnd;
+
+    private GradientTask(Data input, Layer layer, Data output, Data outputError, Data inputError, boolean inPlace,
+                         Workspace workspace, int stride, int sampleStart, int sampleEnd, int slotStart, int slotEnd) {
+        this.input = input;
+        this.layer = layer;
+        this.output = output;
+        this.outputError = outputError;
+        this.inputError = inputError;
+        this.inPlace = inPlace;
+        this.workspace = workspace;
+        this.stride = stride;
+        this.sampleStart = sampleStart;
+        this.sampleEnd = sampleEnd;
+        this.slotStart = slotStart;
+        this.slotEnd = slotEnd;
+    }
+
+    /**
+     * Adds the mini-batch's kernel and bias gradients to the layer's, and writes the error of its input.
+     * @param pool Pool to split the samples across, or null for the calling thread.
+     * @param input Input of the layer's last forward pass.
+     * @param layer
+     * @param output Output of the layer's last forward pass, after its nonlinearity.
+     * @param outputError Error of the output, before the nonlinearity's derivative is applied.
+     * @param inputError Float64 buffer for the error of the input, or null when it is not needed or found otherwise.
+     * @param inPlace Whether to write the output error back with the derivative applied, for an input error found
+     *                after the pass.
+     * @param workspace
+     * @param stride
+     */
+    static void run(ForkJoinPool pool, Data input, Layer layer, Data output, Data outputError, Data inputError,
+                    boolean inPlace, Workspace workspace, int stride) {
+        int batchSize = input.getBatchSize();
+        int kernelsLength = layer.getKernelsLength();
+        int patchLength = layer.getKernelByIndex(0).length();
+        long work = (long) batchSize * output.length() * patchLength;
+        int slots = pool == null || work <= MIN_WORK ? 1 : Math.min(pool.getParallelism(), batchSize);
+
+        if (inputError != null) {
+            double[] matrix = layer.getKernelMatrix();
+            double[] rows = workspace.kernelRows(kernelsLength * patchLength);
+
+            for (int p = 0; p < patchLength; p++) {
+                for (int k = 0; k < kernelsLength; k++) {
+                    rows[k * patchLength + p] = matrix[p * kernelsLength + k];
+                }
+            }
+
+            Arrays.fill(inputError.getBuffer(), inputError.getOffset(),
+                    inputError.getOffset() + inputError.length() * batchSize, 0.0);
+        }
+
+        if (slots == 1) {
+            backward(input, layer, output, outputError, inputError, inPlace, workspace, stride, 0, batchSize, 0);
+        } else {
+            pool.invoke(new GradientTask(input, layer, output, outputError, inputError, inPlace, workspace, stride,
+                    0, batchSize, 0, slots));
+        }
+
+        double[] gradients = layer.getGradients();
+        int offset = layer.getGradientOffset();
+        int length = (patchLength + 1) * kernelsLength;
+
+        for (int slot = 0; slot < slots; slot++) {
+            double[] partial = workspace.gradients(slot, length);
+
+            for (int i = 0; i < length; i++) {
+                gradients[offset + i] += partial[i];
+            }
+        }
+    }
+
+    @Override
+    protected void compute() {
+        int slots = this.slotEnd - this.slotStart;
+
+        if (slots > 1) {
+            int samples = this.sampleEnd - this.sampleStart;
+            int slotMid = this.slotStart + slots / 2;
+            int sampleMid = this.sampleStart + samples * (slots / 2) / slots;
+            invokeAll(
+                    new GradientTask(input, layer, output, outputError, inputError, inPlace, workspace, stride,
+                            sampleStart, sampleMid, slotStart, slotMid),
+                    new GradientTask(input, layer, output, outputError, inputError, inPlace, workspace, stride,
+                            sampleMid, sampleEnd, slotMid, slotEnd)
+            );
+        } else {
+            backward(input, layer, output, outputError, inputError, inPlace, workspace, stride, sampleStart,
+                    sampleEnd, slotStart);
+        }
+    }
+
+    /**
+     * Runs the backward pass of samples [sampleStart, sampleEnd) into the partial gradients of the given slot. The
+     * derivative of the layer's nonlinearity is applied to the output error as each chunk is read, so the fused
+     * nonlinearity costs no pass of its own here either, and written back over it when inPlace.
+     */
+    private static void backward(Data input, Layer layer, Data output, Data outputError, Data inputError,
+                                 boolean inPlace, Workspace workspace, int stride, int sampleStart, int sampleEnd,
+                                 int slot) {
+        int[] kernelDims = layer.getKernelByIndex(0).getDimensions();
+        int km = kernelDims[0];
+        int kn = kernelDims[1];
+        int patchLength = layer.getKernelByIndex(0).length();
+        int kernelsLength = layer.getKernelsLength();
+        int kms = output.getDimensions()[0];
+        int kns = output.getDimensions()[1];
+        int chunkRows = Math.max(1, Math.min(kms, CHUNK_ROWS / kns));
+        int nonlinearity = Nonlinearity.of(layer.getNonlinearity());
+
+        double[] partial = workspace.gradients(slot, (patchLength + 1) * kernelsLength);
+        double[] patches = workspace.patches(chunkRows * kns * patchLength);
+        double[] scratch = workspace.errorPatches(chunkRows * kns * (2 * kernelsLength + patchLength));
+        double[] kernelRows = inputError == null ? null : workspace.kernelRows(kernelsLength * patchLength);
+        double[] errors = outputError.getBuffer();
+        double[] out = output.getBuffer();
+        float[] outFloat = output.getFloatBuffer();
+        int biasOff = kernelsLength * patchLength;
+
+        Arrays.fill(partial, 0, (patchLength + 1) * kernelsLength, 0.0);
+
+        for (int b = sampleStart; b < sampleEnd; b++) {
+            for (int row = 0; row < kms; row += chunkRows) {
+                int end = Math.min(kms, row + chunkRows);
+                int pixels = (end - row) * kns;
+                int transposedOff = pixels * kernelsLength;
+                int patchErrorOff = 2 * pixels * kernelsLength;
+                int errorBase = b * outputError.getBatchStride() + outputError.index(row, 0, 0);
+                int outputBase = b * output.getBatchStride() + output.index(row, 0, 0);
+
+                for (int p = 0; p < pixels; p++) {
+                    for (int k = 0; k < kernelsLength; k++) {
+                        double error = errors[errorBase + p * kernelsLength + k];
+
+                        if (nonlinearity != Nonlinearity.NONE) {
+                            int at = outputBase + p * kernelsLength + k;
+                            error *= Nonlinearity.derivative(nonlinearity, outFloat != null ? outFloat[at] : out[at]);
+
+                            if (inPlace) {
+                                errors[errorBase + p * kernelsLength + k] = error;
+                            }
+                        }
+
+                        scratch[p * kernelsLength + k] = error;
+                        scratch[transposedOff + k * pixels + p] = error;
+                        partial[biasOff + k] += error;
+                    }
+                }
+
+                NumPute.im2col(input, b, km, kn, stride, row, end, patches, 0);
+                NumPute.gemm(kernelsLength, patchLength, pixels,
+                        scratch, transposedOff, pixels,
+                        patches, 0, patchLength,
+                        partial, 0, patchLength);
+
+                if (kernelRows != null) {
+                    Arrays.fill(scratch, patchErrorOff, patchErrorOff + pixels * patchLength, 0.0);
+                    NumPute.gemm(pixels, patchLength, kernelsLength,
+                            scratch, 0, kernelsLength,
+                            kernelRows, 0, patchLength,
+                            scratch, patchErrorOff, patchLength);
+                    NumPute.col2im(scratch, patchErrorOff, km, kn, stride, row, end, inputError, b);
+                }
+            }
+        }
+    }
+}
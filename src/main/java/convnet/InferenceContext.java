@@ -0,0 +1,92 @@
+package convnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The InferenceContext class holds everything one thread needs to predict with a shared Model: replicas of the model's
+ * layers that read the model's kernels but keep their own activations, a workspace of buffers, and a compiled plan.
+ * A context is not thread-safe, but it is cheap next to the model, so each request thread keeps one of its own.
+ * @author Jared Gorski
+ */
+public final class InferenceContext {
+
+    private final Model model;
+    private final List<Layer> layers = new ArrayList<>();
+    private final String[] classes;
+    private final ForkJoinPool pool;
+    private final Workspace workspace = new Workspace();
+    private ExecutionPlan plan = null;
+
+    InferenceContext(Model model, ForkJoinPool pool) {
+        this.model = model;
+        this.classes = model.getClasses();
+        this.pool = pool;
+
+        for (Layer layer : model.getLayers()) {
+            this.layers.add(layer.replicate());
+        }
+    }
+
+    /**
+     * Predicts a single sample.
+     * @param data
+     * @return Class probabilities.
+     */
+    public double[] predict(double[][][] data) {
+        Data input = new Data();
+        input.write(data);
+
+        return infer(input)[0].clone();
+    }
+
+    /**
+     * Predicts every sample of a mini-batch in one pass.
+     * @param batch
+     * @return Class probabilities per sample.
+     */
+    public double[][] predict(Data batch) {
+        double[][] output = infer(batch);
+        double[][] probabilities = new double[output.length][];
+
+        for (int b = 0; b < output.length; b++) {
+            probabilities[b] = output[b].clone();
+        }
+
+        return probabilities;
+    }
+
+    /**
+     * Predicts every sample of a mini-batch in one pass, writing the class probabilities into the given array. Once
+     * the context has run a batch of this size, the call allocates nothing.
+     * @param batch
+     * @param probabilities batchSize x classes array to fill.
+     */
+    public void predict(Data batch, double[][] probabilities) {
+        double[][] output = infer(batch);
+
+        for (int b = 0; b < output.length; b++) {
+            System.arraycopy(output[b], 0, probabilities[b], 0, output[b].length);
+        }
+    }
+
+    public Model getModel() {
+        return this.model;
+    }
+
+    /**
+     * Runs the batch through the plan, compiling it first for input of a new shape or precision.
+     * @return Class probabilities per sample, owned by the workspace.
+     */
+    private double[][] infer(Data batch) {
+        Data input = batch.toPrecision(this.model.getSchedule().getPrecision());
+
+        if (this.plan == null || !this.plan.accepts(input)) {
+            this.plan = ExecutionPlan.compile(this.model.getSchedule(), this.layers, this.classes,
+                    input.getDimensions(), this.pool, this.workspace);
+        }
+
+        return CNN.activate(this.plan.infer(input), this.workspace);
+    }
+}
@@ -1,6 +1,7 @@
 package convnet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -19,8 +20,26 @@ public class Layer {
     private Data layerInput = new Data(); // Input map stack before layer processing.
     private Data layerOutput = new Data(); // Output map stack after layer processing.
     private List<Data> kernels = new ArrayList<>(); // Weight maps for conv layer.
-    private List<Double> biases = new ArrayList<>(); // Bias value(s) for conv layer.
-    private List<Data> layerErrors = new ArrayList<>(); // Error maps for conv layer.
+    private double[] kernelMatrix = null; // Kernels packed one per column for the conv engine.
+    private float[] kernelMatrixFloat = null; // Float32 packing of the kernels for the conv engine.
+    private String precision = "float64"; // Precision of kernels and activations [float64, float32].
+    private int kernelSize = 5; // Height and width of the kernels of a conv layer.
+    private String convolution = "gemm"; // Convolution algorithm of a conv layer [gemm, winograd, fft].
+    private String nonlinearity = "none"; // Nonlinearity fused into a conv layer's output writes.
+    private double[] winogradKernels = null; // Kernels transformed for Winograd convolution.
+    private float[] winogradKernelsFloat = null; // Float32 copy of the Winograd kernels.
+    private FftTask.Spectra kernelSpectra = null; // Kernel spectra for FFT convolution.
+    private FftTask.Spectra errorSpectra = null; // Rotated kernel spectra for the input error by FFT.
+    private QuantizedTask.Kernels quantizedKernels = null; // Int8 kernels of a quantized layer, which has no others.
+    private SparseTask.Kernels sparseKernels = null; // Nonzero kernel weights for sparse convolution.
+    private double[] biases = new double[0]; // Bias values for conv layer, from biasOffset on.
+    private int biasOffset = 0; // Position of the first bias within the biases buffer.
+    private int biasesLength = 0; // Number of biases held.
+    private double[] parameters = null; // Network parameter buffer the layer is packed into, or null if unpacked.
+    private int parameterOffset = 0; // Start of the layer's block of kernels then biases within the parameter buffer.
+    private Data layerError = null; // Error with respect to the layer input: a workspace buffer reused every step.
+    private double[] gradients = null; // Accumulated gradients, laid out like the layer's parameter block.
+    private int gradientOffset = 0; // Position of the layer's block within the gradients buffer.
     // private int paddingWidth; // Width of any zero padding added to convolutions.
     private int poolSize = 2; // Size of the max pooling window; always square.
     private int poolStride = 2; // Stride of the max pooling window.
@@ -35,6 +54,7 @@ public class Layer {
         Layer layer = new Layer();
         layer.setLayerInput(input);
         layer.setLayerType("input");
+        layer.setPrecision(this.precision);
 
         return layer;
     }
@@ -48,13 +68,14 @@ public class Layer {
         Layer layer = new Layer();
         layer.setLayerInput(prevLayer.getLayerOutput());
         layer.setLayerType("conv");
+        layer.setPrecision(this.precision);
 
-        int[] kernelShape = new int[]{5, 5, layer.getLayerInput().getDimensions()[2]};
+        int[] kernelShape = new int[]{this.kernelSize, this.kernelSize, layer.getLayerInput().getDimensions()[2]};
 
         for (int i = 0; i < this.neuronsLength; i++) {
             Data newKernel = new Data();
             newKernel.write(NumPute.random3dMatrix(kernelShape));
-            layer.setKernelByIndex(i, newKernel);
+            layer.setKernelByIndex(i, newKernel.toPrecision(this.precision));
             double newBias = new Random().nextDouble();
             layer.setBiasByIndex(i, newBias);
         }
@@ -71,6 +92,22 @@ public class Layer {
         Layer layer = new Layer();
         layer.setLayerInput(prevLayer.getLayerOutput());
         layer.setLayerType("pool");
+        layer.setPrecision(this.precision);
+
+        return layer;
+    }
+
+    /**
+     * Initiate a nonlinearity stage of the given type: "relu", "leakyrelu" or "sigmoid".
+     * @param prevLayer
+     * @param type
+     * @return
+     */
+    public Layer initNonlinearityLayer(Layer prevLayer, String type) {
+        Layer layer = new Layer();
+        layer.setLayerInput(prevLayer.getLayerOutput());
+        layer.setLayerType(type);
+        layer.setPrecision(this.precision);
 
         return layer;
     }
@@ -84,6 +121,7 @@ public class Layer {
         Layer layer = new Layer();
         layer.setLayerInput(prevLayer.getLayerOutput());
         layer.setLayerType("activation");
+        layer.setPrecision(this.precision);
 
         int[] activationKernelShape = layer.getLayerInput().getDimensions();
 
@@ -92,12 +130,84 @@ public class Layer {
             activationKernel.write(NumPute.random3dMatrix(activationKernelShape));
             double activationBias = new Random().nextDouble();
             layer.setBiasByIndex(i, activationBias);
-            layer.setKernelByIndex(i, activationKernel);
+            layer.setKernelByIndex(i, activationKernel.toPrecision(this.precision));
+        }
+
+        return layer;
+    }
+
+    /**
+     * Returns a layer of the same type and configuration that shares this layer's kernels, biases and packed kernel
+     * matrices, but has its own inputs, outputs, errors and gradients. Used to run several samples through the same
+     * weights at once.
+     * @return
+     */
+    public Layer replicate() {
+        Layer layer = new Layer();
+        layer.type = this.type;
+        layer.layerIndex = this.layerIndex;
+        layer.layerIndexSet = this.layerIndexSet;
+        layer.neuronsLength = this.neuronsLength;
+        layer.classes = this.classes;
+        layer.kernels = this.kernels;
+        layer.kernelMatrix = this.kernelMatrix;
+        layer.kernelMatrixFloat = this.kernelMatrixFloat;
+        layer.kernelSize = this.kernelSize;
+        layer.convolution = this.convolution;
+        layer.nonlinearity = this.nonlinearity;
+        layer.winogradKernels = this.winogradKernels;
+        layer.winogradKernelsFloat = this.winogradKernelsFloat;
+        layer.kernelSpectra = this.kernelSpectra;
+        layer.errorSpectra = this.errorSpectra;
+        layer.quantizedKernels = this.quantizedKernels;
+        layer.sparseKernels = this.sparseKernels;
+        layer.biases = this.biases;
+        layer.biasOffset = this.biasOffset;
+        layer.biasesLength = this.biasesLength;
+        layer.parameters = this.parameters;
+        layer.parameterOffset = this.parameterOffset;
+        layer.precision = this.precision;
+        layer.poolSize = this.poolSize;
+        layer.poolStride = this.poolStride;
+
+        return layer;
+    }
+
+    /**
+     * Returns a layer of the same type and configuration with its own, unpacked copies of this layer's kernels and
+     * biases, and none of its packed kernels, inputs, outputs, errors or gradients.
+     * @return
+     */
+    public Layer copy() {
+        Layer layer = this.replicate();
+        layer.invalidateKernelMatrix();
+        layer.kernels = new ArrayList<>();
+        layer.biases = Arrays.copyOfRange(this.biases, this.biasOffset, this.biasOffset + this.biasesLength);
+        layer.biasOffset = 0;
+        layer.parameters = null;
+        layer.parameterOffset = 0;
+
+        for (Data kernel : this.kernels) {
+            layer.kernels.add(kernel.copy());
         }
 
         return layer;
     }
 
+    /**
+     * Returns an empty layer of the given type and index, to be filled in from saved state.
+     * @param type
+     * @param index
+     * @return
+     */
+    static Layer restore(String type, int index) {
+        Layer layer = new Layer();
+        layer.setLayerType(type);
+        layer.setLayerIndex(index);
+
+        return layer;
+    }
+
     /**
      * Set current layer type.
      * @param type
@@ -116,6 +226,12 @@ public class Layer {
             case "activation":
                 this.type = "activation";
                 break;
+            case "relu":
+            case "leakyrelu":
+            case "sigmoid":
+                this.type = type;
+                this.nonlinearity = type;
+                break;
             default:
                 this.type = "input";
                 break;
@@ -182,19 +298,361 @@ public class Layer {
         this.neuronsLength = length;
     }
 
+    /**
+     */
+    public int getNeuronsLength() {
+        return this.neuronsLength;
+    }
+
     /**
      */
     public void setClasses(String[] classes) {
         this.classes = classes;
     }
 
+    /**
+     */
+    public String[] getClasses() {
+        return this.classes;
+    }
+
     /**
      * Define a new kernel for a convolutional layer.
      * @param index
      * @param kernel
      */
     public void setKernelByIndex(int index, Data kernel) {
-        this.kernels.set(index, kernel);
+        if (index < this.kernels.size() && this.parameters != null
+                && Arrays.equals(this.kernels.get(index).getDimensions(), kernel.getDimensions())) {
+            this.kernels.get(index).copyFrom(kernel);
+        } else {
+            unpack();
+
+            if (index == this.kernels.size()) {
+                this.kernels.add(kernel);
+            } else {
+                this.kernels.set(index, kernel);
+            }
+        }
+
+        this.invalidateKernelMatrix();
+    }
+
+    /**
+     * Returns all kernels of the layer packed as one row-major matrix, with one flattened kernel per column, ready
+     * to multiply a patch matrix by. The matrix is packed once and reused until a kernel is replaced or updated.
+     * @return
+     */
+    public double[] getKernelMatrix() {
+        if (this.kernelMatrix == null) {
+            double[] matrix = new double[this.kernels.get(0).length() * this.kernels.size()];
+            packKernelMatrix(matrix);
+            this.kernelMatrix = matrix;
+        }
+
+        return this.kernelMatrix;
+    }
+
+    /**
+     * Packs the current kernel values into the given matrix, laid out as getKernelMatrix returns it.
+     */
+    private void packKernelMatrix(double[] matrix) {
+        int kernelsLength = this.kernels.size();
+
+        for (int k = 0; k < kernelsLength; k++) {
+            Data kernel = this.kernels.get(k);
+            int[] dims = kernel.getDimensions();
+            int p = 0;
+
+            for (int i = 0; i < dims[0]; i++) {
+                for (int j = 0; j < dims[1]; j++) {
+                    for (int l = 0; l < Math.max(dims[2], 1); l++) {
+                        matrix[(p++) * kernelsLength + k] = kernel.get(i, j, l);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Float32 counterpart of getKernelMatrix, for layers running in float32 precision.
+     * @return
+     */
+    public float[] getKernelMatrixFloat() {
+        if (this.kernelMatrixFloat == null) {
+            double[] matrix = this.getKernelMatrix();
+            float[] floatMatrix = new float[matrix.length];
+
+            for (int i = 0; i < matrix.length; i++) {
+                floatMatrix[i] = (float) matrix[i];
+            }
+
+            this.kernelMatrixFloat = floatMatrix;
+        }
+
+        return this.kernelMatrixFloat;
+    }
+
+    /**
+     * Returns all kernels transformed for Winograd convolution, computed once and reused until a kernel is replaced or
+     * updated.
+     * @return
+     */
+    public double[] getWinogradKernels() {
+        if (this.winogradKernels == null) {
+            this.winogradKernels = WinogradTask.transformKernels(this);
+        }
+
+        return this.winogradKernels;
+    }
+
+    /**
+     * Float32 counterpart of getWinogradKernels.
+     * @return
+     */
+    public float[] getWinogradKernelsFloat() {
+        if (this.winogradKernelsFloat == null) {
+            double[] kernels = this.getWinogradKernels();
+            float[] floatKernels = new float[kernels.length];
+
+            for (int i = 0; i < kernels.length; i++) {
+                floatKernels[i] = (float) kernels[i];
+            }
+
+            this.winogradKernelsFloat = floatKernels;
+        }
+
+        return this.winogradKernelsFloat;
+    }
+
+    /**
+     * Returns the spectra of all kernels for FFT convolution, computed once and reused until a kernel is replaced or
+     * updated.
+     * @return
+     */
+    FftTask.Spectra getKernelSpectra() {
+        if (this.kernelSpectra == null) {
+            this.kernelSpectra = FftTask.transformKernels(this);
+        }
+
+        return this.kernelSpectra;
+    }
+
+    /**
+     * Returns the spectra of the kernels rotated for the error of the layer's input by FFT, computed once and reused
+     * until a kernel is replaced or updated.
+     * @return
+     */
+    FftTask.Spectra getErrorSpectra() {
+        if (this.errorSpectra == null) {
+            this.errorSpectra = FftTask.transformErrorKernels(this);
+        }
+
+        return this.errorSpectra;
+    }
+
+    /**
+     * Returns the nonzero weights of all kernels compressed for sparse convolution, computed once and reused until a
+     * kernel is replaced or updated.
+     * @return
+     */
+    SparseTask.Kernels getSparseKernels() {
+        if (this.sparseKernels == null) {
+            this.sparseKernels = SparseTask.compress(this);
+        }
+
+        return this.sparseKernels;
+    }
+
+    /**
+     * Returns the fraction of the layer's kernel weights that are nonzero.
+     * @return
+     */
+    public double getDensity() {
+        double[] matrix = getKernelMatrix();
+        int nonzeros = 0;
+
+        for (double value : matrix) {
+            if (value != 0.0) {
+                nonzeros++;
+            }
+        }
+
+        return (double) nonzeros / matrix.length;
+    }
+
+    /**
+     * Zeroes the given fraction of the layer's kernel weights, those of smallest magnitude, so that convolution can
+     * skip them. Biases are kept. Weights zeroed here grow back if the layer is trained further, so prune again after.
+     * @param sparsity Fraction of weights to zero, from 0 to 1.
+     */
+    public void prune(double sparsity) {
+        if (sparsity < 0.0 || sparsity > 1.0) {
+            throw new RuntimeException("Sparsity must be between 0 and 1.");
+        }
+
+        if (isQuantized()) {
+            throw new RuntimeException("A quantized layer can't be pruned.");
+        }
+
+        double[] magnitudes = getKernelMatrix().clone();
+
+        for (int i = 0; i < magnitudes.length; i++) {
+            magnitudes[i] = Math.abs(magnitudes[i]);
+        }
+
+        Arrays.sort(magnitudes);
+        int remaining = (int) Math.round(sparsity * magnitudes.length);
+
+        if (remaining == 0) {
+            return;
+        }
+
+        double threshold = magnitudes[remaining - 1];
+
+        for (Data kernel : this.kernels) {
+            int[] dims = kernel.getDimensions();
+
+            for (int i = 0; i < dims[0]; i++) {
+                for (int j = 0; j < dims[1]; j++) {
+                    for (int l = 0; l < Math.max(dims[2], 1); l++) {
+                        if (remaining > 0 && Math.abs(kernel.get(i, j, l)) <= threshold) {
+                            kernel.set(i, j, l, 0.0);
+                            remaining--;
+                        }
+                    }
+                }
+            }
+        }
+
+        invalidateKernelMatrix();
+    }
+
+    /**
+     * Discards the packed and transformed kernels after kernel values have been changed in place.
+     */
+    public void invalidateKernelMatrix() {
+        this.kernelMatrix = null;
+        this.kernelMatrixFloat = null;
+        this.winogradKernels = null;
+        this.winogradKernelsFloat = null;
+        this.kernelSpectra = null;
+        this.errorSpectra = null;
+        this.sparseKernels = null;
+    }
+
+    /**
+     * Set the height and width of the kernels a conv layer is initiated with.
+     * @param kernelSize
+     */
+    public void setKernelSize(int kernelSize) {
+        this.kernelSize = kernelSize;
+    }
+
+    /**
+     */
+    public int getKernelSize() {
+        return this.kernelSize;
+    }
+
+    /**
+     * Set the algorithm the layer convolves with: "gemm", "winograd", "fft", "sparse" or "int8". Winograd needs 3x3 or
+     * 5x5 kernels, and int8 a quantized layer.
+     * @param convolution
+     */
+    public void setConvolution(String convolution) {
+        switch (convolution) {
+            case "gemm":
+                this.convolution = "gemm";
+                break;
+            case "winograd":
+                this.convolution = "winograd";
+                break;
+            case "fft":
+                this.convolution = "fft";
+                break;
+            case "sparse":
+                this.convolution = "sparse";
+                break;
+            case "int8":
+                if (this.quantizedKernels == null) {
+                    throw new RuntimeException("Int8 convolution needs a quantized layer.");
+                }
+
+                this.convolution = "int8";
+                break;
+            default:
+                throw new RuntimeException("Unknown convolution: " + convolution);
+        }
+    }
+
+    /**
+     */
+    public String getConvolution() {
+        return this.convolution;
+    }
+
+    /**
+     * Repacks the kernel matrices in place after kernel values have been updated, as by a training step, so that a
+     * step allocates no new ones. Other transforms of the kernels are discarded as by invalidateKernelMatrix. Replicas
+     * share the matrices and the kernels, so repacking one repacks them for all.
+     */
+    void refreshKernelMatrix() {
+        double[] matrix = this.kernelMatrix;
+        float[] floatMatrix = this.kernelMatrixFloat;
+        invalidateKernelMatrix();
+
+        if (matrix != null) {
+            packKernelMatrix(matrix);
+            this.kernelMatrix = matrix;
+
+            if (floatMatrix != null) {
+                for (int i = 0; i < matrix.length; i++) {
+                    floatMatrix[i] = (float) matrix[i];
+                }
+
+                this.kernelMatrixFloat = floatMatrix;
+            }
+        }
+    }
+
+    /**
+     * Set the nonlinearity a conv layer applies to its output as it writes it: "none", "relu", "leakyrelu" or
+     * "sigmoid".
+     * @param nonlinearity
+     */
+    public void setNonlinearity(String nonlinearity) {
+        Nonlinearity.of(nonlinearity);
+        this.nonlinearity = nonlinearity;
+    }
+
+    /**
+     */
+    public String getNonlinearity() {
+        return this.nonlinearity;
+    }
+
+    /**
+     * Set the precision of the layer's kernels and activations, either "float64" or "float32".
+     * @param precision
+     */
+    public void setPrecision(String precision) {
+        switch (precision) {
+            case "float64":
+                this.precision = "float64";
+                break;
+            case "float32":
+                this.precision = "float32";
+                break;
+            default:
+                throw new RuntimeException("Unknown precision: " + precision);
+        }
+    }
+
+    /**
+     */
+    public String getPrecision() {
+        return this.precision;
     }
 
     /**
@@ -206,40 +664,199 @@ public class Layer {
     /**
      */
     public int getKernelsLength() {
-        return this.kernels.size();
+        return this.quantizedKernels != null ? this.quantizedKernels.kernelsLength : this.kernels.size();
+    }
+
+    /**
+     * Returns the [ Height, Width, Depth ] of the layer's kernels, which a quantized layer knows without holding them.
+     * @return
+     */
+    public int[] getKernelDimensions() {
+        return this.quantizedKernels != null ? this.quantizedKernels.dimensions : this.kernels.get(0).getDimensions();
+    }
+
+    /**
+     * Replaces the layer's kernels with the given int8 kernels, and switches it to int8 convolution. The float
+     * kernels and everything packed from them are dropped, so the layer can no longer train or run any other
+     * convolution. Biases stay in float64.
+     * @param kernels
+     */
+    void quantize(QuantizedTask.Kernels kernels) {
+        unpack();
+        this.quantizedKernels = kernels;
+        this.kernels = new ArrayList<>();
+        invalidateKernelMatrix();
+        this.convolution = "int8";
+    }
+
+    /**
+     * Returns the layer's int8 kernels, or null unless it is quantized.
+     * @return
+     */
+    QuantizedTask.Kernels getQuantizedKernels() {
+        return this.quantizedKernels;
+    }
+
+    /**
+     */
+    public boolean isQuantized() {
+        return this.quantizedKernels != null;
     }
 
     /**
      */
     public void setBiasByIndex(int index, double bias) {
-        this.biases.set(index, bias);
+        if (index == this.biasesLength) {
+            unpack();
+
+            if (this.biasesLength == this.biases.length) {
+                this.biases = Arrays.copyOf(this.biases, Math.max(8, 2 * this.biasesLength));
+            }
+
+            this.biasesLength++;
+        } else if (index > this.biasesLength) {
+            throw new RuntimeException("Bias index " + index + " is out of range.");
+        }
+
+        this.biases[this.biasOffset + index] = bias;
     }
 
     /**
      */
     public double getBiasByIndex(int index) {
-        return this.biases.get(index);
+        return this.biases[this.biasOffset + index];
     }
 
     /**
-     * Define a new error map for a convolutional layer.
-     * @param index
-     * @param errorData
+     * Returns the number of kernel weights and biases of the layer.
+     * @return
+     */
+    public int getParametersLength() {
+        return this.kernels.isEmpty() ? 0 : this.kernels.size() * (this.kernels.get(0).length() + 1);
+    }
+
+    /**
+     * Packs the layer's kernels and biases into the given parameter buffer from the given offset, kernels one after
+     * another then biases, and its gradients into the same place of the given gradients buffer. From then on the
+     * kernels are float64 views of the buffer, whatever the layer's precision, and the buffer is the only copy of the
+     * layer's weights.
+     * @param values
+     * @param gradients
+     * @param offset
+     */
+    void pack(double[] values, double[] gradients, int offset) {
+        int kernelsLength = this.kernels.size();
+        int patchLength = this.kernels.get(0).length();
+        int block = getParametersLength();
+
+        if (this.biasesLength != kernelsLength) {
+            throw new RuntimeException("Layer has " + kernelsLength + " kernels but " + this.biasesLength + " biases.");
+        }
+
+        for (int k = 0; k < kernelsLength; k++) {
+            Data kernel = this.kernels.get(k);
+            Data view = Data.view(values, offset + k * patchLength, kernel.getDimensions());
+            view.copyFrom(kernel);
+            this.kernels.set(k, view);
+        }
+
+        System.arraycopy(this.biases, this.biasOffset, values, offset + kernelsLength * patchLength, kernelsLength);
+
+        if (this.gradients != null) {
+            System.arraycopy(this.gradients, this.gradientOffset, gradients, offset, block);
+        }
+
+        this.biases = values;
+        this.biasOffset = offset + kernelsLength * patchLength;
+        this.parameters = values;
+        this.parameterOffset = offset;
+        this.gradients = gradients;
+        this.gradientOffset = offset;
+        this.invalidateKernelMatrix();
+    }
+
+    /**
+     * Points the gradients of a packed layer at the given buffer, at the place of its block in the parameter buffer.
+     * Used by replicas, which share the weights but not the gradients.
+     * @param gradients
+     */
+    void packGradients(double[] gradients) {
+        this.gradients = gradients;
+        this.gradientOffset = this.parameterOffset;
+    }
+
+    /**
+     * Whether the layer is packed into the given parameter and gradient buffers.
+     * @param values
+     * @param gradients
+     * @return
+     */
+    boolean isPackedInto(double[] values, double[] gradients) {
+        return this.parameters == values && this.gradients == gradients;
+    }
+
+    /**
+     * Gives the layer its own copy of its biases and forgets its packing, before a kernel or bias is added or
+     * reshaped. Kernel views keep their values and are copied again the next time the network packs.
      */
-    public void setLayerErrorByIndex(int index, Data errorData) {
-        this.layerErrors.set(index, errorData);
+    private void unpack() {
+        if (this.parameters == null) {
+            return;
+        }
+
+        this.biases = Arrays.copyOfRange(this.biases, this.biasOffset, this.biasOffset + this.biasesLength);
+        this.biasOffset = 0;
+        this.parameters = null;
+        this.parameterOffset = 0;
+        this.gradients = null;
+        this.gradientOffset = 0;
     }
 
     /**
+     * Returns the buffer holding the gradients accumulated since the last clear. From getGradientOffset on, it holds
+     * the gradients of each kernel in turn, laid out like the kernel, then those of the biases.
+     * @return
      */
-    public Data getLayerErrorByIndex(int index) {
-        return this.layerErrors.get(index);
+    public double[] getGradients() {
+        if (this.gradients == null) {
+            this.gradients = new double[getParametersLength()];
+            this.gradientOffset = 0;
+        }
+
+        return this.gradients;
     }
 
     /**
+     * Returns the position of the layer's gradients within getGradients.
+     * @return
+     */
+    public int getGradientOffset() {
+        return this.gradientOffset;
+    }
+
+    /**
+     * Zeroes the accumulated kernel and bias gradients.
+     */
+    public void clearGradients() {
+        if (this.gradients != null) {
+            Arrays.fill(this.gradients, this.gradientOffset, this.gradientOffset + getParametersLength(), 0.0);
+        }
+    }
+
+    /**
+     * Store the error of the loss with respect to this layer's input, for the layer before it to propagate further.
+     * @param layerError
+     */
+    public void setLayerError(Data layerError) {
+        this.layerError = layerError;
+    }
+
+    /**
+     * Returns the error with respect to this layer's input from the last backward pass, or null if there was none.
+     * @return
      */
-    public int getLayerErrorsLength() {
-        return this.layerErrors.size();
+    public Data getLayerError() {
+        return this.layerError;
     }
 
     /**
@@ -0,0 +1,265 @@
+package convnet;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The Metrics class records what each layer of a network costs, per pass: wall time with a histogram of its spread,
+ * achieved GFLOP/s, bytes allocated and the size of the layer's output. Recording is opt-in through CNN.setMetrics;
+ * a network without metrics checks one null reference per layer and does nothing else.
+ *
+ * FLOPs are those of direct convolution, whatever algorithm a layer runs, so faster algorithms show as higher GFLOP/s.
+ * Allocation is counted on the thread that runs the pass, not on the pool threads a layer forks work to. The metrics
+ * of a network are shared by the replicas a parallel trainer runs, so recording is synchronized.
+ * @author Jared Gorski
+ */
+public final class Metrics {
+
+    private static final String[] PHASES = {"forward", "backward", "infer"};
+    private static final int BUCKETS = 48; // Bucket b of a histogram counts times in [2^b, 2^(b+1)) nanoseconds.
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Stats[][] stats = new Stats[PHASES.length][0]; // Indexed by [ phase ][ layer ].
+
+    /**
+     * Receives every layer run as it is recorded.
+     */
+    public interface Listener {
+        void layerRan(Sample sample);
+    }
+
+    /**
+     * One run of one layer.
+     */
+    public static final class Sample {
+
+        private final int layerIndex;
+        private final String layerType;
+        private final String phase;
+        private final long nanos;
+        private final long flops;
+        private final long allocatedBytes;
+        private final long activationBytes;
+
+        Sample(int layerIndex, String layerType, String phase, long nanos, long flops, long allocatedBytes,
+               long activationBytes) {
+            this.layerIndex = layerIndex;
+            this.layerType = layerType;
+            this.phase = phase;
+            this.nanos = nanos;
+            this.flops = flops;
+            this.allocatedBytes = allocatedBytes;
+            this.activationBytes = activationBytes;
+        }
+
+        public int getLayerIndex() {
+            return this.layerIndex;
+        }
+
+        public String getLayerType() {
+            return this.layerType;
+        }
+
+        /**
+         * Returns "forward", "backward" or "infer".
+         * @return
+         */
+        public String getPhase() {
+            return this.phase;
+        }
+
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        public long getFlops() {
+            return this.flops;
+        }
+
+        public double getGflops() {
+            return this.nanos == 0 ? 0.0 : (double) this.flops / this.nanos;
+        }
+
+        public long getAllocatedBytes() {
+            return this.allocatedBytes;
+        }
+
+        /**
+         * Returns the bytes of the mini-batch the layer wrote: its output going forward, its input error going back.
+         * @return
+         */
+        public long getActivationBytes() {
+            return this.activationBytes;
+        }
+    }
+
+    /**
+     * Totals of one layer in one phase.
+     */
+    private static final class Stats {
+
+        private final int layerIndex;
+        private final String layerType;
+        private final long[] histogram = new long[BUCKETS];
+        private long count = 0;
+        private long nanos = 0;
+        private long maxNanos = 0;
+        private long flops = 0;
+        private long allocatedBytes = 0;
+        private long activationBytes = 0;
+
+        Stats(int layerIndex, String layerType) {
+            this.layerIndex = layerIndex;
+            this.layerType = layerType;
+        }
+
+        /**
+         * Upper bound, in nanoseconds, of the histogram bucket holding the given quantile.
+         */
+        long quantile(double q) {
+            long rank = (long) Math.ceil(q * this.count);
+            long seen = 0;
+
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += this.histogram[b];
+
+                if (seen >= rank && seen > 0) {
+                    return Math.min(1L << (b + 1), this.maxNanos);
+                }
+            }
+
+            return this.maxNanos;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public synchronized void reset() {
+        this.stats = new Stats[PHASES.length][0];
+    }
+
+    /**
+     * Returns the bytes allocated so far by the calling thread, or 0 where the JVM does not count them.
+     * @return
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    /**
+     * Records one run of a layer and passes it on to the listeners.
+     * @param layer
+     * @param phase "forward", "backward" or "infer".
+     * @param nanos
+     * @param flops
+     * @param allocatedBytes
+     * @param activationBytes
+     */
+    void record(Layer layer, String phase, long nanos, long flops, long allocatedBytes, long activationBytes) {
+        int index = layer.getLayerIndex();
+
+        synchronized (this) {
+            int p = phaseIndex(phase);
+
+            if (index >= this.stats[p].length) {
+                this.stats[p] = Arrays.copyOf(this.stats[p], index + 1);
+            }
+
+            Stats layerStats = this.stats[p][index];
+
+            if (layerStats == null) {
+                layerStats = new Stats(index, layer.getLayerType());
+                this.stats[p][index] = layerStats;
+            }
+
+            int bucket = 63 - Long.numberOfLeadingZeros(Math.max(nanos, 1));
+            layerStats.histogram[Math.min(bucket, BUCKETS - 1)]++;
+            layerStats.count++;
+            layerStats.nanos += nanos;
+            layerStats.maxNanos = Math.max(layerStats.maxNanos, nanos);
+            layerStats.flops += flops;
+            layerStats.allocatedBytes += allocatedBytes;
+            layerStats.activationBytes = activationBytes;
+        }
+
+        if (!this.listeners.isEmpty()) {
+            Sample sample = new Sample(index, layer.getLayerType(), phase, nanos, flops, allocatedBytes,
+                    activationBytes);
+
+            for (Listener listener : this.listeners) {
+                listener.layerRan(sample);
+            }
+        }
+    }
+
+    private static int phaseIndex(String phase) {
+        for (int p = 0; p < PHASES.length; p++) {
+            if (PHASES[p].equals(phase)) {
+                return p;
+            }
+        }
+
+        throw new RuntimeException("Unknown phase: " + phase);
+    }
+
+    /**
+     * Returns a table of every layer and phase recorded: runs, mean, median, 99th percentile and worst time, achieved
+     * GFLOP/s, bytes allocated per run and the size of the last activation. Percentiles are read off the histogram, so
+     * are only accurate to a power of two.
+     * @return
+     */
+    public synchronized String table() {
+        StringBuilder table = new StringBuilder();
+        String format = "%5s %-10s %-8s %8s %10s %10s %10s %10s %9s %12s %12s%n";
+        table.append(String.format(format, "layer", "type", "phase", "runs", "mean ms", "p50 ms", "p99 ms",
+                "max ms", "GFLOP/s", "alloc/run", "activation"));
+
+        int layers = 0;
+
+        for (Stats[] byLayer : this.stats) {
+            layers = Math.max(layers, byLayer.length);
+        }
+
+        for (int i = 0; i < layers; i++) {
+            for (int p = 0; p < PHASES.length; p++) {
+                Stats s = i < this.stats[p].length ? this.stats[p][i] : null;
+
+                if (s == null || s.count == 0) {
+                    continue;
+                }
+
+                table.append(String.format(format,
+                        s.layerIndex,
+                        s.layerType,
+                        PHASES[p],
+                        s.count,
+                        String.format("%.3f", s.nanos / 1e6 / s.count),
+                        String.format("%.3f", s.quantile(0.5) / 1e6),
+                        String.format("%.3f", s.quantile(0.99) / 1e6),
+                        String.format("%.3f", s.maxNanos / 1e6),
+                        String.format("%.2f", s.nanos == 0 ? 0.0 : (double) s.flops / s.nanos),
+                        s.allocatedBytes / s.count,
+                        s.activationBytes));
+            }
+        }
+
+        return table.toString();
+    }
+}
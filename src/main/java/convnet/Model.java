@@ -0,0 +1,126 @@
+package convnet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The Model class is a trained network frozen for inference: its schedule, classes and a single copy of its weights,
+ * none of which change after construction. A model holds no activations, so one instance can be shared by any number
+ * of threads. Each thread predicts through an InferenceContext of its own, which holds that thread's activations and
+ * shares the model's kernels.
+ * @author Jared Gorski
+ */
+public final class Model {
+
+    private final Schedule schedule;
+    private final String[] classes;
+    private final List<Layer> layers;
+    private final int[] inputShape;
+
+    /**
+     * Copies the given schedule, classes and layers, and resolves the algorithm of every conv layer for samples of the
+     * given shape, as the network's own plan does. The resolved algorithms are fixed in the model's schedule, and
+     * kernel matrices packed and Winograd, FFT or sparse kernels transformed here, once, so that contexts only ever
+     * read them. Quantized layers have nothing to pack.
+     */
+    Model(Schedule schedule, String[] classes, List<Layer> layers, int[] inputShape) {
+        Schedule frozen = schedule.copy();
+        List<Layer> copies = new ArrayList<>();
+        boolean isFloat = "float32".equals(frozen.getPrecision());
+
+        for (Layer layer : layers) {
+            copies.add(layer.copy());
+        }
+
+        // Compiling resolves "auto" and checks every requested algorithm against its layer and input.
+        ExecutionPlan.compile(frozen, copies, classes, inputShape, null, new Workspace());
+
+        for (int i = 0; i < copies.size(); i++) {
+            Layer copy = copies.get(i);
+
+            if ("conv".equals(frozen.getLayers()[i])) {
+                frozen.setConvolution(i, copy.getConvolution());
+            }
+
+            if (copy.getKernelsLength() > 0 && !copy.isQuantized()) {
+                copy.getKernelMatrix();
+
+                if (isFloat) {
+                    copy.getKernelMatrixFloat();
+                }
+
+                if ("winograd".equals(copy.getConvolution())) {
+                    copy.getWinogradKernels();
+
+                    if (isFloat) {
+                        copy.getWinogradKernelsFloat();
+                    }
+                }
+
+                if ("fft".equals(copy.getConvolution())) {
+                    copy.getKernelSpectra();
+                }
+
+                if ("sparse".equals(copy.getConvolution())) {
+                    copy.getSparseKernels();
+                }
+            }
+        }
+
+        this.schedule = frozen;
+        this.classes = classes.clone();
+        this.layers = Collections.unmodifiableList(copies);
+        this.inputShape = inputShape.clone();
+    }
+
+    /**
+     * Loads a model from a checkpoint written by CNN.checkpoint.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Model load(String filename) throws IOException {
+        return CNN.restore(filename).toModel();
+    }
+
+    /**
+     * Returns a new context that predicts on the calling thread. Contexts are cheap, but not thread-safe; use one per
+     * thread.
+     * @return
+     */
+    public InferenceContext newContext() {
+        return new InferenceContext(this, null);
+    }
+
+    /**
+     * Returns a new context that spreads each prediction across the given pool.
+     * @param pool
+     * @return
+     */
+    public InferenceContext newContext(ForkJoinPool pool) {
+        return new InferenceContext(this, pool);
+    }
+
+    public String[] getClasses() {
+        return this.classes.clone();
+    }
+
+    Schedule getSchedule() {
+        return this.schedule;
+    }
+
+    List<Layer> getLayers() {
+        return this.layers;
+    }
+
+    /**
+     * Returns the shape of the samples the model's algorithms were resolved for.
+     * @return
+     */
+    int[] getInputShape() {
+        return this.inputShape;
+    }
+}
@@ -0,0 +1,115 @@
+package convnet;
+
+/**
+ * The Nonlinearity class holds the element-wise nonlinearities a schedule can place after a layer: "relu",
+ * "leakyrelu" and "sigmoid", plus "none". Hot loops look a nonlinearity up once by name and then switch on its code,
+ * so no string is compared per element. Derivatives are taken from the nonlinearity's output, which is what the
+ * forward pass keeps.
+ * @author Jared Gorski
+ */
+final class Nonlinearity {
+
+    static final int NONE = 0;
+    static final int RELU = 1;
+    static final int LEAKY_RELU = 2;
+    static final int SIGMOID = 3;
+
+    static final double LEAKY_SLOPE = 0.01; // Slope of leaky ReLU below zero.
+
+    private Nonlinearity() {}
+
+    /**
+     * Whether the given schedule layer name is a nonlinearity stage.
+     * @param name
+     * @return
+     */
+    static boolean isStage(String name) {
+        return "relu".equals(name) || "leakyrelu".equals(name) || "sigmoid".equals(name);
+    }
+
+    /**
+     * Returns the code of the named nonlinearity.
+     * @param name
+     * @return
+     */
+    static int of(String name) {
+        switch (name) {
+            case "none":
+                return NONE;
+            case "relu":
+                return RELU;
+            case "leakyrelu":
+                return LEAKY_RELU;
+            case "sigmoid":
+                return SIGMOID;
+            default:
+                throw new RuntimeException("Unknown nonlinearity: " + name);
+        }
+    }
+
+    static double apply(int nonlinearity, double x) {
+        switch (nonlinearity) {
+            case RELU:
+                return x > 0.0 ? x : 0.0;
+            case LEAKY_RELU:
+                return x > 0.0 ? x : LEAKY_SLOPE * x;
+            case SIGMOID:
+                return 1.0 / (1.0 + Math.exp(-x));
+            default:
+                return x;
+        }
+    }
+
+    /**
+     * Returns the derivative of the nonlinearity at the input that produced the given output.
+     * @param nonlinearity
+     * @param y
+     * @return
+     */
+    static double derivative(int nonlinearity, double y) {
+        switch (nonlinearity) {
+            case RELU:
+                return y > 0.0 ? 1.0 : 0.0;
+            case LEAKY_RELU:
+                return y > 0.0 ? 1.0 : LEAKY_SLOPE;
+            case SIGMOID:
+                return y * (1.0 - y);
+            default:
+                return 1.0;
+        }
+    }
+
+    /**
+     * Applies the nonlinearity in place to a rows x cols block of a row-major matrix with row stride ld.
+     */
+    static void apply(int nonlinearity, double[] c, int off, int rows, int cols, int ld) {
+        if (nonlinearity == NONE) {
+            return;
+        }
+
+        for (int i = 0; i < rows; i++) {
+            int row = off + i * ld;
+
+            for (int j = row; j < row + cols; j++) {
+                c[j] = apply(nonlinearity, c[j]);
+            }
+        }
+    }
+
+    /**
+     * Float32 counterpart of apply over a block.
+     */
+    static void apply(int nonlinearity, float[] c, int off, int rows, int cols, int ld) {
+        if (nonlinearity == NONE) {
+            return;
+        }
+
+        for (int i = 0; i < rows; i++) {
+            int row = off + i * ld;
+
+            for (int j = row; j < row + cols; j++) {
+                c[j] = (float) apply(nonlinearity, c[j]);
+            }
+        }
+    }
+}
@@ -9,6 +9,29 @@ import java.util.Random;
  */
 public class NumPute {
 
+    private static final ArrayKernels KERNELS = loadKernels();
+
+    /**
+     * Loads the Vector API kernels when running on Java 17+ with jdk.incubator.vector resolved, otherwise the
+     * scalar kernels.
+     * @return
+     */
+    private static ArrayKernels loadKernels() {
+        try {
+            return (ArrayKernels) Class.forName("convnet.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            return new ScalarKernels();
+        }
+    }
+
+    /**
+     * Returns the name of the kernel implementation in use, either "vector" or "scalar".
+     * @return
+     */
+    public static String getKernelsName() {
+        return KERNELS instanceof ScalarKernels ? "scalar" : "vector";
+    }
+
     /**
      * Dot product of two 2d matrices.
      * @param a
@@ -28,9 +51,7 @@ public class NumPute {
         double result = 0.0;
 
         for (int i = 0; i < m1; i++) {
-            for (int j = 0; j < n1; j++) {
-                result += a[i][j] * b[i][j];
-            }
+            result += KERNELS.dot(a[i], 0, b[i], 0, n1);
         }
 
         return result;
@@ -58,8 +79,118 @@ public class NumPute {
 
         for (int i = 0; i < m1; i++) {
             for (int j = 0; j < n1; j++) {
-                for (int k = 0; k < o1; k++) {
-                    result += a[i][j][k] * b[i][j][k];
+                result += KERNELS.dot(a[i][j], 0, b[i][j], 0, o1);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Dot product of two 3d tensors of equal dimensions, either of which may be a strided view.
+     * @param a
+     * @param b
+     * @return
+     */
+    public static double dot(Data a, Data b) {
+        int[] da = a.getDimensions();
+        int[] db = b.getDimensions();
+
+        if (da[0] != db[0] || da[1] != db[1] || da[2] != db[2]) {
+            throw new RuntimeException("Illegal matrix dimensions.");
+        }
+
+        int m = da[0];
+        int n = da[1];
+        int o = Math.max(da[2], 1);
+
+        if (a.isFloat() || b.isFloat()) {
+            return dotFloat(a, b, m, n, o);
+        }
+
+        double[] aBuf = a.getBuffer();
+        double[] bBuf = b.getBuffer();
+        int[] as = a.getStrides();
+        int[] bs = b.getStrides();
+        double result = 0.0;
+
+        if (hasContiguousRows(a) && hasContiguousRows(b)) {
+            for (int i = 0; i < m; i++) {
+                result += KERNELS.dot(aBuf, a.getOffset() + i * as[0], bBuf, b.getOffset() + i * bs[0], n * o);
+            }
+
+            return result;
+        }
+
+        for (int i = 0; i < m; i++) {
+            int ai = a.getOffset() + i * as[0];
+            int bi = b.getOffset() + i * bs[0];
+
+            for (int j = 0; j < n; j++) {
+                int aij = ai + j * as[1];
+                int bij = bi + j * bs[1];
+
+                for (int k = 0; k < o; k++) {
+                    result += aBuf[aij + k * as[2]] * bBuf[bij + k * bs[2]];
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Dot product of two runs of int8 values, accumulated in int32.
+     * @param a
+     * @param aOff
+     * @param b
+     * @param bOff
+     * @param length
+     * @return
+     */
+    public static int dot(byte[] a, int aOff, byte[] b, int bOff, int length) {
+        return KERNELS.dot(a, aOff, b, bOff, length);
+    }
+
+    private static double dotFloat(Data a, Data b, int m, int n, int o) {
+        if (!a.isFloat() || !b.isFloat()) {
+            double result = 0.0;
+
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < n; j++) {
+                    for (int k = 0; k < o; k++) {
+                        result += a.get(i, j, k) * b.get(i, j, k);
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        float[] aBuf = a.getFloatBuffer();
+        float[] bBuf = b.getFloatBuffer();
+        int[] as = a.getStrides();
+        int[] bs = b.getStrides();
+        float result = 0.0f;
+
+        if (hasContiguousRows(a) && hasContiguousRows(b)) {
+            for (int i = 0; i < m; i++) {
+                result += KERNELS.dot(aBuf, a.getOffset() + i * as[0], bBuf, b.getOffset() + i * bs[0], n * o);
+            }
+
+            return result;
+        }
+
+        for (int i = 0; i < m; i++) {
+            int ai = a.getOffset() + i * as[0];
+            int bi = b.getOffset() + i * bs[0];
+
+            for (int j = 0; j < n; j++) {
+                int aij = ai + j * as[1];
+                int bij = bi + j * bs[1];
+
+                for (int k = 0; k < o; k++) {
+                    result += aBuf[aij + k * as[2]] * bBuf[bij + k * bs[2]];
                 }
             }
         }
@@ -67,6 +198,424 @@ public class NumPute {
         return result;
     }
 
+    /**
+     * Whether each row of the data, across its full width and depth, is one unbroken run of its buffer.
+     */
+    private static boolean hasContiguousRows(Data a) {
+        int[] strides = a.getStrides();
+        return strides[2] == 1 && strides[1] == Math.max(a.getDimensions()[2], 1);
+    }
+
+    /**
+     * Lowers every km x kn window of the input, taken at the given stride, into one row of a patch matrix. Each row
+     * holds its window in [ Height, Width, Depth ] order, so that a convolution over the input becomes a single
+     * multiplication of the patch matrix by a matrix of flattened kernels.
+     * @param input
+     * @param km
+     * @param kn
+     * @param stride
+     * @param patches Destination of ((m - km) / stride + 1) * ((n - kn) / stride + 1) rows of km * kn * o values.
+     */
+    public static void im2col(Data input, int km, int kn, int stride, double[] patches) {
+        int kms = ((input.getDimensions()[0] - km) / stride) + 1;
+        im2col(input, km, kn, stride, 0, kms, patches, 0);
+    }
+
+    /**
+     * Lowers only the windows of output rows [rowStart, rowEnd) into the patch matrix, starting at patchesOff.
+     * @param input
+     * @param km
+     * @param kn
+     * @param stride
+     * @param rowStart
+     * @param rowEnd
+     * @param patches
+     * @param patchesOff
+     */
+    public static void im2col(Data input, int km, int kn, int stride, int rowStart, int rowEnd,
+                              double[] patches, int patchesOff) {
+        im2col(input, 0, km, kn, stride, rowStart, rowEnd, patches, patchesOff);
+    }
+
+    /**
+     * Lowers output rows [rowStart, rowEnd) of the given sample of a mini-batch, without taking a view of the sample.
+     * @param input
+     * @param sample
+     * @param km
+     * @param kn
+     * @param stride
+     * @param rowStart
+     * @param rowEnd
+     * @param patches
+     * @param patchesOff
+     */
+    public static void im2col(Data input, int sample, int km, int kn, int stride, int rowStart, int rowEnd,
+                              double[] patches, int patchesOff) {
+        if (sample > 0 && !input.isContiguous()) {
+            im2col(input.sample(sample), 0, km, kn, stride, rowStart, rowEnd, patches, patchesOff);
+            return;
+        }
+
+        int[] dims = input.getDimensions();
+        int n = dims[1];
+        int o = Math.max(dims[2], 1);
+        int kns = ((n - kn) / stride) + 1;
+        int rowLength = kn * o;
+        double[] buffer = input.getBuffer();
+        float[] floatBuffer = input.getFloatBuffer();
+        int base = sample * input.getBatchStride();
+        int row = patchesOff;
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int j = 0; j < kns; j++) {
+                for (int l = 0; l < km; l++) {
+                    int dest = row + l * rowLength;
+
+                    if (input.isContiguous() && buffer != null) {
+                        System.arraycopy(buffer, base + input.index(i * stride + l, j * stride, 0),
+                                patches, dest, rowLength);
+                    } else {
+                        for (int p = 0; p < kn; p++) {
+                            for (int k = 0; k < o; k++) {
+                                int at = base + input.index(i * stride + l, j * stride + p, k);
+                                patches[dest + p * o + k] = buffer != null ? buffer[at] : floatBuffer[at];
+                            }
+                        }
+                    }
+                }
+
+                row += km * rowLength;
+            }
+        }
+    }
+
+    /**
+     * Float32 counterpart of im2col, lowering the input into a float32 patch matrix.
+     * @param input
+     * @param km
+     * @param kn
+     * @param stride
+     * @param patches
+     */
+    public static void im2col(Data input, int km, int kn, int stride, float[] patches) {
+        int kms = ((input.getDimensions()[0] - km) / stride) + 1;
+        im2col(input, km, kn, stride, 0, kms, patches, 0);
+    }
+
+    /**
+     * Float32 counterpart of the ranged im2col.
+     * @param input
+     * @param km
+     * @param kn
+     * @param stride
+     * @param rowStart
+     * @param rowEnd
+     * @param patches
+     * @param patchesOff
+     */
+    public static void im2col(Data input, int km, int kn, int stride, int rowStart, int rowEnd,
+                              float[] patches, int patchesOff) {
+        im2col(input, 0, km, kn, stride, rowStart, rowEnd, patches, patchesOff);
+    }
+
+    /**
+     * Lowers output rows [rowStart, rowEnd) of the given sample of a mini-batch, without taking a view of the sample.
+     * @param input
+     * @param sample
+     * @param km
+     * @param kn
+     * @param stride
+     * @param rowStart
+     * @param rowEnd
+     * @param patches
+     * @param patchesOff
+     */
+    public static void im2col(Data input, int sample, int km, int kn, int stride, int rowStart, int rowEnd,
+                              float[] patches, int patchesOff) {
+        if (sample > 0 && !input.isContiguous()) {
+            im2col(input.sample(sample), 0, km, kn, stride, rowStart, rowEnd, patches, patchesOff);
+            return;
+        }
+
+        int[] dims = input.getDimensions();
+        int n = dims[1];
+        int o = Math.max(dims[2], 1);
+        int kns = ((n - kn) / stride) + 1;
+        int rowLength = kn * o;
+        float[] buffer = input.getFloatBuffer();
+        int base = sample * input.getBatchStride();
+        int row = patchesOff;
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int j = 0; j < kns; j++) {
+                for (int l = 0; l < km; l++) {
+                    int dest = row + l * rowLength;
+
+                    if (input.isContiguous() && buffer != null) {
+                        System.arraycopy(buffer, base + input.index(i * stride + l, j * stride, 0),
+                                patches, dest, rowLength);
+                    } else {
+                        for (int p = 0; p < kn; p++) {
+                            for (int k = 0; k < o; k++) {
+                                patches[dest + p * o + k] = (float) input.get(i * stride + l, j * stride + p, k);
+                            }
+                        }
+                    }
+                }
+
+                row += km * rowLength;
+            }
+        }
+    }
+
+    /**
+     * The reverse of im2col: adds every patch of output rows [rowStart, rowEnd) back onto the window of the given
+     * sample it was lowered from. Windows overlap, so an element of the target collects one value from each patch
+     * covering it.
+     * @param patches
+     * @param patchesOff
+     * @param km
+     * @param kn
+     * @param stride
+     * @param rowStart
+     * @param rowEnd
+     * @param target Contiguous float64 data, shaped like the input that was lowered.
+     * @param sample
+     */
+    public static void col2im(double[] patches, int patchesOff, int km, int kn, int stride, int rowStart, int rowEnd,
+                              Data target, int sample) {
+        int[] dims = target.getDimensions();
+        int o = Math.max(dims[2], 1);
+        int kns = ((dims[1] - kn) / stride) + 1;
+        int rowLength = kn * o;
+        double[] buffer = target.getBuffer();
+        int base = sample * target.getBatchStride();
+        int row = patchesOff;
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int j = 0; j < kns; j++) {
+                for (int l = 0; l < km; l++) {
+                    int source = row + l * rowLength;
+                    int dest = base + target.index(i * stride + l, j * stride, 0);
+
+                    for (int p = 0; p < rowLength; p++) {
+                        buffer[dest + p] += patches[source + p];
+                    }
+                }
+
+                row += km * rowLength;
+            }
+        }
+    }
+
+    private static final int GEMM_BLOCK_M = 64; // Rows of A kept hot per block.
+    private static final int GEMM_BLOCK_K = 256; // Depth of A and B panels kept hot per block.
+
+    /**
+     * Row-major matrix multiply-accumulate, c += a * b, where a is m x k, b is k x n and c is m x n. The operands
+     * are walked in cache-sized blocks, and each block is computed as 4 x 4 tiles held in registers.
+     * @param m
+     * @param n
+     * @param k
+     * @param a
+     * @param aOff
+     * @param lda
+     * @param b
+     * @param bOff
+     * @param ldb
+     * @param c
+     * @param cOff
+     * @param ldc
+     */
+    public static void gemm(int m, int n, int k,
+                            double[] a, int aOff, int lda,
+                            double[] b, int bOff, int ldb,
+                            double[] c, int cOff, int ldc) {
+        for (int p0 = 0; p0 < k; p0 += GEMM_BLOCK_K) {
+            int pEnd = Math.min(p0 + GEMM_BLOCK_K, k);
+
+            for (int i0 = 0; i0 < m; i0 += GEMM_BLOCK_M) {
+                int iEnd = Math.min(i0 + GEMM_BLOCK_M, m);
+                gemmBlock(i0, iEnd, n, p0, pEnd, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+            }
+        }
+    }
+
+    private static void gemmBlock(int i0, int iEnd, int n, int p0, int pEnd,
+                                  double[] a, int aOff, int lda,
+                                  double[] b, int bOff, int ldb,
+                                  double[] c, int cOff, int ldc) {
+        int i = i0;
+
+        for (; i + 4 <= iEnd; i += 4) {
+            int a0 = aOff + i * lda;
+            int a1 = a0 + lda;
+            int a2 = a1 + lda;
+            int a3 = a2 + lda;
+            int j = 0;
+
+            for (; j + 4 <= n; j += 4) {
+                int c0 = cOff + i * ldc + j;
+                int c1 = c0 + ldc;
+                int c2 = c1 + ldc;
+                int c3 = c2 + ldc;
+                double c00 = c[c0], c01 = c[c0 + 1], c02 = c[c0 + 2], c03 = c[c0 + 3];
+                double c10 = c[c1], c11 = c[c1 + 1], c12 = c[c1 + 2], c13 = c[c1 + 3];
+                double c20 = c[c2], c21 = c[c2 + 1], c22 = c[c2 + 2], c23 = c[c2 + 3];
+                double c30 = c[c3], c31 = c[c3 + 1], c32 = c[c3 + 2], c33 = c[c3 + 3];
+
+                for (int p = p0; p < pEnd; p++) {
+                    int bp = bOff + p * ldb + j;
+                    double b0 = b[bp], b1 = b[bp + 1], b2 = b[bp + 2], b3 = b[bp + 3];
+                    double x0 = a[a0 + p], x1 = a[a1 + p], x2 = a[a2 + p], x3 = a[a3 + p];
+
+                    c00 += x0 * b0; c01 += x0 * b1; c02 += x0 * b2; c03 += x0 * b3;
+                    c10 += x1 * b0; c11 += x1 * b1; c12 += x1 * b2; c13 += x1 * b3;
+                    c20 += x2 * b0; c21 += x2 * b1; c22 += x2 * b2; c23 += x2 * b3;
+                    c30 += x3 * b0; c31 += x3 * b1; c32 += x3 * b2; c33 += x3 * b3;
+                }
+
+                c[c0] = c00; c[c0 + 1] = c01; c[c0 + 2] = c02; c[c0 + 3] = c03;
+                c[c1] = c10; c[c1 + 1] = c11; c[c1 + 2] = c12; c[c1 + 3] = c13;
+                c[c2] = c20; c[c2 + 1] = c21; c[c2 + 2] = c22; c[c2 + 3] = c23;
+                c[c3] = c30; c[c3 + 1] = c31; c[c3 + 2] = c32; c[c3 + 3] = c33;
+            }
+
+            for (; j < n; j++) {
+                double c0 = 0.0, c1 = 0.0, c2 = 0.0, c3 = 0.0;
+
+                for (int p = p0; p < pEnd; p++) {
+                    double bv = b[bOff + p * ldb + j];
+                    c0 += a[a0 + p] * bv;
+                    c1 += a[a1 + p] * bv;
+                    c2 += a[a2 + p] * bv;
+                    c3 += a[a3 + p] * bv;
+                }
+
+                c[cOff + i * ldc + j] += c0;
+                c[cOff + (i + 1) * ldc + j] += c1;
+                c[cOff + (i + 2) * ldc + j] += c2;
+                c[cOff + (i + 3) * ldc + j] += c3;
+            }
+        }
+
+        for (; i < iEnd; i++) {
+            int ai = aOff + i * lda;
+            int ci = cOff + i * ldc;
+
+            for (int p = p0; p < pEnd; p++) {
+                double x = a[ai + p];
+                int bp = bOff + p * ldb;
+
+                for (int j = 0; j < n; j++) {
+                    c[ci + j] += x * b[bp + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Float32 counterpart of gemm, c += a * b over row-major float32 operands.
+     * @param m
+     * @param n
+     * @param k
+     * @param a
+     * @param aOff
+     * @param lda
+     * @param b
+     * @param bOff
+     * @param ldb
+     * @param c
+     * @param cOff
+     * @param ldc
+     */
+    public static void gemm(int m, int n, int k,
+                            float[] a, int aOff, int lda,
+                            float[] b, int bOff, int ldb,
+                            float[] c, int cOff, int ldc) {
+        for (int p0 = 0; p0 < k; p0 += GEMM_BLOCK_K) {
+            int pEnd = Math.min(p0 + GEMM_BLOCK_K, k);
+
+            for (int i0 = 0; i0 < m; i0 += GEMM_BLOCK_M) {
+                int iEnd = Math.min(i0 + GEMM_BLOCK_M, m);
+                gemmBlockFloat(i0, iEnd, n, p0, pEnd, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+            }
+        }
+    }
+
+    private static void gemmBlockFloat(int i0, int iEnd, int n, int p0, int pEnd,
+                                  float[] a, int aOff, int lda,
+                                  float[] b, int bOff, int ldb,
+                                  float[] c, int cOff, int ldc) {
+        int i = i0;
+
+        for (; i + 4 <= iEnd; i += 4) {
+            int a0 = aOff + i * lda;
+            int a1 = a0 + lda;
+            int a2 = a1 + lda;
+            int a3 = a2 + lda;
+            int j = 0;
+
+            for (; j + 4 <= n; j += 4) {
+                int c0 = cOff + i * ldc + j;
+                int c1 = c0 + ldc;
+                int c2 = c1 + ldc;
+                int c3 = c2 + ldc;
+                float c00 = c[c0], c01 = c[c0 + 1], c02 = c[c0 + 2], c03 = c[c0 + 3];
+                float c10 = c[c1], c11 = c[c1 + 1], c12 = c[c1 + 2], c13 = c[c1 + 3];
+                float c20 = c[c2], c21 = c[c2 + 1], c22 = c[c2 + 2], c23 = c[c2 + 3];
+                float c30 = c[c3], c31 = c[c3 + 1], c32 = c[c3 + 2], c33 = c[c3 + 3];
+
+                for (int p = p0; p < pEnd; p++) {
+                    int bp = bOff + p * ldb + j;
+                    float b0 = b[bp], b1 = b[bp + 1], b2 = b[bp + 2], b3 = b[bp + 3];
+                    float x0 = a[a0 + p], x1 = a[a1 + p], x2 = a[a2 + p], x3 = a[a3 + p];
+
+                    c00 += x0 * b0; c01 += x0 * b1; c02 += x0 * b2; c03 += x0 * b3;
+                    c10 += x1 * b0; c11 += x1 * b1; c12 += x1 * b2; c13 += x1 * b3;
+                    c20 += x2 * b0; c21 += x2 * b1; c22 += x2 * b2; c23 += x2 * b3;
+                    c30 += x3 * b0; c31 += x3 * b1; c32 += x3 * b2; c33 += x3 * b3;
+                }
+
+                c[c0] = c00; c[c0 + 1] = c01; c[c0 + 2] = c02; c[c0 + 3] = c03;
+                c[c1] = c10; c[c1 + 1] = c11; c[c1 + 2] = c12; c[c1 + 3] = c13;
+                c[c2] = c20; c[c2 + 1] = c21; c[c2 + 2] = c22; c[c2 + 3] = c23;
+                c[c3] = c30; c[c3 + 1] = c31; c[c3 + 2] = c32; c[c3 + 3] = c33;
+            }
+
+            for (; j < n; j++) {
+                float c0 = 0.0f, c1 = 0.0f, c2 = 0.0f, c3 = 0.0f;
+
+                for (int p = p0; p < pEnd; p++) {
+                    float bv = b[bOff + p * ldb + j];
+                    c0 += a[a0 + p] * bv;
+                    c1 += a[a1 + p] * bv;
+                    c2 += a[a2 + p] * bv;
+                    c3 += a[a3 + p] * bv;
+                }
+
+                c[cOff + i * ldc + j] += c0;
+                c[cOff + (i + 1) * ldc + j] += c1;
+                c[cOff + (i + 2) * ldc + j] += c2;
+                c[cOff + (i + 3) * ldc + j] += c3;
+            }
+        }
+
+        for (; i < iEnd; i++) {
+            int ai = aOff + i * lda;
+            int ci = cOff + i * ldc;
+
+            for (int p = p0; p < pEnd; p++) {
+                float x = a[ai + p];
+                int bp = bOff + p * ldb;
+
+                for (int j = 0; j < n; j++) {
+                    c[ci + j] += x * b[bp + j];
+                }
+            }
+        }
+    }
+
     public static double[][] rot180(double[][] a) {
         int m = a.length;
         int n = a[0].length;
@@ -210,24 +759,9 @@ public class NumPute {
      * @return
      */
     public static double[] softmax(double[] x) {
-        double max = Double.NEGATIVE_INFINITY;
-
-        for (int i = 0; i < x.length; i++) {
-            if (x[i] > max) {
-                max = x[i];
-            }
-        }
-
-        double sum = 0.0;
-        for (int i = 0; i < x.length; i++) {
-            double out = Math.exp(x[i] - max);
-            x[i] = out;
-            sum += out;
-        }
-
-        for (int i = 0; i < x.length; i++) {
-            x[i] /= sum;
-        }
+        double max = KERNELS.max(x, 0, x.length);
+        double sum = KERNELS.expShift(x, 0, x.length, max);
+        KERNELS.operate(x, 0, sum, "divide", x, 0, x.length);
 
         return x;
     }
@@ -242,9 +776,7 @@ public class NumPute {
         double sum = 0.0;
 
         for (int i = 0; i < m; i++) {
-            for (int j = 0; j < n; j++) {
-                sum += a[i][j];
-            }
+            sum += KERNELS.sum(a[i], 0, n);
         }
 
         return sum;
@@ -258,9 +790,7 @@ public class NumPute {
 
         for (int i = 0; i < m; i++) {
             for (int j = 0; j < n; j++) {
-                for (int k = 0; k < o; k++) {
-                    sum += a[i][j][k];
-                }
+                sum += KERNELS.sum(a[i][j], 0, o);
             }
         }
 
@@ -272,11 +802,8 @@ public class NumPute {
         int n = a[0].length;
         double[][] result = new double[m][n];
 
-
         for (int i = 0; i < m; i++) {
-            for (int j = 0; j < n; j++) {
-                result[i][j] = operate(a[i][j], b, operation);
-            }
+            KERNELS.operate(a[i], 0, b, operation, result[i], 0, n);
         }
 
         return result;
@@ -288,39 +815,15 @@ public class NumPute {
         int o = a[0][0].length;
         double[][][] result = new double[m][n][o];
 
-
         for (int i = 0; i < m; i++) {
             for (int j = 0; j < n; j++) {
-                for (int k = 0; k < o; k++) {
-                    result[i][j][k] = operate(a[i][j][k], b, operation);
-                }
+                KERNELS.operate(a[i][j], 0, b, operation, result[i][j], 0, o);
             }
         }
 
         return result;
     }
 
-    private static double operate(double a, double b, String operation) {
-        double result = 0.0;
-
-        switch(operation) {
-            case "add":
-                result = a + b;
-                break;
-            case "subtract":
-                result = a - b;
-                break;
-            case "multiply":
-                result = a * b;
-                break;
-            case "divide":
-                result = a / b;
-                break;
-        }
-
-        return result;
-    }
-
     /**
      * Sigmoid function for double.
      * @param x
@@ -343,9 +846,7 @@ public class NumPute {
 
         for (int i = 0; i < m; i++) {
             for (int j = 0; j < n; j++) {
-                for (int k = 0; k < o; k++) {
-                    result[i][j][k] = (1.0 / (1 + Math.exp(-a[i][j][k])));
-                }
+                KERNELS.sigmoid(a[i][j], 0, result[i][j], 0, o);
             }
         }
 
@@ -0,0 +1,292 @@
+package convnet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The Optimizer class turns the gradients a network accumulated over a mini-batch into an update of its weights. It
+ * runs over the network's flat parameter buffer, and updates each weight, its optimizer state, and clears its gradient
+ * in the same pass, so a step reads every buffer once however many layers the network has.
+ *
+ * "sgd" is stochastic gradient descent, with momentum when the momentum is above 0. "nesterov" is SGD with Nesterov
+ * momentum. "adam" is Adam, with weight decay added to the gradient as an L2 penalty. "adamw" is Adam with the weight
+ * decay applied to the weights directly, apart from the adaptive step. Weight decay applies to biases as well as
+ * kernels.
+ * @author Jared Gorski
+ */
+public final class Optimizer {
+
+    private static final int MIN_SWEEP = 1 << 15; // Parameters below which a sweep is not split across threads.
+
+    private String name = "sgd";
+    private double learningRate = 0.0;
+    private double momentum = 0.0;
+    private double beta1 = 0.9; // Decay of Adam's running mean of gradients.
+    private double beta2 = 0.999; // Decay of Adam's running mean of squared gradients.
+    private double epsilon = 1e-8;
+    private double weightDecay = 0.0;
+    private long step = 0; // Updates applied so far, for Adam's bias correction.
+    private double[] velocity = null; // Momentum, or Adam's first moment, per parameter.
+    private double[] second = null; // Adam's second moment per parameter.
+
+    /**
+     * Set the optimizer: "sgd", "nesterov", "adam" or "adamw". Any state of the previous one is dropped.
+     * @param name
+     */
+    public void setName(String name) {
+        switch (name) {
+            case "sgd":
+            case "nesterov":
+            case "adam":
+            case "adamw":
+                break;
+            default:
+                throw new RuntimeException("Unknown optimizer: " + name);
+        }
+
+        if (!name.equals(this.name)) {
+            this.name = name;
+            reset();
+        }
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public double getLearningRate() {
+        return this.learningRate;
+    }
+
+    /**
+     * Set the momentum of "sgd" and "nesterov", typically 0.9.
+     * @param momentum
+     */
+    public void setMomentum(double momentum) {
+        this.momentum = momentum;
+    }
+
+    public double getMomentum() {
+        return this.momentum;
+    }
+
+    /**
+     * Set the decay rates of Adam's running means of the gradients and of their squares.
+     * @param beta1
+     * @param beta2
+     */
+    public void setBetas(double beta1, double beta2) {
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+    }
+
+    public double getBeta1() {
+        return this.beta1;
+    }
+
+    public double getBeta2() {
+        return this.beta2;
+    }
+
+    public void setEpsilon(double epsilon) {
+        this.epsilon = epsilon;
+    }
+
+    public double getEpsilon() {
+        return this.epsilon;
+    }
+
+    public void setWeightDecay(double weightDecay) {
+        this.weightDecay = weightDecay;
+    }
+
+    public double getWeightDecay() {
+        return this.weightDecay;
+    }
+
+    /**
+     * Discards the momentum, moments and step count accumulated so far.
+     */
+    public void reset() {
+        this.step = 0;
+        this.velocity = null;
+        this.second = null;
+    }
+
+    /**
+     * Returns an optimizer of the same settings with its own copy of this one's state.
+     * @return
+     */
+    Optimizer copy() {
+        Optimizer copy = new Optimizer();
+        copy.name = this.name;
+        copy.learningRate = this.learningRate;
+        copy.momentum = this.momentum;
+        copy.beta1 = this.beta1;
+        copy.beta2 = this.beta2;
+        copy.epsilon = this.epsilon;
+        copy.weightDecay = this.weightDecay;
+        copy.step = this.step;
+        copy.velocity = this.velocity == null ? null : this.velocity.clone();
+        copy.second = this.second == null ? null : this.second.clone();
+
+        return copy;
+    }
+
+    long getStep() {
+        return this.step;
+    }
+
+    double[] getVelocity() {
+        return this.velocity;
+    }
+
+    double[] getSecondMoment() {
+        return this.second;
+    }
+
+    /**
+     * Restores state saved from getStep, getVelocity and getSecondMoment.
+     */
+    void setState(long step, double[] velocity, double[] second) {
+        this.step = step;
+        this.velocity = velocity;
+        this.second = second;
+    }
+
+    /**
+     * Applies the gradients accumulated over the given number of samples to the parameters, and zeroes them. State
+     * kept for parameter buffers of another length, as after the network was packed again, is dropped first.
+     * @param parameters
+     * @param samples
+     * @param pool Pool to split the sweep across, or null for the calling thread.
+     */
+    void update(Parameters parameters, int samples, ForkJoinPool pool) {
+        int length = parameters.length();
+        boolean moments = "adam".equals(this.name) || "adamw".equals(this.name);
+
+        if (this.velocity != null && this.velocity.length != length) {
+            reset();
+        }
+
+        if (this.velocity == null && (moments || this.momentum != 0.0)) {
+            this.velocity = new double[length];
+        }
+
+        if (this.second == null && moments) {
+            this.second = new double[length];
+        }
+
+        this.step++;
+
+        if (pool == null || pool.getParallelism() == 1 || length <= MIN_SWEEP) {
+            sweep(parameters.getValues(), parameters.getGradients(), 1.0 / samples, 0, length);
+        } else {
+            pool.invoke(new Sweep(this, parameters.getValues(), parameters.getGradients(), 1.0 / samples, 0, length));
+        }
+    }
+
+    /**
+     * One range of the parameter buffer, split in half until small enough to update on one thread.
+     */
+    private static final class Sweep extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final Optimizer optimizer;
+        private final double[] values;
+        private final double[] gradients;
+        private final double scale;
+        private final int start;
+        private final int end;
+
+        Sweep(Optimizer optimizer, double[] values, double[] gradients, double scale, int start, int end) {
+            this.optimizer = optimizer;
+            this.values = values;
+            this.gradients = gradients;
+            this.scale = scale;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > MIN_SWEEP) {
+                int mid = this.start + (this.end - this.start) / 2;
+                invokeAll(
+                        new Sweep(optimizer, values, gradients, scale, start, mid),
+                        new Sweep(optimizer, values, gradients, scale, mid, end)
+                );
+            } else {
+                this.optimizer.sweep(this.values, this.gradients, this.scale, this.start, this.end);
+            }
+        }
+    }
+
+    /**
+     * Updates parameters [start, end) from their gradients, scaled to the mean over the mini-batch, and zeroes the
+     * gradients. The optimizer is chosen once per range, so each loop runs without branching on it.
+     */
+    private void sweep(double[] w, double[] g, double scale, int start, int end) {
+        double rate = this.learningRate;
+        double mu = this.momentum;
+        double decay = this.weightDecay;
+        double[] v = this.velocity;
+
+        switch (this.name) {
+            case "sgd":
+                if (v == null) {
+                    for (int i = start; i < end; i++) {
+                        w[i] -= rate * (g[i] * scale + decay * w[i]);
+                        g[i] = 0.0;
+                    }
+                } else {
+                    for (int i = start; i < end; i++) {
+                        v[i] = mu * v[i] + g[i] * scale + decay * w[i];
+                        w[i] -= rate * v[i];
+                        g[i] = 0.0;
+                    }
+                }
+                break;
+            case "nesterov":
+                if (v == null) {
+                    for (int i = start; i < end; i++) {
+                        w[i] -= rate * (g[i] * scale + decay * w[i]);
+                        g[i] = 0.0;
+                    }
+                } else {
+                    for (int i = start; i < end; i++) {
+                        double gradient = g[i] * scale + decay * w[i];
+                        v[i] = mu * v[i] + gradient;
+                        w[i] -= rate * (gradient + mu * v[i]);
+                        g[i] = 0.0;
+                    }
+                }
+                break;
+            case "adam":
+            case "adamw":
+                double[] s = this.second;
+                double b1 = this.beta1;
+                double b2 = this.beta2;
+                double eps = this.epsilon;
+                double correction1 = 1.0 - Math.pow(b1, this.step);
+                double correction2 = 1.0 - Math.pow(b2, this.step);
+                double coupled = "adam".equals(this.name) ? decay : 0.0;
+                double decoupled = "adamw".equals(this.name) ? rate * decay : 0.0;
+
+                for (int i = start; i < end; i++) {
+                    double gradient = g[i] * scale + coupled * w[i];
+                    v[i] = b1 * v[i] + (1.0 - b1) * gradient;
+                    s[i] = b2 * s[i] + (1.0 - b2) * gradient * gradient;
+                    w[i] -= rate * (v[i] / correction1) / (Math.sqrt(s[i] / correction2) + eps) + decoupled * w[i];
+                    g[i] = 0.0;
+                }
+                break;
+            default:
+                throw new RuntimeException("Unknown optimizer: " + this.name);
+        }
+    }
+}
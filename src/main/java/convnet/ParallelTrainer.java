@@ -0,0 +1,185 @@
+package convnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The ParallelTrainer class trains a CNN with synchronous data parallelism. Every step, each worker runs the forward
+ * and backward pass over its own shard of the samples, using a replica of the network that shares the weights but owns
+ * its activations and gradients. The workers' gradients are then summed by a tree all-reduce into the first worker,
+ * which is the network itself, and applied once. Weights are only written between steps, while the workers are idle,
+ * so every worker always sees the same weights.
+ * @author Jared Gorski
+ */
+class ParallelTrainer {
+
+    private final CNN network;
+    private final int workersLength;
+    private final List<CNN> workers = new ArrayList<>();
+
+    ParallelTrainer(CNN network, int workersLength) {
+        this.network = network;
+        this.workersLength = workersLength;
+    }
+
+    /**
+     * Trains the network over the training set for the scheduled number of iterations.
+     * @param trainingSet
+     */
+    void train(TrainingSet trainingSet) {
+        Schedule schedule = this.network.getSchedule();
+        int batchSize = schedule.getBatchSize();
+        int datasetLength = trainingSet.getDatasetLength();
+
+        if (datasetLength == 0) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.workersLength);
+
+        try {
+            for (int i = 0; i < schedule.getIterations(); i++) {
+                for (int j = 0; j < datasetLength; j += batchSize * this.workersLength) {
+                    List<List<TrainingSet.TData>> shards = shard(trainingSet, j, batchSize);
+
+                    if (this.workers.isEmpty()) {
+                        startWorkers(shards.get(0).get(0).read());
+                    }
+
+                    int samples = step(executor, shards);
+                    this.network.applyGradients(samples);
+
+                    for (CNN worker : this.workers) {
+                        for (Layer layer : worker.getLayers()) {
+                            layer.refreshKernelMatrix();
+                        }
+                    }
+                }
+
+                this.network.checkpointIfDue(i + 1);
+            }
+
+            this.network.awaitCheckpoint();
+        } finally {
+            executor.shutdown();
+
+            for (int w = 1; w < this.workers.size(); w++) {
+                this.workers.get(w).release();
+            }
+        }
+    }
+
+    /**
+     * Builds the network's layers from the given sample, if it has not run yet, and replicates it for the other
+     * workers.
+     * @param sample
+     */
+    private void startWorkers(Data sample) {
+        this.network.buildLayers(sample);
+        this.workers.add(this.network);
+
+        for (int w = 1; w < this.workersLength; w++) {
+            this.workers.add(this.network.replicate());
+        }
+    }
+
+    /**
+     * Reads the samples of the step starting at the given sample, in index order, as one shard per worker. Shards of
+     * workers past the end of the training set are empty.
+     * @return
+     */
+    private List<List<TrainingSet.TData>> shard(TrainingSet trainingSet, int start, int batchSize) {
+        List<List<TrainingSet.TData>> shards = new ArrayList<>();
+        int end = Math.min(start + batchSize * this.workersLength, trainingSet.getDatasetLength());
+
+        for (int w = 0; w < this.workersLength; w++) {
+            List<TrainingSet.TData> shard = new ArrayList<>();
+
+            for (int k = start + w * batchSize; k < Math.min(start + (w + 1) * batchSize, end); k++) {
+                shard.add(trainingSet.getDataByIndex(k));
+            }
+
+            shards.add(shard);
+        }
+
+        return shards;
+    }
+
+    /**
+     * Runs every worker over its shard of the step, then all-reduces the gradients.
+     * @return Number of samples the step covered.
+     */
+    private int step(ExecutorService executor, List<List<TrainingSet.TData>> shards) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int samples = 0;
+
+        for (int w = 0; w < this.workersLength; w++) {
+            final CNN worker = this.workers.get(w);
+            final List<TrainingSet.TData> shard = shards.get(w);
+            samples += shard.size();
+
+            if (!shard.isEmpty()) {
+                tasks.add(() -> {
+                    worker.computeGradients(shard);
+                    return null;
+                });
+            }
+        }
+
+        runAll(executor, tasks);
+
+        for (int stride = 1; stride < this.workersLength; stride *= 2) {
+            runAll(executor, reduceRound(stride));
+        }
+
+        return samples;
+    }
+
+    /**
+     * One round of the tree all-reduce: every worker at a multiple of 2 * stride adds in the gradients of the worker
+     * stride places after it. After log2(workers) rounds the first worker holds the sum of all gradients.
+     */
+    private List<Callable<Void>> reduceRound(int stride) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int w = 0; w + stride < this.workersLength; w += 2 * stride) {
+            final double[] target = this.workers.get(w).getParameters().getGradients();
+            final double[] source = this.workers.get(w + stride).getParameters().getGradients();
+
+            tasks.add(() -> {
+                moveInto(target, source);
+                return null;
+            });
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Adds the source gradients into the target and zeroes them, in one pass over both flat buffers.
+     */
+    private static void moveInto(double[] target, double[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+            source[i] = 0.0;
+        }
+    }
+
+    private static void runAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Training interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Training worker failed.", e.getCause());
+        }
+    }
+}
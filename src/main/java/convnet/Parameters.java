@@ -0,0 +1,95 @@
+package convnet;
+
+import java.util.List;
+
+/**
+ * The Parameters class packs the kernels and biases of every layer of a network into one flat float64 buffer, and
+ * their gradients into a second buffer laid out the same way. Each layer owns one block of both: its kernels one after
+ * another, then its biases. The layers' kernels become views of their block, so convolution reads them as before,
+ * while an optimizer updates every weight of the network in one sweep over the buffer.
+ * @author Jared Gorski
+ */
+final class Parameters {
+
+    private final double[] values;
+    private final double[] gradients;
+
+    private Parameters(double[] values, double[] gradients) {
+        this.values = values;
+        this.gradients = gradients;
+    }
+
+    /**
+     * Copies the kernels, biases and any accumulated gradients of the given layers into new buffers, in layer order,
+     * and packs the layers into them.
+     * @param layers
+     * @return
+     */
+    static Parameters pack(List<Layer> layers) {
+        int length = 0;
+
+        for (Layer layer : layers) {
+            length += layer.getParametersLength();
+        }
+
+        Parameters parameters = new Parameters(new double[length], new double[length]);
+        int offset = 0;
+
+        for (Layer layer : layers) {
+            if (layer.getKernelsLength() > 0) {
+                layer.pack(parameters.values, parameters.gradients, offset);
+                offset += layer.getParametersLength();
+            }
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Returns parameters sharing these values, with a gradients buffer of their own that the given replicas of the
+     * packed layers accumulate into.
+     * @param replicas
+     * @return
+     */
+    Parameters replicate(List<Layer> replicas) {
+        Parameters parameters = new Parameters(this.values, new double[this.gradients.length]);
+
+        for (Layer layer : replicas) {
+            if (layer.getKernelsLength() > 0) {
+                layer.packGradients(parameters.gradients);
+            }
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Whether every layer with kernels is packed into these buffers. A layer whose kernels or biases were added or
+     * reshaped since is not, and the network packs again.
+     * @param layers
+     * @return
+     */
+    boolean packs(List<Layer> layers) {
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+
+            if (layer.getKernelsLength() > 0 && !layer.isPackedInto(this.values, this.gradients)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    double[] getValues() {
+        return this.values;
+    }
+
+    double[] getGradients() {
+        return this.gradients;
+    }
+
+    int length() {
+        return this.values.length;
+    }
+}
@@ -0,0 +1,262 @@
+package convnet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The QuantizedTask class computes a block of a quantized layer's output: a range of output rows, counted across every
+ * sample of a mini-batch as in ConvolutionTask. The block's patches are lowered in the input's precision, and each
+ * chunk of them is quantized to int8 by the layer's calibrated input scale. Every output is then the int32 dot product
+ * of an int8 patch with an int8 kernel, scaled back to real values by the input scale times that kernel's own scale,
+ * plus the bias, with the fused nonlinearity applied as it is written. Kernel and patch rows are zero-padded to a
+ * multiple of 16 bytes, which spares short patches, such as those of a 3 channel input, a scalar remainder per dot.
+ *
+ * Quantization is symmetric: a value x of scale s is stored as round(x / s), clamped to [-127, 127]. Activations
+ * between layers stay in the network's precision, so only the kernels and the products run in int8.
+ * @author Jared Gorski
+ */
+class QuantizedTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_WORK = 1 << 16; // Multiply-adds below which a block is not split any further.
+    private static final int CHUNK_ROWS = 64; // Output pixels whose patches are quantized and multiplied together.
+    private static final int LEVELS = 127; // Largest magnitude of a quantized value.
+    private static final int ROW_ALIGN = 16; // Bytes quantized rows are padded to a multiple of, so dots have no tail.
+
+    private final Data input;
+    private final Layer layer;
+    private final Data output;
+    private final Workspace workspace;
+    private final int stride;
+    private final int rowStart;
+    private final int rowEnd;
+
+    private QuantizedTask(Data input, Layer layer, Data output, Workspace workspace, int stride,
+                          int rowStart, int rowEnd) {
+        this.input = input;
+        this.layer = layer;
+        this.output = output;
+        this.workspace = workspace;
+        this.stride = stride;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+    }
+
+    /**
+     * Convolves the whole mini-batch into the output with the layer's int8 kernels. Work too small to split, a pool of
+     * one thread, or no pool at all runs straight on the calling thread without creating any tasks.
+     * @param pool Pool to split the work across, or null for the calling thread.
+     * @param input
+     * @param layer
+     * @param output
+     * @param workspace
+     * @param stride
+     */
+    static void run(ForkJoinPool pool, Data input, Layer layer, Data output, Workspace workspace, int stride) {
+        int rows = output.getBatchSize() * output.getDimensions()[0];
+
+        if (pool == null || pool.getParallelism() == 1 || work(output, layer, rows) <= MIN_WORK) {
+            convolve(input, layer, output, workspace, stride, 0, rows);
+        } else {
+            pool.invoke(new QuantizedTask(input, layer, output, workspace, stride, 0, rows));
+        }
+    }
+
+    @Override
+    protected void compute() {
+        int rows = this.rowEnd - this.rowStart;
+
+        if (work(this.output, this.layer, rows) > MIN_WORK && rows > 1) {
+            int rowMid = this.rowStart + rows / 2;
+            invokeAll(
+                    new QuantizedTask(input, layer, output, workspace, stride, rowStart, rowMid),
+                    new QuantizedTask(input, layer, output, workspace, stride, rowMid, rowEnd)
+            );
+        } else {
+            convolve(input, layer, output, workspace, stride, rowStart, rowEnd);
+        }
+    }
+
+    /**
+     * Multiply-adds needed to compute the given number of output rows.
+     */
+    private static long work(Data output, Layer layer, int rows) {
+        Kernels kernels = layer.getQuantizedKernels();
+
+        return (long) rows * output.getDimensions()[1] * kernels.kernelsLength * kernels.patchLength;
+    }
+
+    /**
+     * Quantizes the kernels of a layer, each by a scale of its own that maps its largest weight to 127, and records
+     * the scale of the layer's input from the largest input magnitude seen in calibration.
+     * @param layer
+     * @param inputRange Largest magnitude of the layer's input.
+     * @return
+     */
+    static Kernels quantize(Layer layer, double inputRange) {
+        double[] matrix = layer.getKernelMatrix();
+        int kernelsLength = layer.getKernelsLength();
+        int patchLength = matrix.length / kernelsLength;
+        int rowLength = rowLength(patchLength);
+        byte[] weights = new byte[kernelsLength * rowLength];
+        double[] scales = new double[kernelsLength];
+
+        for (int k = 0; k < kernelsLength; k++) {
+            double range = 0.0;
+
+            for (int p = 0; p < patchLength; p++) {
+                range = Math.max(range, Math.abs(matrix[p * kernelsLength + k]));
+            }
+
+            scales[k] = range > 0.0 ? range / LEVELS : 1.0;
+
+            for (int p = 0; p < patchLength; p++) {
+                weights[k * rowLength + p] = quantize(matrix[p * kernelsLength + k], 1.0 / scales[k]);
+            }
+        }
+
+        double inputScale = inputRange > 0.0 ? inputRange / LEVELS : 1.0;
+
+        return new Kernels(weights, scales, inputScale, layer.getKernelByIndex(0).getDimensions().clone(),
+                patchLength);
+    }
+
+    /**
+     * Length of a quantized row of the given number of values, padding included.
+     */
+    private static int rowLength(int patchLength) {
+        return (patchLength + ROW_ALIGN - 1) / ROW_ALIGN * ROW_ALIGN;
+    }
+
+    /**
+     * Rounds a value divided by its scale to the nearest int8, clamped to the symmetric range.
+     */
+    private static byte quantize(double value, double inverseScale) {
+        long q = Math.round(value * inverseScale);
+
+        return (byte) Math.max(-LEVELS, Math.min(LEVELS, q));
+    }
+
+    /**
+     * Lowers the block's rows, then quantizes and multiplies them a chunk at a time. Each chunk's int8 patches are
+     * still in cache while every kernel is dotted with them.
+     */
+    private static void convolve(Data input, Layer layer, Data output, Workspace workspace, int stride,
+                                 int rowStart, int rowEnd) {
+        Kernels kernels = layer.getQuantizedKernels();
+        int km = kernels.dimensions[0];
+        int kn = kernels.dimensions[1];
+        int patchLength = kernels.patchLength;
+        int rowLength = kernels.rowLength;
+        int kernelsLength = kernels.kernelsLength;
+        int kms = output.getDimensions()[0];
+        int kns = output.getDimensions()[1];
+        int pixels = (rowEnd - rowStart) * kns;
+        int outputOff = output.getOffset() + rowStart * kns * kernelsLength;
+        int nonlinearity = Nonlinearity.of(layer.getNonlinearity());
+        double inverseScale = 1.0 / kernels.inputScale;
+        byte[] quantized = workspace.bytePatches(Math.min(CHUNK_ROWS, pixels) * rowLength);
+        double[] patches = null;
+        float[] floatPatches = null;
+
+        if (input.isFloat()) {
+            floatPatches = workspace.floatPatches(pixels * patchLength);
+        } else {
+            patches = workspace.patches(pixels * patchLength);
+        }
+
+        for (int row = rowStart; row < rowEnd; row = nextSampleRow(row, kms)) {
+            int end = Math.min(rowEnd, nextSampleRow(row, kms));
+            int patchesOff = (row - rowStart) * kns * patchLength;
+
+            if (floatPatches != null) {
+                NumPute.im2col(input, row / kms, km, kn, stride, row % kms, end - (row / kms) * kms,
+                        floatPatches, patchesOff);
+            } else {
+                NumPute.im2col(input, row / kms, km, kn, stride, row % kms, end - (row / kms) * kms,
+                        patches, patchesOff);
+            }
+        }
+
+        double[] result = output.getBuffer();
+        float[] floatResult = output.getFloatBuffer();
+
+        for (int p0 = 0; p0 < pixels; p0 += CHUNK_ROWS) {
+            int rows = Math.min(CHUNK_ROWS, pixels - p0);
+            int from = p0 * patchLength;
+
+            for (int p = 0; p < rows; p++) {
+                for (int i = 0; i < patchLength; i++) {
+                    int at = from + p * patchLength + i;
+                    quantized[p * rowLength + i] = quantize(floatPatches != null ? floatPatches[at] : patches[at],
+                            inverseScale);
+                }
+
+                for (int i = patchLength; i < rowLength; i++) {
+                    quantized[p * rowLength + i] = 0;
+                }
+            }
+
+            for (int p = 0; p < rows; p++) {
+                int at = outputOff + (p0 + p) * kernelsLength;
+
+                for (int k = 0; k < kernelsLength; k++) {
+                    int sum = NumPute.dot(quantized, p * rowLength, kernels.weights, k * rowLength, rowLength);
+                    double value = Nonlinearity.apply(nonlinearity,
+                            sum * kernels.multipliers[k] + layer.getBiasByIndex(k));
+
+                    if (floatResult != null) {
+                        floatResult[at + k] = (float) value;
+                    } else {
+                        result[at + k] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first row of the sample following the one the given batch row belongs to.
+     */
+    private static int nextSampleRow(int row, int rowsPerSample) {
+        return (row / rowsPerSample + 1) * rowsPerSample;
+    }
+
+    /**
+     * The int8 kernels of a layer, one zero-padded row of patchLength values per kernel, with each kernel's scale and
+     * the scale of the layer's input. A quantized layer keeps only these, not its float kernels.
+     */
+    static final class Kernels {
+
+        final byte[] weights;
+        final double[] scales;
+        final double inputScale;
+        final double[] multipliers; // Input scale times each kernel's scale, which turns an int32 sum back to real.
+        final int[] dimensions;
+        final int patchLength;
+        final int rowLength; // Bytes from one kernel's row to the next, padding included.
+        final int kernelsLength;
+
+        Kernels(byte[] weights, double[] scales, double inputScale, int[] dimensions, int patchLength) {
+            this.weights = weights;
+            this.scales = scales;
+            this.inputScale = inputScale;
+            this.dimensions = dimensions;
+            this.kernelsLength = scales.length;
+            this.patchLength = patchLength;
+            this.rowLength = rowLength(patchLength);
+            this.multipliers = new double[scales.length];
+
+            for (int k = 0; k < scales.length; k++) {
+                this.multipliers[k] = inputScale * scales[k];
+            }
+        }
+
+        /**
+         * Bytes the kernels take: one per weight and per byte of padding, plus a float64 scale per kernel.
+         */
+        long bytes() {
+            return this.weights.length + 8L * this.scales.length;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package convnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Quantizer class turns a trained model into one whose convolutional and activation layers run in int8, and
+ * reports what that costs in accuracy. Each kernel is quantized by a scale of its own, so a kernel of small weights
+ * keeps its resolution next to one of large weights. Each layer's input is quantized by one scale, calibrated from the
+ * largest input magnitude the layer sees over a sample of training data. Products accumulate in int32, and activations
+ * between layers stay in the model's precision.
+ *
+ * Quantized weights take about an eighth of the memory of float64 ones. A quantized model predicts through
+ * InferenceContexts like any other, but its layers keep no float kernels, so they run int8 convolution only.
+ * @author Jared Gorski
+ */
+public final class Quantizer {
+
+    private Quantizer() {}
+
+    /**
+     * Returns a copy of the model with every layer that has kernels quantized to int8, calibrated by running the given
+     * samples through the model.
+     * @param model
+     * @param calibration Samples representative of what the model will predict on.
+     * @return
+     */
+    public static Model quantize(Model model, TrainingSet calibration) {
+        List<Layer> source = model.getLayers();
+
+        for (Layer layer : source) {
+            if (layer.isQuantized()) {
+                throw new RuntimeException("The model is already quantized.");
+            }
+        }
+
+        double[] ranges = calibrate(model, calibration);
+        Schedule schedule = model.getSchedule().copy();
+        List<Layer> layers = new ArrayList<>();
+
+        for (int i = 0; i < source.size(); i++) {
+            Layer layer = source.get(i).copy();
+
+            if (layer.getKernelsLength() > 0) {
+                layer.quantize(QuantizedTask.quantize(layer, ranges[i]));
+                schedule.setConvolution(i, "int8");
+            }
+
+            layers.add(layer);
+        }
+
+        return new Model(schedule, model.getClasses(), layers, model.getInputShape());
+    }
+
+    /**
+     * Runs both models over the given samples and compares their predictions with the labels and with each other.
+     * @param reference Model before quantization.
+     * @param quantized
+     * @param evaluation Labelled samples, ideally ones neither model was trained or calibrated on.
+     * @return
+     */
+    public static Report compare(Model reference, Model quantized, TrainingSet evaluation) {
+        if (evaluation.getDatasetLength() == 0) {
+            throw new RuntimeException("Comparison needs at least one sample.");
+        }
+
+        InferenceContext referenceContext = reference.newContext();
+        InferenceContext quantizedContext = quantized.newContext();
+        int batchSize = reference.getSchedule().getBatchSize();
+        int referenceCorrect = 0;
+        int quantizedCorrect = 0;
+        int agreed = 0;
+        double maxError = 0.0;
+
+        for (int start = 0; start < evaluation.getDatasetLength(); start += batchSize) {
+            List<Data> samples = new ArrayList<>();
+            List<int[]> labels = new ArrayList<>();
+
+            for (int k = start; k < Math.min(start + batchSize, evaluation.getDatasetLength()); k++) {
+                TrainingSet.TData tData = evaluation.getDataByIndex(k);
+                samples.add(tData.read());
+                labels.add(tData.getLabel());
+            }
+
+            Data batch = samples.size() == 1 ? samples.get(0) : Data.batch(samples);
+            double[][] expected = referenceContext.predict(batch);
+            double[][] actual = quantizedContext.predict(batch);
+
+            for (int b = 0; b < labels.size(); b++) {
+                int truth = argmax(labels.get(b));
+                int referenceClass = argmax(expected[b]);
+                int quantizedClass = argmax(actual[b]);
+
+                referenceCorrect += referenceClass == truth ? 1 : 0;
+                quantizedCorrect += quantizedClass == truth ? 1 : 0;
+                agreed += referenceClass == quantizedClass ? 1 : 0;
+
+                for (int i = 0; i < expected[b].length; i++) {
+                    maxError = Math.max(maxError, Math.abs(expected[b][i] - actual[b][i]));
+                }
+            }
+        }
+
+        double samplesLength = evaluation.getDatasetLength();
+
+        return new Report(referenceCorrect / samplesLength, quantizedCorrect / samplesLength, agreed / samplesLength,
+                maxError, weightBytes(reference), weightBytes(quantized));
+    }
+
+    /**
+     * Runs the calibration samples through replicas of the model's layers, and returns for each layer the largest
+     * magnitude of its input.
+     */
+    private static double[] calibrate(Model model, TrainingSet calibration) {
+        if (calibration.getDatasetLength() == 0) {
+            throw new RuntimeException("Calibration needs at least one sample.");
+        }
+
+        Schedule schedule = model.getSchedule();
+        List<Layer> layers = new ArrayList<>();
+        Workspace workspace = new Workspace();
+        ExecutionPlan plan = null;
+        int batchSize = schedule.getBatchSize();
+
+        for (Layer layer : model.getLayers()) {
+            layers.add(layer.replicate());
+        }
+
+        double[] ranges = new double[layers.size()];
+
+        for (int start = 0; start < calibration.getDatasetLength(); start += batchSize) {
+            List<Data> samples = new ArrayList<>();
+
+            for (int k = start; k < Math.min(start + batchSize, calibration.getDatasetLength()); k++) {
+                samples.add(calibration.getDataByIndex(k).read());
+            }
+
+            Data input = (samples.size() == 1 ? samples.get(0) : Data.batch(samples))
+                    .toPrecision(schedule.getPrecision());
+
+            if (plan == null || !plan.accepts(input)) {
+                plan = ExecutionPlan.compile(schedule, layers, model.getClasses(), input.getDimensions(), null,
+                        workspace);
+            }
+
+            plan.forward(input);
+
+            for (int i = 0; i < layers.size(); i++) {
+                if (layers.get(i).getKernelsLength() > 0) {
+                    ranges[i] = Math.max(ranges[i], range(layers.get(i).getLayerInput()));
+                }
+            }
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Largest magnitude of any value of a mini-batch.
+     */
+    private static double range(Data data) {
+        int[] dims = data.getDimensions();
+        int o = Math.max(dims[2], 1);
+        double[] buffer = data.getBuffer();
+        float[] floatBuffer = data.getFloatBuffer();
+        double range = 0.0;
+
+        for (int b = 0; b < data.getBatchSize(); b++) {
+            int base = b * data.getBatchStride();
+
+            for (int i = 0; i < dims[0]; i++) {
+                for (int j = 0; j < dims[1]; j++) {
+                    for (int k = 0; k < o; k++) {
+                        int index = base + data.index(i, j, k);
+                        range = Math.max(range, Math.abs(floatBuffer != null ? floatBuffer[index] : buffer[index]));
+                    }
+                }
+            }
+        }
+
+        return range;
+    }
+
+    /**
+     * Bytes of a model's kernels and biases: 8 per float64 weight, or 1 per int8 weight plus the kernels' scales.
+     */
+    private static long weightBytes(Model model) {
+        long bytes = 0;
+
+        for (Layer layer : model.getLayers()) {
+            if (layer.isQuantized()) {
+                bytes += layer.getQuantizedKernels().bytes() + 8L * layer.getKernelsLength();
+            } else {
+                bytes += 8L * layer.getParametersLength();
+            }
+        }
+
+        return bytes;
+    }
+
+    private static int argmax(double[] values) {
+        int best = 0;
+
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+
+        return best;
+    }
+
+    private static int argmax(int[] values) {
+        int best = 0;
+
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * How a quantized model's predictions compare with those of the model it was quantized from.
+     */
+    public static final class Report {
+
+        private final double referenceAccuracy;
+        private final double quantizedAccuracy;
+        private final double agreement;
+        private final double maxProbabilityError;
+        private final long referenceWeightBytes;
+        private final long quantizedWeightBytes;
+
+        Report(double referenceAccuracy, double quantizedAccuracy, double agreement, double maxProbabilityError,
+               long referenceWeightBytes, long quantizedWeightBytes) {
+            this.referenceAccuracy = referenceAccuracy;
+            this.quantizedAccuracy = quantizedAccuracy;
+            this.agreement = agreement;
+            this.maxProbabilityError = maxProbabilityError;
+            this.referenceWeightBytes = referenceWeightBytes;
+            this.quantizedWeightBytes = quantizedWeightBytes;
+        }
+
+        /**
+         * Fraction of samples the reference model classified correctly.
+         */
+        public double getReferenceAccuracy() {
+            return this.referenceAccuracy;
+        }
+
+        /**
+         * Fraction of samples the quantized model classified correctly.
+         */
+        public double getQuantizedAccuracy() {
+            return this.quantizedAccuracy;
+        }
+
+        /**
+         * Quantized accuracy less reference accuracy; negative when quantization lost accuracy.
+         */
+        public double getAccuracyDelta() {
+            return this.quantizedAccuracy - this.referenceAccuracy;
+        }
+
+        /**
+         * Fraction of samples both models put in the same class, right or wrong.
+         */
+        public double getAgreement() {
+            return this.agreement;
+        }
+
+        /**
+         * Largest difference between the two models' probabilities of any class of any sample.
+         */
+        public double getMaxProbabilityError() {
+            return this.maxProbabilityError;
+        }
+
+        public long getReferenceWeightBytes() {
+            return this.referenceWeightBytes;
+        }
+
+        public long getQuantizedWeightBytes() {
+            return this.quantizedWeightBytes;
+        }
+
+        /**
+         * Formats the report as a table.
+         * @return
+         */
+        public String table() {
+            StringBuilder table = new StringBuilder();
+            String format = "%-10s %10s %14s%n";
+            table.append(String.format(format, "model", "accuracy", "weight bytes"));
+            table.append(String.format(format, "reference", String.format("%.4f", this.referenceAccuracy),
+                    this.referenceWeightBytes));
+            table.append(String.format(format, "int8", String.format("%.4f", this.quantizedAccuracy),
+                    this.quantizedWeightBytes));
+            table.append(String.format("accuracy delta %+.4f, agreement %.4f, max probability error %.6f, "
+                            + "weights %.2fx smaller%n",
+                    getAccuracyDelta(), this.agreement, this.maxProbabilityError,
+                    (double) this.referenceWeightBytes / Math.max(this.quantizedWeightBytes, 1)));
+
+            return table.toString();
+        }
+    }
+}
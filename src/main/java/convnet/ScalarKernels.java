@@ -0,0 +1,116 @@
+package convnet;
+
+/**
+ * Plain Java implementation of ArrayKernels, used on every JVM the vectorized kernels cannot load on.
+ * @author Jared Gorski
+ */
+class ScalarKernels implements ArrayKernels {
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int length) {
+        double result = 0.0;
+
+        for (int i = 0; i < length; i++) {
+            result += a[aOff + i] * b[bOff + i];
+        }
+
+        return result;
+    }
+
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int length) {
+        float result = 0.0f;
+
+        for (int i = 0; i < length; i++) {
+            result += a[aOff + i] * b[bOff + i];
+        }
+
+        return result;
+    }
+
+    @Override
+    public int dot(byte[] a, int aOff, byte[] b, int bOff, int length) {
+        int result = 0;
+
+        for (int i = 0; i < length; i++) {
+            result += a[aOff + i] * b[bOff + i];
+        }
+
+        return result;
+    }
+
+    @Override
+    public double sum(double[] a, int off, int length) {
+        double sum = 0.0;
+
+        for (int i = 0; i < length; i++) {
+            sum += a[off + i];
+        }
+
+        return sum;
+    }
+
+    @Override
+    public double max(double[] a, int off, int length) {
+        double max = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < length; i++) {
+            if (a[off + i] > max) {
+                max = a[off + i];
+            }
+        }
+
+        return max;
+    }
+
+    @Override
+    public double expShift(double[] a, int off, int length, double shift) {
+        double sum = 0.0;
+
+        for (int i = 0; i < length; i++) {
+            double out = Math.exp(a[off + i] - shift);
+            a[off + i] = out;
+            sum += out;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void operate(double[] a, int aOff, double b, String operation, double[] result, int resultOff, int length) {
+        switch (operation) {
+            case "add":
+                for (int i = 0; i < length; i++) {
+                    result[resultOff + i] = a[aOff + i] + b;
+                }
+                break;
+            case "subtract":
+                for (int i = 0; i < length; i++) {
+                    result[resultOff + i] = a[aOff + i] - b;
+                }
+                break;
+            case "multiply":
+                for (int i = 0; i < length; i++) {
+                    result[resultOff + i] = a[aOff + i] * b;
+                }
+                break;
+            case "divide":
+                for (int i = 0; i < length; i++) {
+                    result[resultOff + i] = a[aOff + i] / b;
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    result[resultOff + i] = 0.0;
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void sigmoid(double[] a, int aOff, double[] result, int resultOff, int length) {
+        for (int i = 0; i < length; i++) {
+            result[resultOff + i] = 1.0 / (1 + Math.exp(-a[aOff + i]));
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package convnet;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The Schedule class provides a structure for the execution plan of the CNN.
  * @author Jared Gorski
@@ -8,6 +11,13 @@ public class Schedule {
 
     private String[] layers;
     private int iterations;
+    private String precision = "float64";
+    private int batchSize = 1;
+    private int workers = 1;
+    private String checkpointPath = null;
+    private int checkpointInterval = 0;
+    private int kernelSize = 5; // Height and width of the kernels of new convolutional layers.
+    private Map<Integer, String> convolutions = new HashMap<>(); // Convolution algorithm by layer index.
 
     public String[] getLayers() {
         return this.layers;
@@ -17,6 +27,40 @@ public class Schedule {
         return this.iterations;
     }
 
+    public String getPrecision() {
+        return this.precision;
+    }
+
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    public int getWorkers() {
+        return this.workers;
+    }
+
+    public String getCheckpointPath() {
+        return this.checkpointPath;
+    }
+
+    public int getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    public int getKernelSize() {
+        return this.kernelSize;
+    }
+
+    /**
+     * Returns the convolution algorithm of the layer at the given index, "auto" unless set otherwise.
+     * @param index
+     * @return
+     */
+    public String getConvolution(int index) {
+        String convolution = this.convolutions.get(index);
+        return convolution == null ? "auto" : convolution;
+    }
+
     public String getLayerByIndex(int i) {
         return this.layers[i];
     }
@@ -28,4 +72,115 @@ public class Schedule {
     public void setIterations(int iterations) {
         this.iterations = iterations;
     }
+
+    /**
+     * Set the precision the network is built and run in: "float64" (default, suited to gradient checking) or
+     * "float32" (half the memory traffic of float64).
+     * @param precision
+     */
+    public void setPrecision(String precision) {
+        switch (precision) {
+            case "float64":
+            case "float32":
+                this.precision = precision;
+                break;
+            default:
+                throw new RuntimeException("Unknown precision: " + precision);
+        }
+    }
+
+    /**
+     * Set the number of training samples run through the network together in one forward and backward pass.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new RuntimeException("Batch size must be at least 1.");
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the number of threads that train on separate shards of each step's samples. Each worker runs a mini-batch
+     * of batchSize samples, so one step consumes workers * batchSize samples.
+     * @param workers
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new RuntimeException("Workers must be at least 1.");
+        }
+
+        this.workers = workers;
+    }
+
+    /**
+     * Checkpoint the network to the given file every interval iterations of training. An interval of 0 disables
+     * checkpointing.
+     * @param path
+     * @param interval
+     */
+    public void setCheckpoint(String path, int interval) {
+        if (interval < 0) {
+            throw new RuntimeException("Checkpoint interval cannot be negative.");
+        }
+
+        this.checkpointPath = path;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Set the height and width of the kernels of convolutional layers built from now on. Kernels are square.
+     * @param kernelSize
+     */
+    public void setKernelSize(int kernelSize) {
+        if (kernelSize < 1) {
+            throw new RuntimeException("Kernel size must be at least 1.");
+        }
+
+        this.kernelSize = kernelSize;
+    }
+
+    /**
+     * Set the algorithm the convolutional layer at the given index runs: "gemm" (im2col and a matrix multiply, for any
+     * kernel), "winograd" (minimal filtering, for 3x3 and 5x5 kernels only), "fft" (products of spectra, for large
+     * inputs and kernels), "sparse" (skips zero weights, for pruned kernels), "int8" (int8 kernels and products, for
+     * layers of a model made by Quantizer.quantize) or "auto" (default: int8 for a quantized layer, sparse for a layer
+     * pruned sparse enough, otherwise gemm or fft, whichever is estimated cheaper for the layer's shapes).
+     * @param index
+     * @param convolution
+     */
+    public void setConvolution(int index, String convolution) {
+        switch (convolution) {
+            case "auto":
+            case "gemm":
+            case "winograd":
+            case "fft":
+            case "sparse":
+            case "int8":
+                this.convolutions.put(index, convolution);
+                break;
+            default:
+                throw new RuntimeException("Unknown convolution: " + convolution);
+        }
+    }
+
+    /**
+     * Returns a copy of the schedule that later changes to this one do not affect.
+     * @return
+     */
+    public Schedule copy() {
+        Schedule copy = new Schedule();
+        copy.layers = this.layers == null ? null : this.layers.clone();
+        copy.iterations = this.iterations;
+        copy.precision = this.precision;
+        copy.batchSize = this.batchSize;
+        copy.workers = this.workers;
+        copy.checkpointPath = this.checkpointPath;
+        copy.checkpointInterval = this.checkpointInterval;
+        copy.kernelSize = this.kernelSize;
+        copy.convolutions = new HashMap<>(this.convolutions);
+
+        return copy;
+    }
 }
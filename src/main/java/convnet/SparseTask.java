@@ -0,0 +1,256 @@
+package convnet;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The SparseTask class computes a block of a pruned layer's output: a range of output rows, counted across every sample
+ * of a mini-batch as in ConvolutionTask, with kernels compressed to their nonzero weights. A chunk of output pixels at
+ * a time, the patch positions some kernel still has a weight at are lowered, one row of pixels per position, and each
+ * nonzero weight then adds its row, scaled, to its kernel's sums. Zero weights cost nothing, and positions no kernel
+ * uses are never lowered, so the work falls with the density of the kernels. Sums are taken in float64 whatever the
+ * data precision, and bias and nonlinearity are applied as each chunk is written out.
+ * @author Jared Gorski
+ */
+class SparseTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_WORK = 1 << 16; // Multiply-adds below which a block is not split any further.
+    private static final int CHUNK_PIXELS = 64; // Output pixels lowered and summed together.
+    private static final double MAX_DENSITY = 0.2; // Density of kernel weights below which sparse beats GEMM.
+
+    private final Data input;
+    private final Layer layer;
+    private final Data output;
+    private final Workspace workspace;
+    private final int stride;
+    private final int rowStart;
+    private final int rowEnd;
+
+    private SparseTask(Data input, Layer layer, Data output, Workspace workspace, int stride,
+                       int rowStart, int rowEnd) {
+        this.input = input;
+        this.layer = layer;
+        this.output = output;
+        this.workspace = workspace;
+        this.stride = stride;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+    }
+
+    /**
+     * Convolves the whole mini-batch into the output with the layer's nonzero weights. Work too small to split, a pool
+     * of one thread, or no pool at all runs straight on the calling thread without creating any tasks.
+     * @param pool Pool to split the work across, or null for the calling thread.
+     * @param input
+     * @param layer
+     * @param output
+     * @param workspace
+     * @param stride
+     */
+    static void run(ForkJoinPool pool, Data input, Layer layer, Data output, Workspace workspace, int stride) {
+        int rows = output.getBatchSize() * output.getDimensions()[0];
+
+        if (pool == null || pool.getParallelism() == 1 || work(output, layer, rows) <= MIN_WORK) {
+            convolve(input, layer, output, workspace, stride, 0, rows);
+        } else {
+            pool.invoke(new SparseTask(input, layer, output, workspace, stride, 0, rows));
+        }
+    }
+
+    /**
+     * Whether a layer's kernels are sparse enough for sparse convolution to beat im2col and GEMM.
+     * @param layer
+     * @return
+     */
+    static boolean cheaper(Layer layer) {
+        return layer.getDensity() < MAX_DENSITY;
+    }
+
+    @Override
+    protected void compute() {
+        int rows = this.rowEnd - this.rowStart;
+
+        if (work(this.output, this.layer, rows) > MIN_WORK && rows > 1) {
+            int rowMid = this.rowStart + rows / 2;
+            invokeAll(
+                    new SparseTask(input, layer, output, workspace, stride, rowStart, rowMid),
+                    new SparseTask(input, layer, output, workspace, stride, rowMid, rowEnd)
+            );
+        } else {
+            convolve(input, layer, output, workspace, stride, rowStart, rowEnd);
+        }
+    }
+
+    /**
+     * Multiply-adds needed to compute the given number of output rows.
+     */
+    private static long work(Data output, Layer layer, int rows) {
+        return (long) rows * output.getDimensions()[1] * layer.getSparseKernels().values.length;
+    }
+
+    /**
+     * Compresses the kernels of a layer to their nonzero weights, kernel by kernel.
+     * @param layer
+     * @return
+     */
+    static Kernels compress(Layer layer) {
+        double[] matrix = layer.getKernelMatrix();
+        int[] dims = layer.getKernelDimensions();
+        int kernelsLength = layer.getKernelsLength();
+        int patchLength = matrix.length / kernelsLength;
+        int[] rowOf = new int[patchLength]; // Lowered row of each patch position, or -1 if no kernel uses it.
+        int rowsLength = 0;
+        int nonzeros = 0;
+
+        for (int p = 0; p < patchLength; p++) {
+            rowOf[p] = -1;
+
+            for (int k = 0; k < kernelsLength; k++) {
+                if (matrix[p * kernelsLength + k] != 0.0) {
+                    nonzeros++;
+
+                    if (rowOf[p] < 0) {
+                        rowOf[p] = rowsLength++;
+                    }
+                }
+            }
+        }
+
+        int[] positions = new int[rowsLength];
+        int[] starts = new int[kernelsLength + 1];
+        int[] rows = new int[nonzeros];
+        double[] values = new double[nonzeros];
+        int n = 0;
+
+        for (int p = 0; p < patchLength; p++) {
+            if (rowOf[p] >= 0) {
+                positions[rowOf[p]] = p;
+            }
+        }
+
+        for (int k = 0; k < kernelsLength; k++) {
+            starts[k] = n;
+
+            for (int p = 0; p < patchLength; p++) {
+                double value = matrix[p * kernelsLength + k];
+
+                if (value != 0.0) {
+                    rows[n] = rowOf[p];
+                    values[n++] = value;
+                }
+            }
+        }
+
+        starts[kernelsLength] = n;
+
+        return new Kernels(starts, rows, values, positions, dims.clone());
+    }
+
+    /**
+     * Lowers the used patch positions of each chunk of the block's pixels, then sums every kernel's nonzero weights
+     * times their rows and writes the chunk out.
+     */
+    private static void convolve(Data input, Layer layer, Data output, Workspace workspace, int stride,
+                                 int rowStart, int rowEnd) {
+        Kernels kernels = layer.getSparseKernels();
+        int kernelsLength = kernels.kernelsLength;
+        int rowsLength = kernels.positions.length;
+        int kns = output.getDimensions()[1];
+        int pixelStart = rowStart * kns;
+        int pixelEnd = rowEnd * kns;
+        int chunk = Math.min(CHUNK_PIXELS, pixelEnd - pixelStart);
+        int sumsOff = rowsLength * chunk;
+        double[] scratch = workspace.patches((rowsLength + kernelsLength) * chunk);
+        int nonlinearity = Nonlinearity.of(layer.getNonlinearity());
+        double[] result = output.getBuffer();
+        float[] floatResult = output.getFloatBuffer();
+
+        for (int g0 = pixelStart; g0 < pixelEnd; g0 += chunk) {
+            int pixels = Math.min(chunk, pixelEnd - g0);
+
+            lower(input, kernels, output.getDimensions(), stride, g0, pixels, scratch, chunk);
+
+            for (int k = 0; k < kernelsLength; k++) {
+                int sums = sumsOff + k * chunk;
+                Arrays.fill(scratch, sums, sums + pixels, 0.0);
+
+                for (int n = kernels.starts[k]; n < kernels.starts[k + 1]; n++) {
+                    double weight = kernels.values[n];
+                    int from = kernels.rows[n] * chunk;
+
+                    for (int x = 0; x < pixels; x++) {
+                        scratch[sums + x] += weight * scratch[from + x];
+                    }
+                }
+            }
+
+            for (int x = 0; x < pixels; x++) {
+                int at = output.getOffset() + (g0 + x) * kernelsLength;
+
+                for (int k = 0; k < kernelsLength; k++) {
+                    double value = Nonlinearity.apply(nonlinearity,
+                            scratch[sumsOff + k * chunk + x] + layer.getBiasByIndex(k));
+
+                    if (floatResult != null) {
+                        floatResult[at + k] = (float) value;
+                    } else {
+                        result[at + k] = value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the input values under each used patch position of pixels [g0, g0 + pixels) into the scratch, one row of
+     * the chunk's pixels per position. Pixels are counted across the mini-batch, a row of output at a time.
+     */
+    private static void lower(Data input, Kernels kernels, int[] outputDims, int stride, int g0, int pixels,
+                              double[] scratch, int chunk) {
+        int kms = outputDims[0];
+        int kns = outputDims[1];
+        int kn = kernels.dimensions[1];
+        int o = Math.max(kernels.dimensions[2], 1);
+        int[] strides = input.getStrides();
+        double[] in = input.getBuffer();
+        float[] inFloat = input.getFloatBuffer();
+
+        for (int x = 0; x < pixels; x++) {
+            int row = (g0 + x) / kns;
+            int column = (g0 + x) % kns;
+            int base = (row / kms) * input.getBatchStride() + input.index((row % kms) * stride, column * stride, 0);
+
+            for (int r = 0; r < kernels.positions.length; r++) {
+                int p = kernels.positions[r];
+                int at = base + (p / (kn * o)) * strides[0] + (p / o % kn) * strides[1] + (p % o) * strides[2];
+                scratch[r * chunk + x] = inFloat != null ? inFloat[at] : in[at];
+            }
+        }
+    }
+
+    /**
+     * The nonzero weights of a layer's kernels, kernel by kernel: those of kernel k are [starts[k], starts[k + 1]).
+     * Each weight refers to the lowered row of its patch position, and positions lists the patch position, counted as
+     * in the kernel matrix, of every lowered row.
+     */
+    static final class Kernels {
+
+        final int[] starts;
+        final int[] rows;
+        final double[] values;
+        final int[] positions;
+        final int[] dimensions;
+        final int kernelsLength;
+
+        Kernels(int[] starts, int[] rows, double[] values, int[] positions, int[] dimensions) {
+            this.starts = starts;
+            this.rows = rows;
+            this.values = values;
+            this.positions = positions;
+            this.dimensions = dimensions;
+            this.kernelsLength = starts.length - 1;
+        }
+    }
+}
@@ -5,40 +5,138 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Data structure to store and manage image datasets for CNN training.
+ *
+ * A directory of images can also be packed once into a single binary file, and that file loaded by memory-mapping it
+ * instead of decoding every image. The packed file is a header of seven big-endian ints [ magic, version, samples,
+ * height, width, depth, classes ], followed by one fixed-size record per sample: the one-hot label as one byte per
+ * class, then the pixels as one unsigned byte per value in [ Height, Width, Depth ] order.
+ *
+ * For datasets larger than the heap, loadFilesStreaming only lists the image paths. Samples are then decoded by
+ * background threads into a bounded queue just ahead of the training loop, which must read them in index order.
+ *
+ * Samples are always ordered by path, directories and files sorted by name, so every loading mode and thread count
+ * yields the same sample order.
  * @author Jared Gorski
  */
 public class TrainingSet {
 
+    private static final int PACKED_MAGIC = 0x434E4E54; // "CNNT"
+    private static final int PACKED_VERSION = 1;
+    private static final int PACKED_HEADER_LENGTH = 7 * 4;
+
     private List<TData> trainingData = new ArrayList<>();
     private String tsetRegex = "cnntset_\\[([\\d]+)/([\\d]+)\\]_";
     private Map<Integer, String> classMap = new HashMap<>();
-
+    private List<MappedByteBuffer> packedSegments = null; // Mapped regions of a packed file, whole records each.
+    private int packedLength; // Number of samples in the packed file.
+    private int packedRecordsPerSegment; // Number of records in every mapped region but the last.
+    private int[] packedShape; // [ Height, Width, Depth ] of every packed sample.
+    private int packedClasses; // Length of every packed one-hot label.
+    private List<String> streamPaths = null; // Image paths of a streaming training set, in sample order.
+    private int streamPrefetchDepth; // Decoded samples a streaming training set may hold ahead of the reader.
+    private int streamThreads; // Background threads decoding samples of a streaming training set.
+    private Prefetcher prefetcher = null; // Decoder currently serving a streaming training set.
+    private LoadProgress loadProgress = null; // Receives progress of loadFiles.
+
+    /**
+     * Decodes the training images under the directory and adds them to any loaded by an earlier loadFiles. A
+     * streaming or packed training set loaded before is dropped.
+     * @param dirname
+     * @throws IOException
+     */
     public void loadFiles(String dirname) throws IOException {
         File dir = new File(dirname);
 
         if (!dir.exists()) throw new FileNotFoundException("File not found");
 
         List<String> tsetFilepaths = getTSetPaths(dir);
+        clearStreamingAndPacked();
+
+        for (int i = 0; i < tsetFilepaths.size(); i++) {
+            trainingData.add(decode(tsetFilepaths.get(i)));
+            reportProgress(i + 1, tsetFilepaths.size());
+        }
+    }
+
+    /**
+     * Loads the training images under the directory like loadFiles, spreading the directory walk and the image
+     * decoding across the given number of threads. Samples keep the same order as with loadFiles.
+     * @param dirname
+     * @param threads
+     * @throws IOException
+     */
+    public void loadFiles(String dirname, int threads) throws IOException {
+        File dir = new File(dirname);
+
+        if (!dir.exists()) throw new FileNotFoundException("File not found");
 
-        for (String path : tsetFilepaths) {
-            TData intermediateTData = new TData();
-            File file = new File(path);
-            Data fileData = new Data();
-            fileData.write(getRGBMatrixFromImgFile(file));
-            intermediateTData.write(fileData);
-            int[] oneHot = getOneHotLabelFromFile(file);
-            intermediateTData.setLabel(oneHot);
+        if (threads < 1) {
+            throw new RuntimeException("Threads must be at least 1.");
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try {
+            List<String> tsetFilepaths = pool.invoke(new PathWalk(dir));
+            List<Future<TData>> decoded = new ArrayList<>();
+            clearStreamingAndPacked();
+
+            for (final String path : tsetFilepaths) {
+                decoded.add(pool.submit(() -> decode(path)));
+            }
 
-            trainingData.add(intermediateTData);
+            for (int i = 0; i < decoded.size(); i++) {
+                trainingData.add(decoded.get(i).get());
+                reportProgress(i + 1, decoded.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading training data.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new RuntimeException("Failed to decode training data.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Set a listener to receive the progress of loadFiles, called on the loading thread after each sample, in order.
+     * @param loadProgress
+     */
+    public void setLoadProgress(LoadProgress loadProgress) {
+        this.loadProgress = loadProgress;
+    }
+
+    private void reportProgress(int loaded, int total) {
+        if (this.loadProgress != null) {
+            this.loadProgress.update(loaded, total);
         }
     }
 
@@ -46,14 +144,234 @@ public class TrainingSet {
         return this.trainingData;
     }
 
+    /**
+     * Prepares a streaming training set: lists the image paths under the directory, but decodes nothing until samples
+     * are read. Up to prefetchDepth samples are then decoded ahead of the reader by the given number of threads.
+     * Samples must be read in index order; reading out of order restarts decoding from the requested index.
+     * @param dirname
+     * @param prefetchDepth
+     * @param threads
+     * @throws IOException
+     */
+    public void loadFilesStreaming(String dirname, int prefetchDepth, int threads) throws IOException {
+        File dir = new File(dirname);
+
+        if (!dir.exists()) throw new FileNotFoundException("File not found");
+
+        if (prefetchDepth < 1 || threads < 1) {
+            throw new RuntimeException("Prefetch depth and threads must be at least 1.");
+        }
+
+        List<String> paths = getTSetPaths(dir);
+        reset();
+        this.streamPaths = paths;
+        this.streamPrefetchDepth = prefetchDepth;
+        this.streamThreads = threads;
+    }
+
+    /**
+     * Stops any background decoding of a streaming training set.
+     */
+    public void close() {
+        if (this.prefetcher != null) {
+            this.prefetcher.stop();
+            this.prefetcher = null;
+        }
+    }
+
+    /**
+     * Drops whatever a previous load left, decoded, streaming or packed, before another load replaces it.
+     */
+    private void reset() {
+        clearStreamingAndPacked();
+        this.trainingData = new ArrayList<>();
+    }
+
+    /**
+     * Drops a streaming or packed training set, keeping decoded samples for loadFiles to add to.
+     */
+    private void clearStreamingAndPacked() {
+        close();
+        this.streamPaths = null;
+        this.packedSegments = null;
+    }
+
+    /**
+     * Packs every training image under the directory, with its one-hot label, into a single binary file that
+     * loadPacked can memory-map. All images must have the same dimensions. The class map must be set first.
+     * @param dirname
+     * @param filename
+     * @throws IOException
+     */
+    public void pack(String dirname, String filename) throws IOException {
+        File dir = new File(dirname);
+
+        if (!dir.exists()) throw new FileNotFoundException("File not found");
+
+        List<String> tsetFilepaths = getTSetPaths(dir);
+        int classes = this.classMap.size();
+        int[] shape = null;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(PACKED_HEADER_LENGTH);
+            ByteBuffer record = null;
+
+            for (String path : tsetFilepaths) {
+                File file = new File(path);
+                double[][][] pixels = getRGBMatrixFromImgFile(file);
+                int[] pixelsShape = NumPute.shape(pixels);
+
+                if (shape == null) {
+                    shape = pixelsShape;
+                    record = ByteBuffer.allocate(classes + shape[0] * shape[1] * shape[2]);
+                } else if (shape[0] != pixelsShape[0] || shape[1] != pixelsShape[1] || shape[2] != pixelsShape[2]) {
+                    throw new RuntimeException("Cannot pack odd-sized image: " + path);
+                }
+
+                record.clear();
+
+                for (int label : getOneHotLabelFromFile(file)) {
+                    record.put((byte) label);
+                }
+
+                for (double[][] row : pixels) {
+                    for (double[] pixel : row) {
+                        for (double value : pixel) {
+                            record.put((byte) value);
+                        }
+                    }
+                }
+
+                record.flip();
+
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+
+            if (shape == null) {
+                shape = new int[]{0, 0, 0};
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(PACKED_HEADER_LENGTH);
+            header.putInt(PACKED_MAGIC).putInt(PACKED_VERSION).putInt(tsetFilepaths.size())
+                    .putInt(shape[0]).putInt(shape[1]).putInt(shape[2]).putInt(classes);
+            header.flip();
+
+            while (header.hasRemaining()) {
+                channel.write(header, PACKED_HEADER_LENGTH - header.remaining());
+            }
+        }
+    }
+
+    /**
+     * Loads a file written by pack by memory-mapping it. Samples are read straight from the mapping when they are
+     * accessed, so nothing is decoded up front and the dataset does not occupy the heap.
+     * @param filename
+     * @throws IOException
+     */
+    public void loadPacked(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, PACKED_HEADER_LENGTH);
+
+            if (header.getInt() != PACKED_MAGIC || header.getInt() != PACKED_VERSION) {
+                throw new IOException("Not a packed training set: " + filename);
+            }
+
+            int length = header.getInt();
+            int[] shape = new int[]{header.getInt(), header.getInt(), header.getInt()};
+            int classes = header.getInt();
+            long recordLength = classes + (long) shape[0] * shape[1] * shape[2];
+            int recordsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / recordLength);
+            List<MappedByteBuffer> segments = new ArrayList<>();
+
+            if (channel.size() < PACKED_HEADER_LENGTH + recordLength * length) {
+                throw new IOException("Truncated packed training set: " + filename);
+            }
+
+            for (int first = 0; first < length; first += recordsPerSegment) {
+                int records = Math.min(recordsPerSegment, length - first);
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY,
+                        PACKED_HEADER_LENGTH + first * recordLength,
+                        records * recordLength));
+            }
+
+            reset();
+            this.packedSegments = segments;
+            this.packedLength = length;
+            this.packedRecordsPerSegment = recordsPerSegment;
+            this.packedShape = shape;
+            this.packedClasses = classes;
+        }
+    }
+
     public TData getDataByIndex(int index) {
+        if (this.packedSegments != null) {
+            return getPackedDataByIndex(index);
+        } else if (this.streamPaths != null) {
+            return getStreamedDataByIndex(index);
+        }
+
         return this.trainingData.get(index);
     }
 
     public int getDatasetLength() {
+        if (this.packedSegments != null) {
+            return this.packedLength;
+        } else if (this.streamPaths != null) {
+            return this.streamPaths.size();
+        }
+
         return this.trainingData.size();
     }
 
+    /**
+     * Returns the next sample from the prefetch queue, restarting decoding if the index is not the one expected.
+     */
+    private TData getStreamedDataByIndex(int index) {
+        if (index < 0 || index >= this.streamPaths.size()) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + this.streamPaths.size());
+        }
+
+        if (this.prefetcher == null || this.prefetcher.nextIndex != index) {
+            close();
+            this.prefetcher = new Prefetcher(index);
+        }
+
+        return this.prefetcher.take();
+    }
+
+    /**
+     * Decodes the sample at the given path.
+     */
+    private TData decode(String path) throws IOException {
+        TData intermediateTData = new TData();
+        File file = new File(path);
+        Data fileData = new Data();
+        fileData.write(getRGBMatrixFromImgFile(file));
+        intermediateTData.write(fileData);
+        intermediateTData.setLabel(getOneHotLabelFromFile(file));
+
+        return intermediateTData;
+    }
+
+    /**
+     * Returns a sample backed by its record in the mapped packed file.
+     */
+    private TData getPackedDataByIndex(int index) {
+        if (index < 0 || index >= this.packedLength) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + this.packedLength);
+        }
+
+        int recordLength = this.packedClasses + this.packedShape[0] * this.packedShape[1] * this.packedShape[2];
+
+        TData packedTData = new TData();
+        packedTData.record = this.packedSegments.get(index / this.packedRecordsPerSegment);
+        packedTData.recordOffset = (index % this.packedRecordsPerSegment) * recordLength;
+        return packedTData;
+    }
+
     public void setClassMap(int[] indices, String[] classes) {
         if (indices.length != classes.length) {
             throw new RuntimeException("Problem setting classmap: mismatched indices and classes.");
@@ -75,7 +393,7 @@ public class TrainingSet {
     private List<String> getTSetPaths(final File dir) {
         List<String> paths = new ArrayList<>();
 
-        for (final File entry : dir.listFiles()) {
+        for (final File entry : listEntries(dir)) {
             if (entry.exists()) {
                 if (entry.isDirectory()) {
                     paths.addAll(getTSetPaths(entry));
@@ -88,6 +406,63 @@ public class TrainingSet {
         return paths;
     }
 
+    /**
+     * Returns the entries of a directory sorted by name.
+     */
+    private static File[] listEntries(File dir) {
+        File[] entries = dir.listFiles();
+
+        if (entries == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Walks a directory tree for training images, forking one task per subdirectory. The subdirectories' results are
+     * joined in listing order, so the paths come out in the same order as getTSetPaths.
+     */
+    private class PathWalk extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+
+        PathWalk(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<String> compute() {
+            File[] entries = listEntries(this.dir);
+            List<Object> parts = new ArrayList<>();
+
+            for (File entry : entries) {
+                if (entry.exists()) {
+                    if (entry.isDirectory()) {
+                        PathWalk subWalk = new PathWalk(entry);
+                        subWalk.fork();
+                        parts.add(subWalk);
+                    } else if (entry.getName().matches(tsetRegex)) {
+                        parts.add(entry.getAbsolutePath());
+                    }
+                }
+            }
+
+            List<String> paths = new ArrayList<>();
+
+            for (Object part : parts) {
+                if (part instanceof PathWalk) {
+                    paths.addAll(((PathWalk) part).join());
+                } else {
+                    paths.add((String) part);
+                }
+            }
+
+            return paths;
+        }
+    }
+
     private int[] getOneHotLabelFromFile(File file) {
         int[] oneHot = new int[this.classMap.size()];
         String filename = file.getName();
@@ -130,23 +505,151 @@ public class TrainingSet {
         return rgbImg;
     }
 
+    /**
+     * Decodes the samples of a streaming training set in order, from a starting index to the end. A feeder thread
+     * hands each path to the decoding threads and queues the pending result, blocking while the queue is full, so
+     * at most prefetchDepth decoded samples wait in memory at any time.
+     */
+    private class Prefetcher {
+        private final BlockingQueue<Future<TData>> queue = new ArrayBlockingQueue<>(streamPrefetchDepth);
+        private final ExecutorService decoders = Executors.newFixedThreadPool(streamThreads, runnable -> {
+            Thread thread = new Thread(runnable, "TrainingSet-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Thread feeder;
+        private int nextIndex;
+
+        Prefetcher(int startIndex) {
+            this.nextIndex = startIndex;
+            this.feeder = new Thread(() -> {
+                try {
+                    for (int i = startIndex; i < streamPaths.size(); i++) {
+                        final String path = streamPaths.get(i);
+                        this.queue.put(this.decoders.submit(() -> decode(path)));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "TrainingSet-prefetch");
+            this.feeder.setDaemon(true);
+            this.feeder.start();
+        }
+
+        TData take() {
+            try {
+                TData tData = this.queue.take().get();
+                this.nextIndex++;
+                return tData;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading training data.", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to decode training data.", e.getCause());
+            }
+        }
+
+        void stop() {
+            this.feeder.interrupt();
+            this.decoders.shutdownNow();
+            this.queue.clear();
+        }
+    }
+
+    /**
+     * Listener for the progress of loading a training set.
+     */
+    public interface LoadProgress {
+        void update(int loaded, int total);
+    }
+
     public class TData {
         private int[] label;
         private Data data;
+        private ByteBuffer record; // Mapped region of a packed file holding the sample's record, decoded on each read.
+        private int recordOffset; // Position of the record within the mapped region.
 
         public void setLabel(int[] givenLabel) {
             this.label = givenLabel;
         }
 
         public int[] getLabel() {
+            if (this.label == null && this.record != null) {
+                return getLabel(new int[packedClasses]);
+            }
+
+            return this.label;
+        }
+
+        /**
+         * Returns the sample's one-hot label. A packed label is decoded into the given array, which is returned, so
+         * reading one allocates nothing.
+         * @param oneHot
+         * @return
+         */
+        int[] getLabel(int[] oneHot) {
+            if (this.label == null && this.record != null) {
+                for (int i = 0; i < packedClasses; i++) {
+                    oneHot[i] = this.record.get(this.recordOffset + i);
+                }
+
+                return oneHot;
+            }
+
             return this.label;
         }
 
+        /**
+         * Whether the sample is a record of a packed file, which read(batch, n) decodes without allocating.
+         * @return
+         */
+        boolean isPacked() {
+            return this.data == null && this.record != null;
+        }
+
+        /**
+         * Returns the [ Height, Width, Depth ] of a packed sample.
+         * @return
+         */
+        int[] getPackedShape() {
+            return packedShape;
+        }
+
+        /**
+         * Returns the length of a packed sample's one-hot label.
+         * @return
+         */
+        int getPackedClasses() {
+            return packedClasses;
+        }
+
+        /**
+         * Decodes a packed sample straight from its mapped record into the n-th sample of the given mini-batch.
+         * @param batch
+         * @param n
+         */
+        void read(Data batch, int n) {
+            Data.batch(this.record, this.recordOffset + packedClasses, batch, n);
+        }
+
         public void write(Data givenData) {
             this.data = givenData;
         }
 
         public Data read() {
+            if (this.data == null && this.record != null) {
+                int length = packedShape[0] * packedShape[1] * packedShape[2];
+                double[] pixels = new double[length];
+
+                for (int i = 0; i < length; i++) {
+                    pixels[i] = this.record.get(this.recordOffset + packedClasses + i) & 0xff;
+                }
+
+                Data packedData = new Data();
+                packedData.write(pixels, packedShape);
+                return packedData;
+            }
+
             return this.data;
         }
     }
@@ -0,0 +1,407 @@
+package convnet;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The WinogradTask class computes a stride 1 convolutional layer with Winograd minimal filtering, F(4x4, 3x3) for 3x3
+ * kernels and F(2x2, 5x5) for 5x5 kernels. Both read 6x6 input tiles. Each tile and each kernel is transformed into
+ * the Winograd domain, where the convolution becomes an element-wise product: for every one of the 36 tile positions,
+ * the tiles' channels are multiplied by the kernels' channels as one GEMM. The products are transformed back into
+ * output tiles of 4x4 or 2x2. This takes 36 multiplications per tile and channel where direct convolution takes 144
+ * (3x3) or 100 (5x5).
+ *
+ * Kernels are transformed once per weight update and cached on the layer. Tiles are counted across every sample of
+ * the mini-batch, and large ranges of tiles are split in half until each piece is small enough to run alone.
+ * @author Jared Gorski
+ */
+class WinogradTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_WORK = 1 << 16; // Multiply-adds below which a range of tiles is not split.
+    private static final int TILE_BLOCK = 32; // Tiles transformed and multiplied together.
+
+    private static final Transform F4X4_3X3 = new Transform(4, 3);
+    private static final Transform F2X2_5X5 = new Transform(2, 5);
+
+    private final Data input;
+    private final Layer layer;
+    private final Data output;
+    private final Workspace workspace;
+    private final Transform transform;
+    private final int tileStart;
+    private final int tileEnd;
+
+    private WinogradTask(Data input, Layer layer, Data output, Workspace workspace, Transform transform,
+                         int tileStart, int tileEnd) {
+        this.input = input;
+        this.layer = layer;
+        this.output = output;
+        this.workspace = workspace;
+        this.transform = transform;
+        this.tileStart = tileStart;
+        this.tileEnd = tileEnd;
+    }
+
+    /**
+     * Whether Winograd convolution supports kernels of the given dimensions.
+     * @param kernelDims
+     * @return
+     */
+    static boolean supports(int[] kernelDims) {
+        return kernelDims[0] == kernelDims[1] && (kernelDims[0] == 3 || kernelDims[0] == 5);
+    }
+
+    /**
+     * Convolves the whole mini-batch into the output, on the calling thread if the pool is null, has one thread, or
+     * the work is too small to split.
+     * @param pool
+     * @param input
+     * @param layer
+     * @param output
+     * @param workspace
+     */
+    static void run(ForkJoinPool pool, Data input, Layer layer, Data output, Workspace workspace) {
+        Transform transform = transformFor(layer);
+        int tiles = output.getBatchSize() * tilesPerSample(output, transform);
+
+        if (pool == null || pool.getParallelism() == 1 || work(input, layer, transform, tiles) <= MIN_WORK) {
+            convolve(input, layer, output, workspace, transform, 0, tiles);
+        } else {
+            pool.invoke(new WinogradTask(input, layer, output, workspace, transform, 0, tiles));
+        }
+    }
+
+    @Override
+    protected void compute() {
+        int tiles = this.tileEnd - this.tileStart;
+
+        if (tiles > TILE_BLOCK && work(this.input, this.layer, this.transform, tiles) > MIN_WORK) {
+            int tileMid = this.tileStart + tiles / 2;
+            invokeAll(
+                    new WinogradTask(input, layer, output, workspace, transform, tileStart, tileMid),
+                    new WinogradTask(input, layer, output, workspace, transform, tileMid, tileEnd)
+            );
+        } else {
+            convolve(input, layer, output, workspace, transform, tileStart, tileEnd);
+        }
+    }
+
+    /**
+     * Transforms every kernel of the layer into the Winograd domain, laid out as [ position ][ channel ][ kernel ] so
+     * that each position's slice is the right-hand side of that position's GEMM.
+     * @param layer
+     * @return
+     */
+    static double[] transformKernels(Layer layer) {
+        Transform transform = transformFor(layer);
+        int alpha = transform.alpha;
+        int r = transform.r;
+        int kernelsLength = layer.getKernelsLength();
+        int channels = Math.max(layer.getKernelByIndex(0).getDimensions()[2], 1);
+        double[] transformed = new double[alpha * alpha * channels * kernelsLength];
+        double[] g = new double[r * r];
+        double[] gg = new double[alpha * r];
+        double[] u = new double[alpha * alpha];
+
+        for (int k = 0; k < kernelsLength; k++) {
+            Data kernel = layer.getKernelByIndex(k);
+
+            for (int c = 0; c < channels; c++) {
+                for (int i = 0; i < r; i++) {
+                    for (int j = 0; j < r; j++) {
+                        g[i * r + j] = kernel.get(i, j, c);
+                    }
+                }
+
+                // u = G g G^T
+                multiply(transform.g, alpha, r, g, r, false, gg);
+                multiply(gg, alpha, r, transform.g, alpha, true, u);
+
+                for (int xi = 0; xi < alpha * alpha; xi++) {
+                    transformed[(xi * channels + c) * kernelsLength + k] = u[xi];
+                }
+            }
+        }
+
+        return transformed;
+    }
+
+    /**
+     * Convolves tiles [tileStart, tileEnd) of the mini-batch, TILE_BLOCK tiles at a time.
+     */
+    private static void convolve(Data input, Layer layer, Data output, Workspace workspace, Transform transform,
+                                 int tileStart, int tileEnd) {
+        int alpha = transform.alpha;
+        int positions = alpha * alpha;
+        int channels = Math.max(input.getDimensions()[2], 1);
+        int kernelsLength = layer.getKernelsLength();
+        int block = Math.min(TILE_BLOCK, tileEnd - tileStart);
+        int productsOff = positions * block * channels;
+        int scratchLength = productsOff + positions * block * kernelsLength;
+        boolean isFloat = input.isFloat();
+        double[] scratch = workspace.patches((isFloat ? 0 : scratchLength) + 3 * positions);
+        float[] floatScratch = isFloat ? workspace.floatPatches(scratchLength) : null;
+        int tmpOff = isFloat ? 0 : scratchLength;
+
+        for (int start = tileStart; start < tileEnd; start += block) {
+            int tiles = Math.min(block, tileEnd - start);
+
+            for (int p = 0; p < tiles; p++) {
+                transformTile(input, output, transform, start + p, p, tiles, scratch, floatScratch, tmpOff);
+            }
+
+            if (isFloat) {
+                float[] kernels = layer.getWinogradKernelsFloat();
+                Arrays.fill(floatScratch, productsOff, productsOff + positions * tiles * kernelsLength, 0.0f);
+
+                for (int xi = 0; xi < positions; xi++) {
+                    NumPute.gemm(tiles, kernelsLength, channels,
+                            floatScratch, xi * tiles * channels, channels,
+                            kernels, xi * channels * kernelsLength, kernelsLength,
+                            floatScratch, productsOff + xi * tiles * kernelsLength, kernelsLength);
+                }
+            } else {
+                double[] kernels = layer.getWinogradKernels();
+                Arrays.fill(scratch, productsOff, productsOff + positions * tiles * kernelsLength, 0.0);
+
+                for (int xi = 0; xi < positions; xi++) {
+                    NumPute.gemm(tiles, kernelsLength, channels,
+                            scratch, xi * tiles * channels, channels,
+                            kernels, xi * channels * kernelsLength, kernelsLength,
+                            scratch, productsOff + xi * tiles * kernelsLength, kernelsLength);
+                }
+            }
+
+            for (int p = 0; p < tiles; p++) {
+                for (int k = 0; k < kernelsLength; k++) {
+                    untransformTile(layer, output, transform, start + p, k, p, tiles, productsOff,
+                            scratch, floatScratch, tmpOff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms every channel of one input tile, v = B^T d B, into slot p of the block's tile matrices. Parts of the
+     * tile past the edge of the input read as zero.
+     */
+    private static void transformTile(Data input, Data output, Transform transform, int tile, int p, int tiles,
+                                      double[] scratch, float[] floatScratch, int tmpOff) {
+        int alpha = transform.alpha;
+        int positions = alpha * alpha;
+        int m = input.getDimensions()[0];
+        int n = input.getDimensions()[1];
+        int channels = Math.max(input.getDimensions()[2], 1);
+        int tilesW = tilesAcross(output.getDimensions()[1], transform);
+        int perSample = tilesPerSample(output, transform);
+        int b = tile / perSample;
+        int row = (tile % perSample) / tilesW * transform.m;
+        int col = (tile % perSample) % tilesW * transform.m;
+        int base = b * input.getBatchStride();
+        double[] buffer = input.getBuffer();
+        float[] floatBuffer = input.getFloatBuffer();
+        int d = tmpOff;
+        int bd = tmpOff + positions;
+        int v = tmpOff + 2 * positions;
+
+        for (int c = 0; c < channels; c++) {
+            for (int i = 0; i < alpha; i++) {
+                for (int j = 0; j < alpha; j++) {
+                    double value = 0.0;
+
+                    if (row + i < m && col + j < n) {
+                        int index = base + input.index(row + i, col + j, c);
+                        value = floatBuffer != null ? floatBuffer[index] : buffer[index];
+                    }
+
+                    scratch[d + i * alpha + j] = value;
+                }
+            }
+
+            multiply(transform.bt, 0, alpha, alpha, scratch, d, alpha, false, scratch, bd);
+            multiply(scratch, bd, alpha, alpha, transform.bt, 0, alpha, true, scratch, v);
+
+            for (int xi = 0; xi < positions; xi++) {
+                int index = (xi * tiles + p) * channels + c;
+
+                if (floatScratch != null) {
+                    floatScratch[index] = (float) scratch[v + xi];
+                } else {
+                    scratch[index] = scratch[v + xi];
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms the products of one tile and kernel back into an output tile, y = A^T M A, and writes the part of it
+     * inside the output, on top of the kernel's bias and through the layer's nonlinearity.
+     */
+    private static void untransformTile(Layer layer, Data output, Transform transform, int tile, int k, int p,
+                                        int tiles, int productsOff, double[] scratch, float[] floatScratch,
+                                        int tmpOff) {
+        int alpha = transform.alpha;
+        int positions = alpha * alpha;
+        int tm = transform.m;
+        int kernelsLength = layer.getKernelsLength();
+        int kms = output.getDimensions()[0];
+        int kns = output.getDimensions()[1];
+        int tilesW = tilesAcross(kns, transform);
+        int perSample = tilesPerSample(output, transform);
+        int b = tile / perSample;
+        int row = (tile % perSample) / tilesW * tm;
+        int col = (tile % perSample) % tilesW * tm;
+        int base = b * output.getBatchStride();
+        double bias = layer.getBiasByIndex(k);
+        int nonlinearity = Nonlinearity.of(layer.getNonlinearity());
+        int mm = tmpOff;
+        int am = tmpOff + positions;
+        int y = tmpOff + 2 * positions;
+
+        for (int xi = 0; xi < positions; xi++) {
+            int index = productsOff + (xi * tiles + p) * kernelsLength + k;
+            scratch[mm + xi] = floatScratch != null ? floatScratch[index] : scratch[index];
+        }
+
+        multiply(transform.at, 0, tm, alpha, scratch, mm, alpha, false, scratch, am);
+        multiply(scratch, am, tm, alpha, transform.at, 0, tm, true, scratch, y);
+
+        for (int i = 0; i < tm && row + i < kms; i++) {
+            for (int j = 0; j < tm && col + j < kns; j++) {
+                int index = base + output.index(row + i, col + j, k);
+
+                double value = Nonlinearity.apply(nonlinearity, bias + scratch[y + i * tm + j]);
+
+                if (output.isFloat()) {
+                    output.getFloatBuffer()[index] = (float) value;
+                } else {
+                    output.getBuffer()[index] = value;
+                }
+            }
+        }
+    }
+
+    private static Transform transformFor(Layer layer) {
+        return layer.getKernelByIndex(0).getDimensions()[0] == 3 ? F4X4_3X3 : F2X2_5X5;
+    }
+
+    private static int tilesAcross(int length, Transform transform) {
+        return (length + transform.m - 1) / transform.m;
+    }
+
+    private static int tilesPerSample(Data output, Transform transform) {
+        return tilesAcross(output.getDimensions()[0], transform) * tilesAcross(output.getDimensions()[1], transform);
+    }
+
+    private static long work(Data input, Layer layer, Transform transform, int tiles) {
+        int channels = Math.max(input.getDimensions()[2], 1);
+        return (long) tiles * transform.alpha * transform.alpha * channels * layer.getKernelsLength();
+    }
+
+    /**
+     * c = a * b for small row-major matrices, where a is rows x inner and b is inner x cols, or cols x inner when
+     * given transposed.
+     */
+    private static void multiply(double[] a, int rows, int inner, double[] b, int cols, boolean bTransposed,
+                                 double[] c) {
+        multiply(a, 0, rows, inner, b, 0, cols, bTransposed, c, 0);
+    }
+
+    private static void multiply(double[] a, int aOff, int rows, int inner,
+                                 double[] b, int bOff, int cols, boolean bTransposed, double[] c, int cOff) {
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                double sum = 0.0;
+
+                for (int l = 0; l < inner; l++) {
+                    sum += a[aOff + i * inner + l] * (bTransposed ? b[bOff + j * inner + l] : b[bOff + l * cols + j]);
+                }
+
+                c[cOff + i * cols + j] = sum;
+            }
+        }
+    }
+
+    /**
+     * The matrices of Winograd's F(m x m, r x r), built by Toom-Cook from the points 0, 1, -1, 2, -2 and infinity.
+     * Correlation of a tile d with a kernel g is then A^T [ (G g G^T) * (B^T d B) ] A, with * element-wise.
+     */
+    static final class Transform {
+
+        private static final double[] POINTS = {0, 1, -1, 2, -2, 0.5, -0.5};
+
+        final int m;
+        final int r;
+        final int alpha;
+        final double[] at; // m x alpha
+        final double[] g; // alpha x r
+        final double[] bt; // alpha x alpha
+
+        Transform(int m, int r) {
+            this.m = m;
+            this.r = r;
+            this.alpha = m + r - 1;
+            this.at = new double[m * alpha];
+            this.g = new double[alpha * r];
+            this.bt = new double[alpha * alpha];
+
+            int finite = alpha - 1;
+
+            // A^T and G evaluate the output and kernel polynomials at each point; infinity takes the top coefficient.
+            for (int j = 0; j < finite; j++) {
+                for (int i = 0; i < m; i++) {
+                    this.at[i * alpha + j] = Math.pow(POINTS[j], i);
+                }
+
+                for (int k = 0; k < r; k++) {
+                    this.g[j * r + k] = Math.pow(POINTS[j], k);
+                }
+            }
+
+            this.at[(m - 1) * alpha + finite] = 1.0;
+            this.g[finite * r + r - 1] = 1.0;
+
+            // B^T is the transposed interpolation: row j holds the coefficients of the j-th Lagrange polynomial over
+            // the finite points, and the last row those of the product of (x - point) over all of them.
+            for (int j = 0; j < finite; j++) {
+                double[] lagrange = {1.0};
+                double denominator = 1.0;
+
+                for (int l = 0; l < finite; l++) {
+                    if (l != j) {
+                        lagrange = multiplyByRoot(lagrange, POINTS[l]);
+                        denominator *= POINTS[j] - POINTS[l];
+                    }
+                }
+
+                for (int t = 0; t < lagrange.length; t++) {
+                    this.bt[j * alpha + t] = lagrange[t] / denominator;
+                }
+            }
+
+            double[] product = {1.0};
+
+            for (int l = 0; l < finite; l++) {
+                product = multiplyByRoot(product, POINTS[l]);
+            }
+
+            System.arraycopy(product, 0, this.bt, finite * alpha, alpha);
+        }
+
+        /**
+         * Multiplies the polynomial with the given coefficients, lowest first, by (x - root).
+         */
+        private static double[] multiplyByRoot(double[] coefficients, double root) {
+            double[] result = new double[coefficients.length + 1];
+
+            for (int i = 0; i < coefficients.length; i++) {
+                result[i + 1] += coefficients[i];
+                result[i] -= root * coefficients[i];
+            }
+
+            return result;
+        }
+    }
+}
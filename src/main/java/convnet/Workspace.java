@@ -0,0 +1,331 @@
+package convnet;
+
+import java.util.Arrays;
+
+/**
+ * The Workspace class owns the buffers a network reuses from one pass to the next: the training mini-batch and its
+ * labels, the output of every layer, the class probabilities, the errors, pooling masks and partial gradients of the
+ * backward pass, and scratch space for lowering convolution patches. A buffer is allocated the first time it is asked
+ * for with a given shape, precision and batch size, and the same buffer is handed back every time after, so a
+ * warmed-up pass allocates no arrays.
+ *
+ * Layer outputs and probabilities are kept per batch size, so the shorter last batch of an epoch does not evict the
+ * buffers of the full ones. Patch scratch is kept per thread, since convolution blocks are lowered in parallel.
+ *
+ * Inference keeps no per-layer outputs. It alternates between two buffers, each large enough for the largest layer
+ * output, and every layer writes a view of one of them.
+ * @author Jared Gorski
+ */
+final class Workspace {
+
+    private Data[] inputs = new Data[0]; // Training mini-batches copied from samples, indexed by [ batchSize ].
+    private Data[][] activations = new Data[0][]; // Layer outputs, indexed by [ layer ][ batchSize ].
+    private double[][][] probabilities = new double[0][][]; // Class probabilities, indexed by [ batchSize ].
+    private int[][][] labels = new int[0][][]; // One-hot labels decoded from packed records, by [ batchSize ].
+    private Data[][] pingPong = new Data[0][]; // Inference buffers, indexed by [ batchSize ][ side ].
+    private Data[][] inferenceActivations = new Data[0][]; // Views of the inference buffers, [ layer ][ batchSize ].
+    private Data[][] errors = new Data[0][]; // Errors of layer inputs, indexed by [ layer ][ batchSize ].
+    private int[][] masks = new int[0][]; // Pooling argmax masks, indexed by [ layer ].
+    private double[][] gradients = new double[0][]; // Partial kernel and bias gradients, indexed by [ slot ].
+    private double[] kernelRows = new double[0]; // Kernels of the layer running backward, one per row.
+    private final ThreadLocal<double[]> patches = new ThreadLocal<>();
+    private final ThreadLocal<float[]> floatPatches = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> bytePatches = new ThreadLocal<>();
+    private final ThreadLocal<double[]> errorPatches = new ThreadLocal<>();
+
+    /**
+     * Returns the buffer training samples of the given shape and precision are copied into, to run as one mini-batch
+     * of the given size.
+     * @param shape
+     * @param precision
+     * @param batchSize
+     * @return
+     */
+    Data input(int[] shape, String precision, int batchSize) {
+        if (batchSize >= this.inputs.length) {
+            this.inputs = Arrays.copyOf(this.inputs, batchSize + 1);
+        }
+
+        Data input = this.inputs[batchSize];
+
+        if (input == null
+                || !Arrays.equals(input.getDimensions(), shape)
+                || !input.getPrecision().equals(precision)) {
+            input = new Data(shape, precision, batchSize);
+            this.inputs[batchSize] = input;
+        }
+
+        return input;
+    }
+
+    /**
+     * Returns the output buffer of the given layer for a mini-batch of the given shape, precision and size.
+     * @param layer
+     * @param shape
+     * @param precision
+     * @param batchSize
+     * @return
+     */
+    Data activation(int layer, int[] shape, String precision, int batchSize) {
+        if (layer >= this.activations.length) {
+            this.activations = Arrays.copyOf(this.activations, layer + 1);
+        }
+
+        Data[] byBatch = this.activations[layer];
+
+        if (byBatch == null || batchSize >= byBatch.length) {
+            byBatch = byBatch == null ? new Data[batchSize + 1] : Arrays.copyOf(byBatch, batchSize + 1);
+            this.activations[layer] = byBatch;
+        }
+
+        Data activation = byBatch[batchSize];
+
+        if (activation == null
+                || !Arrays.equals(activation.getDimensions(), shape)
+                || !activation.getPrecision().equals(precision)) {
+            activation = new Data(shape, precision, batchSize);
+            byBatch[batchSize] = activation;
+        }
+
+        return activation;
+    }
+
+    /**
+     * Returns the inference output of the given layer: a view of one of the two inference buffers, each of which holds
+     * capacity values per sample. Consecutive layers must use opposite sides, so no layer overwrites its own input.
+     * @param layer
+     * @param side 0 or 1.
+     * @param capacity Values per sample of the largest layer output.
+     * @param shape
+     * @param precision
+     * @param batchSize
+     * @return
+     */
+    Data inferenceActivation(int layer, int side, int capacity, int[] shape, String precision, int batchSize) {
+        if (batchSize >= this.pingPong.length) {
+            this.pingPong = Arrays.copyOf(this.pingPong, batchSize + 1);
+        }
+
+        if (this.pingPong[batchSize] == null) {
+            this.pingPong[batchSize] = new Data[2];
+        }
+
+        Data buffer = this.pingPong[batchSize][side];
+
+        if (buffer == null || !buffer.getPrecision().equals(precision) || buffer.length() < capacity) {
+            buffer = new Data(new int[]{1, capacity}, precision, batchSize);
+            this.pingPong[batchSize][side] = buffer;
+        }
+
+        if (layer >= this.inferenceActivations.length) {
+            this.inferenceActivations = Arrays.copyOf(this.inferenceActivations, layer + 1);
+        }
+
+        Data[] byBatch = this.inferenceActivations[layer];
+
+        if (byBatch == null || batchSize >= byBatch.length) {
+            byBatch = byBatch == null ? new Data[batchSize + 1] : Arrays.copyOf(byBatch, batchSize + 1);
+            this.inferenceActivations[layer] = byBatch;
+        }
+
+        Data activation = byBatch[batchSize];
+
+        if (activation == null
+                || activation.getBuffer() != buffer.getBuffer()
+                || activation.getFloatBuffer() != buffer.getFloatBuffer()
+                || !Arrays.equals(activation.getDimensions(), shape)) {
+            activation = buffer.reshape(shape, batchSize);
+            byBatch[batchSize] = activation;
+        }
+
+        return activation;
+    }
+
+    /**
+     * Returns the float64 buffer for the error of the given layer's input, for a mini-batch of the given shape and
+     * size.
+     * @param layer
+     * @param shape
+     * @param batchSize
+     * @return
+     */
+    Data error(int layer, int[] shape, int batchSize) {
+        if (layer >= this.errors.length) {
+            this.errors = Arrays.copyOf(this.errors, layer + 1);
+        }
+
+        Data[] byBatch = this.errors[layer];
+
+        if (byBatch == null || batchSize >= byBatch.length) {
+            byBatch = byBatch == null ? new Data[batchSize + 1] : Arrays.copyOf(byBatch, batchSize + 1);
+            this.errors[layer] = byBatch;
+        }
+
+        Data error = byBatch[batchSize];
+
+        if (error == null || !Arrays.equals(error.getDimensions(), shape)) {
+            error = new Data(shape, "float64", batchSize);
+            byBatch[batchSize] = error;
+        }
+
+        return error;
+    }
+
+    /**
+     * Returns the given layer's argmax mask, at least the given length. A mask outlives the pass that wrote it, so the
+     * backward pass can read what the forward pass recorded.
+     * @param layer
+     * @param length
+     * @return
+     */
+    int[] mask(int layer, int length) {
+        if (layer >= this.masks.length) {
+            this.masks = Arrays.copyOf(this.masks, layer + 1);
+        }
+
+        if (this.masks[layer] == null || this.masks[layer].length < length) {
+            this.masks[layer] = new int[length];
+        }
+
+        return this.masks[layer];
+    }
+
+    /**
+     * Returns a batchSize x classes array for class probabilities.
+     * @param batchSize
+     * @param classes
+     * @return
+     */
+    double[][] probabilities(int batchSize, int classes) {
+        if (batchSize >= this.probabilities.length) {
+            this.probabilities = Arrays.copyOf(this.probabilities, batchSize + 1);
+        }
+
+        double[][] result = this.probabilities[batchSize];
+
+        if (result == null || result[0].length != classes) {
+            result = new double[batchSize][classes];
+            this.probabilities[batchSize] = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a batchSize x classes array for the one-hot labels of a mini-batch of packed records.
+     * @param batchSize
+     * @param classes
+     * @return
+     */
+    int[][] labels(int batchSize, int classes) {
+        if (batchSize >= this.labels.length) {
+            this.labels = Arrays.copyOf(this.labels, batchSize + 1);
+        }
+
+        int[][] result = this.labels[batchSize];
+
+        if (result == null || result[0].length != classes) {
+            result = new int[batchSize][classes];
+            this.labels[batchSize] = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns this thread's float64 patch scratch, at least the given length. Contents are left over from earlier use.
+     * @param length
+     * @return
+     */
+    double[] patches(int length) {
+        double[] scratch = this.patches.get();
+
+        if (scratch == null || scratch.length < length) {
+            scratch = new double[length];
+            this.patches.set(scratch);
+        }
+
+        return scratch;
+    }
+
+    /**
+     * Float32 counterpart of patches.
+     * @param length
+     * @return
+     */
+    float[] floatPatches(int length) {
+        float[] scratch = this.floatPatches.get();
+
+        if (scratch == null || scratch.length < length) {
+            scratch = new float[length];
+            this.floatPatches.set(scratch);
+        }
+
+        return scratch;
+    }
+
+    /**
+     * Int8 counterpart of patches, for quantized layers.
+     * @param length
+     * @return
+     */
+    byte[] bytePatches(int length) {
+        byte[] scratch = this.bytePatches.get();
+
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[length];
+            this.bytePatches.set(scratch);
+        }
+
+        return scratch;
+    }
+
+    /**
+     * Returns the partial gradient buffer of the given slot, at least the given length. Each slot belongs to one
+     * gradient task of a backward pass, so tasks accumulate without sharing. Contents are left over from earlier use.
+     * @param slot
+     * @param length
+     * @return
+     */
+    double[] gradients(int slot, int length) {
+        if (slot >= this.gradients.length) {
+            this.gradients = Arrays.copyOf(this.gradients, slot + 1);
+        }
+
+        if (this.gradients[slot] == null || this.gradients[slot].length < length) {
+            this.gradients[slot] = new double[length];
+        }
+
+        return this.gradients[slot];
+    }
+
+    /**
+     * Returns a buffer for the kernels of a layer laid out one per row, at least the given length.
+     * @param length
+     * @return
+     */
+    double[] kernelRows(int length) {
+        if (this.kernelRows.length < length) {
+            this.kernelRows = new double[length];
+        }
+
+        return this.kernelRows;
+    }
+
+    /**
+     * Returns this thread's scratch for the output error of a chunk and the patch error it lowers to, at least the
+     * given length. Contents are left over from earlier use.
+     * @param length
+     * @return
+     */
+    double[] errorPatches(int length) {
+        double[] scratch = this.errorPatches.get();
+
+        if (scratch == null || scratch.length < length) {
+            scratch = new double[length];
+            this.errorPatches.set(scratch);
+        }
+
+        return scratch;
+    }
+}
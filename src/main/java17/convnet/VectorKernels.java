@@ -0,0 +1,174 @@
+package convnet;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of ArrayKernels on the Java Vector API, processing as many lanes per instruction as the CPU's
+ * preferred vector width allows (4 doubles on AVX2, 8 on AVX-512). Remainders shorter than one vector fall back to
+ * scalar loops. Only packaged under META-INF/versions/17 of the jar, and only loaded by NumPute when the
+ * jdk.incubator.vector module is resolved.
+ * @author Jared Gorski
+ */
+class VectorKernels implements ArrayKernels {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // As many bytes as INTS has lanes, so each byte widens to one int lane, but no narrower than the smallest vector
+    // shape. Where INTS has fewer lanes than that, as on 128-bit vectors, the bytes widen in BYTE_PARTS parts.
+    private static final VectorSpecies<Byte> BYTES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(INTS.vectorBitSize() / 4, 64)));
+    private static final int BYTE_PARTS = BYTES.length() / INTS.length();
+
+    private final ScalarKernels scalar = new ScalarKernels();
+
+    @Override
+    public double dot(double[] a, int aOff, double[] b, int bOff, int length) {
+        int bound = DOUBLES.loopBound(length);
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector va = DoubleVector.fromArray(DOUBLES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(DOUBLES, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + scalar.dot(a, aOff + i, b, bOff + i, length - i);
+    }
+
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int length) {
+        int bound = FLOATS.loopBound(length);
+        FloatVector acc = FloatVector.zero(FLOATS);
+        int i = 0;
+
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector va = FloatVector.fromArray(FLOATS, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(FLOATS, b, bOff + i);
+            acc = va.fma(vb, acc);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + scalar.dot(a, aOff + i, b, bOff + i, length - i);
+    }
+
+    @Override
+    public int dot(byte[] a, int aOff, byte[] b, int bOff, int length) {
+        int bound = BYTES.loopBound(length);
+        IntVector acc = IntVector.zero(INTS);
+        int i = 0;
+
+        for (; i < bound; i += BYTES.length()) {
+            ByteVector va = ByteVector.fromArray(BYTES, a, aOff + i);
+            ByteVector vb = ByteVector.fromArray(BYTES, b, bOff + i);
+
+            for (int part = 0; part < BYTE_PARTS; part++) {
+                IntVector ia = (IntVector) va.convertShape(VectorOperators.B2I, INTS, part);
+                IntVector ib = (IntVector) vb.convertShape(VectorOperators.B2I, INTS, part);
+                acc = acc.add(ia.mul(ib));
+            }
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + scalar.dot(a, aOff + i, b, bOff + i, length - i);
+    }
+
+    @Override
+    public double sum(double[] a, int off, int length) {
+        int bound = DOUBLES.loopBound(length);
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+
+        for (; i < bound; i += DOUBLES.length()) {
+            acc = acc.add(DoubleVector.fromArray(DOUBLES, a, off + i));
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + scalar.sum(a, off + i, length - i);
+    }
+
+    @Override
+    public double max(double[] a, int off, int length) {
+        int bound = DOUBLES.loopBound(length);
+        DoubleVector acc = DoubleVector.broadcast(DOUBLES, Double.NEGATIVE_INFINITY);
+        int i = 0;
+
+        for (; i < bound; i += DOUBLES.length()) {
+            acc = acc.max(DoubleVector.fromArray(DOUBLES, a, off + i));
+        }
+
+        return Math.max(acc.reduceLanes(VectorOperators.MAX), scalar.max(a, off + i, length - i));
+    }
+
+    @Override
+    public double expShift(double[] a, int off, int length, double shift) {
+        int bound = DOUBLES.loopBound(length);
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector out = DoubleVector.fromArray(DOUBLES, a, off + i)
+                    .sub(shift)
+                    .lanewise(VectorOperators.EXP);
+            out.intoArray(a, off + i);
+            acc = acc.add(out);
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + scalar.expShift(a, off + i, length - i, shift);
+    }
+
+    @Override
+    public void operate(double[] a, int aOff, double b, String operation, double[] result, int resultOff, int length) {
+        VectorOperators.Binary op;
+
+        switch (operation) {
+            case "add":
+                op = VectorOperators.ADD;
+                break;
+            case "subtract":
+                op = VectorOperators.SUB;
+                break;
+            case "multiply":
+                op = VectorOperators.MUL;
+                break;
+            case "divide":
+                op = VectorOperators.DIV;
+                break;
+            default:
+                scalar.operate(a, aOff, b, operation, result, resultOff, length);
+                return;
+        }
+
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, a, aOff + i)
+                    .lanewise(op, b)
+                    .intoArray(result, resultOff + i);
+        }
+
+        scalar.operate(a, aOff + i, b, operation, result, resultOff + i, length - i);
+    }
+
+    @Override
+    public void sigmoid(double[] a, int aOff, double[] result, int resultOff, int length) {
+        DoubleVector one = DoubleVector.broadcast(DOUBLES, 1.0);
+        int bound = DOUBLES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += DOUBLES.length()) {
+            DoubleVector denominator = DoubleVector.fromArray(DOUBLES, a, aOff + i)
+                    .neg()
+                    .lanewise(VectorOperators.EXP)
+                    .add(1.0);
+            one.div(denominator).intoArray(result, resultOff + i);
+        }
+
+        scalar.sigmoid(a, aOff + i, result, resultOff + i, length - i);
+    }
+}
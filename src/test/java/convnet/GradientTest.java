@@ -0,0 +1,187 @@
+package convnet;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the kernel and bias gradients of the backward pass against central differences of the loss. Conv layers
+ * early in the network are only right if the error is also propagated right through the pooling, nonlinearity and
+ * conv layers after them. Gradients are summed over the mini-batch while the loss is its mean, so differences are
+ * scaled by the batch size.
+ * @author Jared Gorski
+ */
+public class GradientTest {
+
+    private static final double EPSILON = 1e-5; // Difference step, small enough to rarely cross a kink.
+    private static final double SMOOTH_EPSILON = 1e-3; // Step for smooth networks whose wide sums round more.
+    private static final double TOLERANCE = 1e-6; // Largest relative error allowed.
+    private static final int CHECKS = 8; // Weights and biases checked per layer.
+    private static final int BATCH_SIZE = 5;
+
+    @Test
+    public void gradientsMatchFiniteDifferences() {
+        check(new String[]{"input", "conv", "relu", "pool", "conv", "sigmoid", "activation"}, 1, 3, 14, 0.5, EPSILON);
+    }
+
+    @Test
+    public void parallelGradientsMatchFiniteDifferences() {
+        check(new String[]{"input", "conv", "pool", "leakyrelu", "conv", "activation"}, 4, 3, 14, 0.5, EPSILON);
+    }
+
+    @Test
+    public void fftInputErrorGradientsMatchFiniteDifferences() {
+        // Kernels and inputs large enough that the second conv layer finds the error of its input by FFT. At this size
+        // some relu or pooling max would sit within a step of its kink, so the network is smooth, and its loss sums so
+        // many terms that a smaller step would difference little more than rounding.
+        check(new String[]{"input", "conv", "sigmoid", "conv", "sigmoid", "activation"}, 4, 7, 24, 0.3, SMOOTH_EPSILON);
+    }
+
+    private static void check(String[] schedule, int threads, int kernelSize, int size, double weights,
+                              double epsilon) {
+        Random random = new Random(3);
+        CNN network = new CNN();
+        network.setSchedule(schedule, 1);
+        network.setClasses(new String[]{"a", "b", "c"});
+        network.setKernelSize(kernelSize);
+        network.setThreads(threads);
+
+        List<TrainingSet.TData> batch = samples(new TrainingSet(), random, size);
+        network.computeGradients(batch);
+        List<Layer> layers = network.getLayers();
+
+        // Small weights keep sigmoid and softmax away from saturation, where differences say little.
+        for (Layer layer : layers) {
+            for (int k = 0; k < layer.getKernelsLength(); k++) {
+                fill(layer.getKernelByIndex(k), random, weights);
+                layer.setBiasByIndex(k, (random.nextDouble() - 0.5) * 0.2);
+            }
+
+            layer.invalidateKernelMatrix();
+            layer.clearGradients();
+        }
+
+        network.computeGradients(batch);
+        List<double[]> gradients = new ArrayList<>();
+
+        for (Layer layer : layers) {
+            gradients.add(layer.getKernelsLength() > 0 ? gradientsOf(layer) : null);
+        }
+
+        for (int l = 0; l < layers.size(); l++) {
+            Layer layer = layers.get(l);
+
+            if (layer.getKernelsLength() == 0) {
+                continue;
+            }
+
+            int kernelsLength = layer.getKernelsLength();
+            int patchLength = layer.getKernelByIndex(0).length();
+
+            for (int c = 0; c < CHECKS; c++) {
+                int k = random.nextInt(kernelsLength);
+                Data kernel = layer.getKernelByIndex(k);
+                int[] dims = kernel.getDimensions();
+                int depth = Math.max(dims[2], 1);
+                int i = random.nextInt(dims[0]);
+                int j = random.nextInt(dims[1]);
+                int q = random.nextInt(depth);
+                double value = kernel.get(i, j, q);
+
+                kernel.set(i, j, q, value + epsilon);
+                layer.invalidateKernelMatrix();
+                double plus = loss(network, batch);
+                kernel.set(i, j, q, value - epsilon);
+                layer.invalidateKernelMatrix();
+                double minus = loss(network, batch);
+                kernel.set(i, j, q, value);
+                layer.invalidateKernelMatrix();
+
+                assertClose("Kernel " + k + " of layer " + l, (plus - minus) / (2 * epsilon) * BATCH_SIZE,
+                        gradients.get(l)[k * patchLength + (i * dims[1] + j) * depth + q]);
+
+                double bias = layer.getBiasByIndex(k);
+                layer.setBiasByIndex(k, bias + epsilon);
+                layer.invalidateKernelMatrix();
+                plus = loss(network, batch);
+                layer.setBiasByIndex(k, bias - epsilon);
+                layer.invalidateKernelMatrix();
+                minus = loss(network, batch);
+                layer.setBiasByIndex(k, bias);
+                layer.invalidateKernelMatrix();
+
+                assertClose("Bias " + k + " of layer " + l, (plus - minus) / (2 * epsilon) * BATCH_SIZE,
+                        gradients.get(l)[kernelsLength * patchLength + k]);
+            }
+        }
+    }
+
+    /**
+     * Copies a layer's accumulated kernel and bias gradients.
+     */
+    private static double[] gradientsOf(Layer layer) {
+        int offset = layer.getGradientOffset();
+        double[] gradients = new double[layer.getParametersLength()];
+        System.arraycopy(layer.getGradients(), offset, gradients, 0, gradients.length);
+
+        return gradients;
+    }
+
+    /**
+     * Runs the mini-batch forward and returns its loss, discarding the gradients of the pass.
+     */
+    private static double loss(CNN network, List<TrainingSet.TData> batch) {
+        network.computeGradients(batch);
+
+        for (Layer layer : network.getLayers()) {
+            layer.clearGradients();
+        }
+
+        return network.getLoss();
+    }
+
+    /**
+     * Asserts a relative error below TOLERANCE. Gradients too small for differences to resolve are compared absolutely.
+     */
+    private static void assertClose(String message, double expected, double actual) {
+        double error = Math.abs(expected - actual) / Math.max(1e-4, Math.abs(expected) + Math.abs(actual));
+        assertTrue(message + ": expected " + expected + ", got " + actual, error < TOLERANCE);
+    }
+
+    private static List<TrainingSet.TData> samples(TrainingSet trainingSet, Random random, int size) {
+        List<TrainingSet.TData> samples = new ArrayList<>();
+
+        for (int n = 0; n < BATCH_SIZE; n++) {
+            Data sample = new Data(new int[]{size, size, 2});
+            fill(sample, random, 0.1);
+            int[] label = new int[3];
+            label[n % 3] = 1;
+
+            TrainingSet.TData tData = trainingSet.new TData();
+            tData.write(sample);
+            tData.setLabel(label);
+            samples.add(tData);
+        }
+
+        return samples;
+    }
+
+    /**
+     * Fills data with uniform values of the given range around zero.
+     */
+    private static void fill(Data data, Random random, double range) {
+        int[] dims = data.getDimensions();
+
+        for (int i = 0; i < dims[0]; i++) {
+            for (int j = 0; j < dims[1]; j++) {
+                for (int k = 0; k < Math.max(dims[2], 1); k++) {
+                    data.set(i, j, k, (random.nextDouble() - 0.5) * range);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package convnet;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that once a network is warmed up, predicting and training reuse the buffers of its workspace and allocate
+ * nothing. The network runs single-threaded, so that everything it allocates is counted against the calling thread.
+ * The first passes allocate the workspace's buffers, and until the JIT has compiled them, interpreted code and vector
+ * operations allocate a little every call. The JVM also allocates now and then as it recompiles, so passes run in
+ * rounds until a whole round allocates nothing, which a pass that allocates anything itself would never do.
+ * @author Jared Gorski
+ */
+public class WorkspaceTest {
+
+    private static final int ROUND_CALLS = 100; // Passes per measured round.
+    private static final int MAX_ROUNDS = 100;
+    private static final int BATCH_SIZE = 4;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(this.threads.isThreadAllocatedMemorySupported());
+        this.threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void predictAllocatesNothingOnceWarm() {
+        for (String precision : new String[]{"float64", "float32"}) {
+            CNN network = network(precision);
+            Data batch = new Data(new int[]{32, 32, 3}, precision, BATCH_SIZE);
+            fill(batch, new Random(1));
+            double[][] probabilities = new double[BATCH_SIZE][3];
+            long allocated = steadyStateBytes(() -> network.predict(batch, probabilities));
+
+            assertEquals("Bytes allocated predicting in " + precision, 0, allocated);
+        }
+    }
+
+    @Test
+    public void trainingStepAllocatesNothingOnceWarm() {
+        for (String precision : new String[]{"float64", "float32"}) {
+            CNN network = network(precision);
+            List<TrainingSet.TData> batch = samples(new TrainingSet(), precision, new Random(2));
+            long allocated = steadyStateBytes(() -> {
+                network.computeGradients(batch);
+                network.applyGradients(batch.size());
+            });
+
+            assertEquals("Bytes allocated training in " + precision, 0, allocated);
+        }
+    }
+
+    /**
+     * Runs rounds of the pass until one allocates nothing, or the rounds run out, and returns the bytes allocated by
+     * the last round.
+     */
+    private long steadyStateBytes(Runnable pass) {
+        long allocated = roundBytes(pass);
+
+        for (int round = 1; round < MAX_ROUNDS && allocated > 0; round++) {
+            allocated = roundBytes(pass);
+        }
+
+        return allocated;
+    }
+
+    private long roundBytes(Runnable pass) {
+        long before = allocatedBytes();
+
+        for (int i = 0; i < ROUND_CALLS; i++) {
+            pass.run();
+        }
+
+        return allocatedBytes() - before;
+    }
+
+    private long allocatedBytes() {
+        return this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static CNN network(String precision) {
+        CNN network = new CNN();
+        network.setSchedule(new String[]{"input", "conv", "relu", "pool", "conv", "relu", "activation"}, 1);
+        network.setClasses(new String[]{"a", "b", "c"});
+        network.setKernelSize(3);
+        network.setPrecision(precision);
+        network.setThreads(1);
+
+        return network;
+    }
+
+    private static List<TrainingSet.TData> samples(TrainingSet trainingSet, String precision, Random random) {
+        List<TrainingSet.TData> samples = new ArrayList<>();
+
+        for (int n = 0; n < BATCH_SIZE; n++) {
+            Data sample = new Data(new int[]{32, 32, 3}, precision);
+            fill(sample, random);
+            int[] label = new int[3];
+            label[n % 3] = 1;
+
+            TrainingSet.TData tData = trainingSet.new TData();
+            tData.write(sample);
+            tData.setLabel(label);
+            samples.add(tData);
+        }
+
+        return samples;
+    }
+
+    private static void fill(Data data, Random random) {
+        int[] dims = data.getDimensions();
+
+        for (int b = 0; b < data.getBatchSize(); b++) {
+            Data sample = data.sample(b);
+
+            for (int i = 0; i < dims[0]; i++) {
+                for (int j = 0; j < dims[1]; j++) {
+                    for (int k = 0; k < dims[2]; k++) {
+                        sample.set(i, j, k, random.nextDouble());
+                    }
+                }
+            }
+        }
+    }
+}